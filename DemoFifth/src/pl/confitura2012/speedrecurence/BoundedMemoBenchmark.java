@@ -0,0 +1,177 @@
+package pl.confitura2012.speedrecurence;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark of the bounded memo tables (see: {@link BoundedMemoTable}) on the arguments drawn from a Zipf distribution
+ * (a few arguments are called very often, most of them - rarely), for each eviction policy, with the capacity given as: <ul>
+ * <li> the number of the results (1% of all the arguments, by default) </li>
+ * <li> the estimated number of bytes (of about the same number of the results) </li></ul>
+ * and for the unbounded memo table, for reference (it remembers every argument, so it has the best hit rate, but it grows without limits,
+ * so it is run for the first workload only).
+ * The hit rate (the calls which did not invoke the memoized method) and the throughput (calls per second) are reported for the workloads: <ul>
+ * <li> ZIPF - the arguments of the Zipf distribution only </li>
+ * <li> ZIPF WITH SCAN - every 4th call is for a new argument (never called again), e.g. a scan of the data; each of those arguments enters
+ * an LRU table (pushing the other results towards the eviction), a TinyLFU table does not admit them to its main part </li></ul>
+ * Before the benchmark, the memoized call sites are called from many threads and their results are checked, and so is the capacity of their tables.
+ * <p/>
+ * Usage: <code>BoundedMemoBenchmark [number of arguments] [capacity] [Zipf exponent]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class BoundedMemoBenchmark {
+	public interface IComputeFunction {
+		public BigInteger apply(long n);
+	}
+
+	private static final AtomicLong invocations = new AtomicLong();
+
+	/**
+	 * The memoized method (quite expensive, so a miss costs much more than a hit).
+	 */
+	public static BigInteger compute(long n) {
+		invocations.incrementAndGet();
+		return expectedCompute(n);
+	}
+
+	private static BigInteger expectedCompute(long n) {
+		return BigInteger.valueOf(n + 1).pow(16);
+	}
+
+	private static final int DEFAULT_NUMBER_OF_ARGUMENTS = 1_000_000;
+	private static final double DEFAULT_ZIPF_EXPONENT = 0.99;
+	private static final int NUMBER_OF_CALLS = 5_000_000;
+	private static final int NUMBER_OF_REPEATS = 3;
+	private static final int NUMBER_OF_STRESS_THREADS = 4;
+	private static final int STRESS_CAPACITY = 1_000;
+	//estimated bytes of a remembered result: the boxed argument, the BigInteger and the table's entry
+	private static final long BYTES_PER_RESULT = 16 + 80 + 64;
+	private static final MethodType TYPE = MethodType.methodType(BigInteger.class, long.class);
+	private static final MethodType BSM_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Class.class, Object[].class);
+
+	public static void main(String args[]) throws Throwable {
+		int numberOfArguments = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUMBER_OF_ARGUMENTS;
+		int capacity = (args.length > 1) ? Integer.parseInt(args[1]) : numberOfArguments / 100;
+		double exponent = (args.length > 2) ? Double.parseDouble(args[2]) : DEFAULT_ZIPF_EXPONENT;
+
+		long[] zipf = zipfArguments(numberOfArguments, exponent, NUMBER_OF_CALLS, new Random(42));
+		long[] zipfWithScan = zipf.clone();
+		for (int i = 3; i < zipfWithScan.length; i += 4)
+			zipfWithScan[i] = numberOfArguments + i;
+
+		StressTestBoundedMemo(zipf);
+
+		Object[][] tables = {
+			{},
+			{ "LRU", capacity },
+			{ "TINY_LFU", capacity },
+			{ "LRU", capacity * BYTES_PER_RESULT },
+			{ "TINY_LFU", capacity * BYTES_PER_RESULT } };
+		for (Object[] options : tables)
+			BenchmarkBoundedMemo("ZIPF", zipf, options);
+		for (int i = 1; i < tables.length; i++)
+			BenchmarkBoundedMemo("ZIPF WITH SCAN", zipfWithScan, tables[i]);
+	}
+
+	private static IComputeFunction prepareCompute(Object... options) throws Throwable {
+		Object[] bsmArgs = new Object[options.length + 1];
+		bsmArgs[0] = BoundedMemoBenchmark.class;
+		System.arraycopy(options, 0, bsmArgs, 1, options.length);
+		return InvokeDynamic.prepareInvoker(IComputeFunction.class, "compute", "memoize", Memoizer.class, BSM_TYPE, bsmArgs);
+	}
+
+	private static String nameOf(Object... options) {
+		if (options.length == 0)
+			return "UNBOUNDED";
+		return options[0] + ", CAPACITY: " + options[1] + ((options[1] instanceof Long) ? " bytes" : " results");
+	}
+
+	public static void StressTestBoundedMemo(final long[] arguments) throws Throwable {
+		System.out.println("\nStress test BOUNDED MEMO, THREADS: " + NUMBER_OF_STRESS_THREADS + ", CAPACITY: " + STRESS_CAPACITY);
+		ExecutorService executor = Executors.newFixedThreadPool(NUMBER_OF_STRESS_THREADS);
+		try {
+			for (final Object[] options : new Object[][] { { "LRU", STRESS_CAPACITY }, { "TINY_LFU", STRESS_CAPACITY } }) {
+				Memoizer.clear(BoundedMemoBenchmark.class);
+				final IComputeFunction compute = prepareCompute(options);
+
+				List<Future<Void>> results = new ArrayList<Future<Void>>();
+				for (int t = 0; t < NUMBER_OF_STRESS_THREADS; t++) {
+					final int threadNumber = t;
+					results.add(executor.submit(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							for (int i = threadNumber; i < arguments.length / 10; i += NUMBER_OF_STRESS_THREADS) {
+								BigInteger result = compute.apply(arguments[i]);
+								if (!result.equals(expectedCompute(arguments[i])))
+									throw new AssertionError("Memoized compute(" + arguments[i] + ") returned " + result);
+							}
+							return null;
+						}
+					}));
+				}
+				for (Future<Void> result : results)
+					result.get();
+
+				int size = Memoizer.tableOf(BoundedMemoBenchmark.class, "compute", TYPE, options).size();
+				if (size > STRESS_CAPACITY)
+					throw new AssertionError("The memo table " + nameOf(options) + " holds " + size + " results");
+				System.out.println(nameOf(options) + ", OK, SIZE: " + size);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public static void BenchmarkBoundedMemo(String workload, long[] arguments, Object... options) throws Throwable {
+		System.out.println("\nBenchmark " + workload + ", " + nameOf(options));
+		IComputeFunction compute = prepareCompute(options);
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			Memoizer.clear(BoundedMemoBenchmark.class);
+			invocations.set(0);
+
+			long start = System.nanoTime();
+			long sum = 0;
+			for (long n : arguments)
+				sum += compute.apply(n).bitLength();
+			long time = System.nanoTime() - start;
+
+			MemoTable table = Memoizer.tableOf(BoundedMemoBenchmark.class, "compute", TYPE, options);
+			double hitRate = 100.0 * (arguments.length - invocations.get()) / arguments.length;
+			System.out.println(sum + ", HIT RATE: " + String.format("%.2f", hitRate) + "%, TIME: " + (time / 1_000_000) + " ms"
+								+ ", THROUGHPUT: " + (arguments.length * 1_000_000_000L / time) + " calls/s, SIZE: " + table.size()
+								+ ((table instanceof BoundedMemoTable) ? ", WEIGHT: " + ((BoundedMemoTable) table).getWeight() : ""));
+		}
+	}
+
+	/**
+	 * @return	The arguments (0 .. numberOfArguments - 1) drawn from the Zipf distribution: the argument k with the probability proportional to 1 / (k + 1)^exponent
+	 */
+	private static long[] zipfArguments(int numberOfArguments, double exponent, int numberOfCalls, Random random) {
+		double[] cumulative = new double[numberOfArguments];
+		double sum = 0;
+		for (int k = 0; k < numberOfArguments; k++) {
+			sum += 1 / Math.pow(k + 1, exponent);
+			cumulative[k] = sum;
+		}
+
+		long[] arguments = new long[numberOfCalls];
+		for (int i = 0; i < numberOfCalls; i++) {
+			int k = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+			arguments[i] = (k >= 0) ? k : Math.min(-k - 1, numberOfArguments - 1);
+		}
+		return arguments;
+	}
+}
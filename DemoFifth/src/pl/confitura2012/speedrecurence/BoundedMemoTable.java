@@ -0,0 +1,345 @@
+package pl.confitura2012.speedrecurence;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Memo table with a limited capacity (see: {@link MemoTable}): when the remembered results exceed the capacity, some of them are evicted,
+ * chosen by the eviction policy: <ul>
+ * <li> {@link Policy#LRU} - the least recently used results are evicted (approximated with the CLOCK algorithm: each hit sets the result's reference bit,
+ * the clock's hand evicts the first result without the bit, clearing the bits on its way) </li>
+ * <li> {@link Policy#TINY_LFU} - W-TinyLFU: a new result enters a small window (1% of the capacity, LRU), the result leaving the window
+ * is admitted to the main part (LRU) only if it has been used more frequently than the main part's victim (the frequencies of all the arguments,
+ * also the evicted ones, are kept in a count-min sketch, halved from time to time, so the old frequencies fade away) </li></ul>
+ * The capacity is either the number of the results, or the estimated number of bytes of the arguments and the results (e.g. of the BigIntegers).
+ * <p/>
+ * The hits are lock-free: a lookup in the <code>ConcurrentHashMap</code>, then setting the reference bit (and counting the frequency in the sketch,
+ * without synchronization, so a few counts may be lost under contention). The inserts and the evictions are done under the table's lock.
+ * A null result is not remembered.
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public final class BoundedMemoTable extends MemoTable {
+	/**
+	 * The eviction policies.
+	 */
+	public enum Policy {
+		LRU, TINY_LFU
+	}
+
+	private static final int WINDOW_PERCENT = 1;
+	private static final long ENTRY_OVERHEAD = 64;
+
+	/**
+	 * The remembered result, with its reference bit.
+	 */
+	static final class Node {
+		final Object key;
+		final Object value;
+		final long weight;
+		volatile boolean referenced;
+		int index;
+
+		Node(Object key, Object value, long weight) {
+			this.key = key;
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * The nodes of a part of the table, in the order of the CLOCK algorithm (guarded by the table's lock).
+	 */
+	static final class Clock {
+		private final ArrayList<Node> nodes = new ArrayList<Node>();
+		private int hand;
+		long weight;
+
+		void add(Node node) {
+			node.index = nodes.size();
+			nodes.add(node);
+			weight += node.weight;
+		}
+
+		void remove(Node node) {
+			Node last = nodes.remove(nodes.size() - 1);
+			if (last != node) {
+				nodes.set(node.index, last);
+				last.index = node.index;
+			}
+			weight -= node.weight;
+		}
+
+		boolean isEmpty() {
+			return nodes.isEmpty();
+		}
+
+		/**
+		 * @return	The first node without the reference bit (clearing the bits of the nodes on the hand's way)
+		 */
+		Node victim() {
+			while (true) {
+				if (hand >= nodes.size())
+					hand = 0;
+				Node node = nodes.get(hand);
+				if (!node.referenced)
+					return node;
+				node.referenced = false;
+				hand++;
+			}
+		}
+
+		void clear() {
+			nodes.clear();
+			hand = 0;
+			weight = 0;
+		}
+	}
+
+	/**
+	 * Count-min sketch of the frequencies of the arguments (4 counters per argument, up to 15, 16 counters per expected argument),
+	 * halved after 10 counts per expected argument.
+	 */
+	static final class FrequencySketch {
+		private static final int[] SEEDS = { 0x97cb3127, 0xb92cff5d, 0x4e1f5a3b, 0x6a09e667 };
+		private final byte[] counters;
+		private final int mask;
+		private final int resetThreshold;
+		private int additions;
+
+		FrequencySketch(int expectedEntries) {
+			int size = Integer.highestOneBit(Math.max(1024, Math.min(1 << 26, 16 * expectedEntries)) - 1) << 1;
+			counters = new byte[size];
+			mask = size - 1;
+			resetThreshold = 10 * expectedEntries;
+		}
+
+		void increment(Object key) {
+			int h = spread(key.hashCode());
+			for (int i = 0; i < 4; i++) {
+				int index = indexOf(h, i);
+				if (counters[index] < 15)
+					counters[index]++;
+			}
+			if (++additions >= resetThreshold)
+				reset();
+		}
+
+		int frequency(Object key) {
+			int h = spread(key.hashCode());
+			int frequency = 15;
+			for (int i = 0; i < 4; i++)
+				frequency = Math.min(frequency, counters[indexOf(h, i)]);
+			return frequency;
+		}
+
+		private int indexOf(int h, int i) {
+			int hash = (h ^ SEEDS[i]) * 0x9e3779b9;
+			return (hash ^ (hash >>> 16)) & mask;
+		}
+
+		private void reset() {
+			additions = 0;
+			for (int i = 0; i < counters.length; i++)
+				counters[i] >>= 1;
+		}
+
+		private static int spread(int h) {
+			h *= 0xcc9e2d51;
+			return h ^ (h >>> 16);
+		}
+	}
+
+	private final ConcurrentMap<Object, Node> cache = new ConcurrentHashMap<Object, Node>();
+	private final Policy policy;
+	private final long capacity;
+	private final boolean capacityInBytes;
+	private final Clock window = new Clock();
+	private final Clock main = new Clock();
+	private final long windowCapacity;
+	private final FrequencySketch sketch;
+
+	/**
+	 * @param	policy The eviction policy
+	 * @param	capacity Max number of the results, or max estimated number of bytes of the arguments and the results
+	 * @param	capacityInBytes true, if the capacity is the number of bytes
+	 */
+	BoundedMemoTable(Policy policy, long capacity, boolean capacityInBytes) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("Capacity of the memo table must be positive: " + capacity);
+		this.policy = policy;
+		this.capacity = capacity;
+		this.capacityInBytes = capacityInBytes;
+		this.windowCapacity = (policy == Policy.TINY_LFU) ? Math.max(1, capacity * WINDOW_PERCENT / 100) : 0;
+		long expectedEntries = capacityInBytes ? capacity / (2 * ENTRY_OVERHEAD) : capacity;
+		this.sketch = (policy == Policy.TINY_LFU) ? new FrequencySketch((int) Math.min(1 << 22, expectedEntries)) : null;
+	}
+
+	/**
+	 * Creates the bounded memo table of the bootstrap arguments: the name of the policy ({@link Policy}) and the capacity:
+	 * the max number of the results (an Integer), or the max estimated number of bytes (a Long).
+	 *
+	 * @param	bsmArgs The bootstrap arguments
+	 * @return	The memo table
+	 */
+	static BoundedMemoTable of(Object... bsmArgs) {
+		if (bsmArgs.length != 2 || !(bsmArgs[0] instanceof String) || !(bsmArgs[1] instanceof Integer || bsmArgs[1] instanceof Long))
+			throw new IllegalArgumentException("No policy and capacity of the memo table in the bootstrap arguments: " + Arrays.toString(bsmArgs));
+		return new BoundedMemoTable(Policy.valueOf((String) bsmArgs[0]), ((Number) bsmArgs[1]).longValue(), bsmArgs[1] instanceof Long);
+	}
+
+	private static final MethodHandle NOT_NULL;
+	private static final MethodHandle LOOKUP;
+	private static final MethodHandle UPDATE;
+	static {
+		Lookup lookup = MethodHandles.lookup();
+		try {
+			NOT_NULL = lookup.findStatic(ObjectMemoTable.class, "notNull", MethodType.methodType(boolean.class, Object.class));
+			LOOKUP = lookup.findVirtual(BoundedMemoTable.class, "lookup", MethodType.methodType(Object.class, Object.class));
+			UPDATE = lookup.findVirtual(BoundedMemoTable.class, "update", MethodType.methodType(Object.class, Object.class, Object.class));
+		} catch (ReflectiveOperationException e) {
+			throw (AssertionError) new AssertionError().initCause(e);
+		}
+	}
+
+	@Override
+	MethodHandle memoize(MethodHandle target) {
+		MethodType type = target.type();
+
+		MethodHandle identity = MethodHandles.identity(type.returnType());
+		identity = identity.asType(identity.type().changeParameterType(0, Object.class));
+		identity = MethodHandles.dropArguments(identity, 1, type.parameterType(0));
+
+		MethodHandle update = UPDATE.bindTo(this);
+		update = update.asType(type.insertParameterTypes(0, type.returnType()));
+
+		MethodHandle fallback = MethodHandles.foldArguments(update, target);
+		fallback = MethodHandles.dropArguments(fallback, 0, Object.class);
+
+		MethodHandle combiner = MethodHandles.guardWithTest(NOT_NULL, identity, fallback);
+
+		MethodHandle cacheQuerier = LOOKUP.bindTo(this);
+		cacheQuerier = cacheQuerier.asType(MethodType.methodType(Object.class, type.parameterType(0)));
+
+		return MethodHandles.foldArguments(combiner, cacheQuerier);
+	}
+
+	/**
+	 * Lock-free lookup: marks the found result as used.
+	 *
+	 * @return	The remembered result, or null
+	 */
+	@SuppressWarnings("unused")
+	private Object lookup(Object key) {
+		if (sketch != null)
+			sketch.increment(key);
+		Node node = cache.get(key);
+		if (node == null)
+			return null;
+		if (!node.referenced)
+			node.referenced = true;
+		return node.value;
+	}
+
+	/**
+	 * Remembers the result (unless a racing thread has already remembered one for the key) and evicts the results over the capacity.
+	 *
+	 * @return	The remembered result
+	 */
+	@SuppressWarnings("unused")
+	private synchronized Object update(Object result, Object key) {
+		if (result == null)
+			return null;
+		Node existing = cache.get(key);
+		if (existing != null)
+			return existing.value;
+
+		Node node = new Node(key, result, capacityInBytes ? estimateBytes(key) + estimateBytes(result) + ENTRY_OVERHEAD : 1);
+		if (node.weight > capacity)
+			return result;
+		cache.put(key, node);
+		if (policy == Policy.LRU) {
+			main.add(node);
+			while (main.weight > capacity)
+				evict(main, main.victim());
+		} else {
+			window.add(node);
+			while (window.weight > windowCapacity) {
+				Node candidate = window.victim();
+				window.remove(candidate);
+				admit(candidate);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * W-TinyLFU admission: the candidate (leaving the window) replaces the main part's victims only if it is more frequent than each of them.
+	 */
+	private void admit(Node candidate) {
+		long mainCapacity = capacity - windowCapacity;
+		while (main.weight + candidate.weight > mainCapacity && !main.isEmpty()) {
+			Node victim = main.victim();
+			if (sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+				cache.remove(candidate.key, candidate);
+				return;
+			}
+			evict(main, victim);
+		}
+		if (candidate.weight > mainCapacity) {
+			cache.remove(candidate.key, candidate);
+			return;
+		}
+		main.add(candidate);
+	}
+
+	private void evict(Clock clock, Node node) {
+		clock.remove(node);
+		cache.remove(node.key, node);
+	}
+
+	/**
+	 * @return	Estimated number of bytes of the argument or the result (of the shallow size, for the objects other than the numbers and the strings)
+	 */
+	static long estimateBytes(Object value) {
+		if (value instanceof BigInteger)
+			return 40 + ((BigInteger) value).bitLength() / 8;
+		if (value instanceof String)
+			return 40 + 2 * ((String) value).length();
+		return 16;
+	}
+
+	/**
+	 * @return	The eviction policy
+	 */
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * @return	The estimated number of bytes of the remembered results (or their number, if the capacity is the number of the results)
+	 */
+	public synchronized long getWeight() {
+		return window.weight + main.weight;
+	}
+
+	@Override
+	public int size() {
+		return cache.size();
+	}
+
+	@Override
+	public synchronized void clear() {
+		cache.clear();
+		window.clear();
+		main.clear();
+	}
+}
@@ -0,0 +1,682 @@
+package pl.confitura2012.speedrecurence;
+
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bytecode generator writing the class file directly (the class file format, see: JVM Specification, chapter 4),
+ * using only the JDK (no ASM classes are loaded). It is a hand-written, minimal class file writer, not the JDK's class file API (<code>java.lang.classfile</code>),
+ * and it is used only when selected (<code>-Dinvokedynamic.generator=CLASS_FILE</code>, see: <code>InvokeDynamic.Generator</code>): ASM is the default generator.
+ * <p/>
+ * The generated classes are simple (no fields, straight-line methods or simple loops with the stack map frames given by the caller),
+ * so only the needed part of the class file format is written: the constant pool, the methods with the Code attribute
+ * (and its StackMapTable attribute, made of full frames only) and the BootstrapMethods attribute. The constant pool entries and the bootstrap methods are shared (not duplicated)
+ * within the class, e.g. by many call sites generated by <code>InvokeDynamic.prepareAll</code>.
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+final class ClassFileBytecodeGenerator implements BytecodeGenerator {
+	private static final int CLASS_FILE_VERSION = 51; //Java 7
+	private static final int ACC_SUPER = 0x0020;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_FLOAT = 4;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_STRING = 8;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int CONSTANT_METHOD_HANDLE = 15;
+	private static final int CONSTANT_METHOD_TYPE = 16;
+	private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+
+	private static final int REF_INVOKE_STATIC = 6;
+
+	private static final int ITEM_INTEGER = 1;
+	private static final int ITEM_FLOAT = 2;
+	private static final int ITEM_DOUBLE = 3;
+	private static final int ITEM_LONG = 4;
+	private static final int ITEM_OBJECT = 7;
+	private static final int FULL_FRAME = 255;
+
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int ILOAD = 0x15;
+	private static final int ILOAD_0 = 0x1a;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int IALOAD = 0x2e;
+	private static final int ISTORE = 0x36;
+	private static final int ISTORE_0 = 0x3b;
+	private static final int IASTORE = 0x4f;
+	private static final int POP = 0x57;
+	private static final int POP2 = 0x58;
+	private static final int IINC = 0x84;
+	private static final int I2L = 0x85;
+	private static final int I2F = 0x86;
+	private static final int I2D = 0x87;
+	private static final int L2F = 0x89;
+	private static final int L2D = 0x8a;
+	private static final int F2D = 0x8d;
+	private static final int IF_ICMPGE = 0xa2;
+	private static final int GOTO = 0xa7;
+	private static final int IRETURN = 0xac;
+	private static final int LRETURN = 0xad;
+	private static final int FRETURN = 0xae;
+	private static final int DRETURN = 0xaf;
+	private static final int ARETURN = 0xb0;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKEVIRTUAL = 0xb6;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKESTATIC = 0xb8;
+	private static final int INVOKEDYNAMIC = 0xba;
+	private static final int NEWARRAY = 0xbc;
+	private static final int ANEWARRAY = 0xbd;
+	private static final int ARRAYLENGTH = 0xbe;
+	private static final int CHECKCAST = 0xc0;
+	private static final int WIDE = 0xc4;
+
+	private final Bytes constantPool = new Bytes(512);
+	private final Map<String, Integer> utf8Constants = new HashMap<String, Integer>();
+	//the other constants are keyed by their tag and (up to two) two-byte values, see: constant(...)
+	private final Map<Long, Integer> constants = new HashMap<Long, Integer>();
+	private final Map<String, Integer> eightByteConstants = new HashMap<String, Integer>();
+	private int constantPoolCount = 1;
+
+	private final Bytes bootstrapMethods = new Bytes(64);
+	private final Map<String, Integer> bootstrapMethodIndexes = new HashMap<String, Integer>();
+
+	private final Bytes methods = new Bytes(256);
+	private int methodCount;
+
+	private final Bytes code = new Bytes(64);
+	private int methodAccess;
+	private int methodName;
+	private int methodDescriptor;
+
+	//labels of the current method: their offsets in the code (-1 until placed), and the jumps to them (the offset of the jump instruction and the label)
+	private final List<Integer> labelOffsets = new ArrayList<Integer>();
+	private final List<int[]> jumps = new ArrayList<int[]>();
+	private final Bytes stackMapFrames = new Bytes(32);
+	private int stackMapFrameCount;
+	private int lastFrameOffset;
+
+	private int thisClass;
+	private int superClass;
+	private int executableInterface;
+
+	@Override
+	public void generateClass(String className, Class<?> executableInterface) {
+		thisClass = classConstant(className);
+		superClass = classConstant("java/lang/Object");
+		if (executableInterface != null)
+			this.executableInterface = classConstant(internalName(executableInterface));
+	}
+
+	@Override
+	public void generateParameterlessConstructor() {
+		beginMethod(Modifier.PUBLIC, "<init>", MethodType.methodType(void.class));
+		code.write(ALOAD_0);
+		code.write(INVOKESPECIAL);
+		writeShort(code, methodConstant("java/lang/Object", "<init>", "()V"));
+		code.write(RETURN);
+		endMethod(1, 1);
+	}
+
+	@Override
+	public void beginMethod(int access, String name, MethodType type) {
+		methodAccess = access;
+		methodName = utf8Constant(name);
+		methodDescriptor = utf8Constant(type.toMethodDescriptorString());
+		code.reset();
+		labelOffsets.clear();
+		jumps.clear();
+		stackMapFrames.reset();
+		stackMapFrameCount = 0;
+		lastFrameOffset = -1;
+	}
+
+	@Override
+	public void loadArgument(Class<?> type, int slot) {
+		writeLocalVariableInstruction(ILOAD, ILOAD_0, kindOf(type), slot);
+	}
+
+	@Override
+	public void storeLocal(Class<?> type, int slot) {
+		writeLocalVariableInstruction(ISTORE, ISTORE_0, kindOf(type), slot);
+	}
+
+	/**
+	 * Writes the load or store instruction of the local variable (in its shortest form, e.g. ILOAD_1, or with WIDE for the slots above 255).
+	 */
+	private void writeLocalVariableInstruction(int opcode, int opcodeOfSlot0, int kind, int slot) {
+		if (slot <= 3) {
+			code.write(opcodeOfSlot0 + kind * 4 + slot);
+		} else if (slot <= 0xff) {
+			code.write(opcode + kind);
+			code.write(slot);
+		} else {
+			code.write(WIDE);
+			code.write(opcode + kind);
+			writeShort(code, slot);
+		}
+	}
+
+	@Override
+	public void pushInt(int value) {
+		if (value >= -1 && value <= 5) {
+			code.write(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			code.write(BIPUSH);
+			code.write(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			code.write(SIPUSH);
+			writeShort(code, value);
+		} else {
+			code.write(LDC_W);
+			writeShort(code, intConstant(value));
+		}
+	}
+
+	@Override
+	public void incrementLocal(int slot, int increment) {
+		if (slot > 0xff)
+			throw new IllegalArgumentException("Too many local variables: " + slot);
+		code.write(IINC);
+		code.write(slot);
+		code.write(increment);
+	}
+
+	@Override
+	public void arrayLength() {
+		code.write(ARRAYLENGTH);
+	}
+
+	@Override
+	public void newArray(Class<?> componentType) {
+		if (!componentType.isPrimitive()) {
+			code.write(ANEWARRAY);
+			writeShort(code, classConstant(internalName(componentType)));
+			return;
+		}
+
+		code.write(NEWARRAY);
+		if (boolean.class.equals(componentType))
+			code.write(4);
+		else if (char.class.equals(componentType))
+			code.write(5);
+		else if (float.class.equals(componentType))
+			code.write(6);
+		else if (double.class.equals(componentType))
+			code.write(7);
+		else if (byte.class.equals(componentType))
+			code.write(8);
+		else if (short.class.equals(componentType))
+			code.write(9);
+		else if (int.class.equals(componentType))
+			code.write(10);
+		else
+			code.write(11);
+	}
+
+	@Override
+	public void loadArrayElement(Class<?> componentType) {
+		code.write(IALOAD + arrayKindOf(componentType));
+	}
+
+	@Override
+	public void storeArrayElement(Class<?> componentType) {
+		code.write(IASTORE + arrayKindOf(componentType));
+	}
+
+	@Override
+	public int newLabel() {
+		labelOffsets.add(-1);
+		return labelOffsets.size() - 1;
+	}
+
+	@Override
+	public void placeLabel(int label, Class<?>... frameLocals) {
+		int offset = code.size();
+		labelOffsets.set(label, offset);
+		if (offset == lastFrameOffset)
+			return;
+
+		int numberOfLocals = frameLocals.length + (Modifier.isStatic(methodAccess) ? 0 : 1);
+		stackMapFrames.write(FULL_FRAME);
+		writeShort(stackMapFrames, offset - lastFrameOffset - 1);
+		writeShort(stackMapFrames, numberOfLocals);
+		if (!Modifier.isStatic(methodAccess)) {
+			stackMapFrames.write(ITEM_OBJECT);
+			writeShort(stackMapFrames, thisClass);
+		}
+		for (Class<?> local : frameLocals) {
+			int kind = kindOf(local);
+			if (kind == 4) {
+				stackMapFrames.write(ITEM_OBJECT);
+				writeShort(stackMapFrames, classConstant(internalName(local)));
+			} else {
+				stackMapFrames.write((kind == 1) ? ITEM_LONG : (kind == 2) ? ITEM_FLOAT : (kind == 3) ? ITEM_DOUBLE : ITEM_INTEGER);
+			}
+		}
+		writeShort(stackMapFrames, 0); //operand stack
+		stackMapFrameCount++;
+		lastFrameOffset = offset;
+	}
+
+	@Override
+	public void jump(int label) {
+		writeJump(GOTO, label);
+	}
+
+	@Override
+	public void jumpIfGreaterOrEqual(int label) {
+		writeJump(IF_ICMPGE, label);
+	}
+
+	/**
+	 * Writes the jump instruction, its (two-byte) offset is written in {@link #endMethod}, when all the labels are placed.
+	 */
+	private void writeJump(int opcode, int label) {
+		jumps.add(new int[] { code.size(), label });
+		code.write(opcode);
+		writeShort(code, 0);
+	}
+
+	@Override
+	public void generateInvokeDynamicInstruction(String methodName, MethodType methodType, String bsmName, Class<?> bsmClass, MethodType bsmType, Object... bsmArgs) {
+		int bootstrapMethod = bootstrapMethod(bsmClass, bsmName, bsmType, bsmArgs);
+		int nameAndType = nameAndTypeConstant(methodName, methodType.toMethodDescriptorString());
+
+		code.write(INVOKEDYNAMIC);
+		writeShort(code, constant(CONSTANT_INVOKE_DYNAMIC, bootstrapMethod, nameAndType));
+		writeShort(code, 0);
+	}
+
+	@Override
+	public void checkCast(Class<?> type) {
+		code.write(CHECKCAST);
+		writeShort(code, classConstant(internalName(type)));
+	}
+
+	@Override
+	public void convertPrimitive(Class<?> from, Class<?> to) {
+		int fromKind = kindOf(from);
+		int toKind = kindOf(to);
+		if (fromKind == toKind)
+			return;
+
+		if (fromKind == 0)
+			code.write((toKind == 1) ? I2L : (toKind == 2) ? I2F : I2D);
+		else if (fromKind == 1)
+			code.write((toKind == 2) ? L2F : L2D);
+		else
+			code.write(F2D);
+	}
+
+	@Override
+	public void invokeMethod(boolean isStatic, Class<?> owner, String name, MethodType type) {
+		code.write(isStatic ? INVOKESTATIC : INVOKEVIRTUAL);
+		writeShort(code, methodConstant(internalName(owner), name, type.toMethodDescriptorString()));
+	}
+
+	@Override
+	public void pop(Class<?> type) {
+		code.write((long.class.equals(type) || double.class.equals(type)) ? POP2 : POP);
+	}
+
+	@Override
+	public void manageMethodResult(Class<?> returnType) {
+		if (void.class.equals(returnType)) {
+			code.write(RETURN);
+		} else if (double.class.equals(returnType)) {
+			code.write(DRETURN);
+		} else if (float.class.equals(returnType)) {
+			code.write(FRETURN);
+		} else if (long.class.equals(returnType)) {
+			code.write(LRETURN);
+		} else if (returnType.isPrimitive()) {
+			code.write(IRETURN);
+		} else {
+			code.write(ARETURN);
+		}
+	}
+
+	@Override
+	public void endMethod(int maxStack, int maxLocals) {
+		int codeAttribute = utf8Constant("Code");
+		int stackMapTableAttribute = (stackMapFrameCount == 0) ? 0 : utf8Constant("StackMapTable");
+
+		for (int[] jump : jumps) {
+			int jumpOffset = labelOffsets.get(jump[1]) - jump[0];
+			if (labelOffsets.get(jump[1]) < 0 || jumpOffset != (short) jumpOffset)
+				throw new IllegalStateException("Label not placed, or too far: " + jump[1]);
+			code.set(jump[0] + 1, jumpOffset >>> 8);
+			code.set(jump[0] + 2, jumpOffset);
+		}
+
+		writeShort(methods, methodAccess);
+		writeShort(methods, methodName);
+		writeShort(methods, methodDescriptor);
+		writeShort(methods, 1);
+		writeShort(methods, codeAttribute);
+		writeInt(methods, 12 + code.size() + ((stackMapTableAttribute == 0) ? 0 : 8 + stackMapFrames.size()));
+		writeShort(methods, maxStack);
+		writeShort(methods, maxLocals);
+		writeInt(methods, code.size());
+		code.writeTo(methods);
+		writeShort(methods, 0); //exception table
+		if (stackMapTableAttribute != 0) {
+			writeShort(methods, 1); //attributes of the Code attribute
+			writeShort(methods, stackMapTableAttribute);
+			writeInt(methods, 2 + stackMapFrames.size());
+			writeShort(methods, stackMapFrameCount);
+			stackMapFrames.writeTo(methods);
+		} else {
+			writeShort(methods, 0); //attributes of the Code attribute
+		}
+		methodCount++;
+	}
+
+	@Override
+	public byte[] toByteArray() {
+		int bootstrapMethodsAttribute = bootstrapMethodIndexes.isEmpty() ? 0 : utf8Constant("BootstrapMethods");
+
+		Bytes out = new Bytes(32 + constantPool.size() + methods.size() + bootstrapMethods.size());
+		writeInt(out, 0xCAFEBABE);
+		writeShort(out, 0);
+		writeShort(out, CLASS_FILE_VERSION);
+		writeShort(out, constantPoolCount);
+		constantPool.writeTo(out);
+		writeShort(out, Modifier.PUBLIC | ACC_SUPER);
+		writeShort(out, thisClass);
+		writeShort(out, superClass);
+		if (executableInterface != 0) {
+			writeShort(out, 1);
+			writeShort(out, executableInterface);
+		} else {
+			writeShort(out, 0);
+		}
+		writeShort(out, 0); //fields
+		writeShort(out, methodCount);
+		methods.writeTo(out);
+		if (bootstrapMethodsAttribute != 0) {
+			writeShort(out, 1);
+			writeShort(out, bootstrapMethodsAttribute);
+			writeInt(out, 2 + bootstrapMethods.size());
+			writeShort(out, bootstrapMethodIndexes.size());
+			bootstrapMethods.writeTo(out);
+		} else {
+			writeShort(out, 0);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Adds (if not yet added) the bootstrap method (with its static arguments) to the BootstrapMethods attribute.
+	 *
+	 * @return	index of the bootstrap method in the BootstrapMethods attribute
+	 */
+	private int bootstrapMethod(Class<?> bsmClass, String bsmName, MethodType bsmType, Object... bsmArgs) {
+		int bsmMethod = methodConstant(internalName(bsmClass), bsmName, bsmType.toMethodDescriptorString());
+		int bsmHandle = constant(CONSTANT_METHOD_HANDLE, REF_INVOKE_STATIC, bsmMethod);
+
+		int numberOfArgs = (bsmArgs == null) ? 0 : bsmArgs.length;
+		int[] args = new int[numberOfArgs];
+		StringBuilder key = new StringBuilder().append(bsmHandle);
+		for (int i = 0; i < numberOfArgs; i++) {
+			args[i] = loadableConstant(bsmArgs[i]);
+			key.append(':').append(args[i]);
+		}
+
+		Integer index = bootstrapMethodIndexes.get(key.toString());
+		if (index != null)
+			return index;
+
+		writeShort(bootstrapMethods, bsmHandle);
+		writeShort(bootstrapMethods, numberOfArgs);
+		for (int arg : args)
+			writeShort(bootstrapMethods, arg);
+		index = bootstrapMethodIndexes.size();
+		bootstrapMethodIndexes.put(key.toString(), index);
+		return index;
+	}
+
+	/**
+	 * Adds the constant pool entry of the static argument of the bootstrap method.
+	 * The same argument types as in the ASM generator are supported.
+	 */
+	private int loadableConstant(Object bsmArg) {
+		if (bsmArg instanceof String) {
+			int value = utf8Constant((String) bsmArg);
+			return constant(CONSTANT_STRING, value, 0);
+		}
+		if (bsmArg instanceof Integer || bsmArg instanceof Short || bsmArg instanceof Byte) {
+			return intConstant(((Number) bsmArg).intValue());
+		}
+		if (bsmArg instanceof Character) {
+			return intConstant((Character) bsmArg);
+		}
+		if (bsmArg instanceof Boolean) {
+			return intConstant(((Boolean) bsmArg) ? 1 : 0);
+		}
+		if (bsmArg instanceof Float) {
+			int bits = Float.floatToRawIntBits((Float) bsmArg);
+			return constant(CONSTANT_FLOAT, bits >>> 16, bits & 0xffff);
+		}
+		if (bsmArg instanceof Long) {
+			return longConstant(CONSTANT_LONG, (Long) bsmArg);
+		}
+		if (bsmArg instanceof Double) {
+			return longConstant(CONSTANT_DOUBLE, Double.doubleToRawLongBits((Double) bsmArg));
+		}
+		if (bsmArg instanceof Class<?> && !((Class<?>) bsmArg).isPrimitive()) {
+			return classConstant(internalName((Class<?>) bsmArg));
+		}
+		if (bsmArg instanceof MethodType) {
+			int descriptor = utf8Constant(((MethodType) bsmArg).toMethodDescriptorString());
+			return constant(CONSTANT_METHOD_TYPE, descriptor, 0);
+		}
+		throw new IllegalArgumentException("Unsupported bootstrap method argument: " + bsmArg);
+	}
+
+	private int intConstant(int value) {
+		return constant(CONSTANT_INTEGER, value >>> 16, value & 0xffff);
+	}
+
+	/**
+	 * Adds the 8-byte constant (CONSTANT_Long or CONSTANT_Double), which takes two entries of the constant pool.
+	 */
+	private int longConstant(int tag, long value) {
+		String key = new StringBuilder().append(tag).append(':').append(value).toString();
+		Integer index = eightByteConstants.get(key);
+		if (index != null)
+			return index;
+
+		index = newConstant();
+		newConstant();
+		constantPool.write(tag);
+		writeInt(constantPool, (int) (value >>> 32));
+		writeInt(constantPool, (int) value);
+		eightByteConstants.put(key, index);
+		return index;
+	}
+
+	private int classConstant(String internalName) {
+		int name = utf8Constant(internalName);
+		return constant(CONSTANT_CLASS, name, 0);
+	}
+
+	private int nameAndTypeConstant(String name, String descriptor) {
+		int nameIndex = utf8Constant(name);
+		int descriptorIndex = utf8Constant(descriptor);
+		return constant(CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex);
+	}
+
+	private int methodConstant(String owner, String name, String descriptor) {
+		int ownerIndex = classConstant(owner);
+		int nameAndType = nameAndTypeConstant(name, descriptor);
+		return constant(CONSTANT_METHODREF, ownerIndex, nameAndType);
+	}
+
+	/**
+	 * Adds (if not yet added) the constant pool entry: the tag followed by the given two-byte values (indexes, or halves of an int/float). 
+	 * The tags of CONSTANT_Class, CONSTANT_String and CONSTANT_MethodType are followed by the first value only, 
+	 * the tag of CONSTANT_MethodHandle is followed by a single byte (the reference kind) and an index.
+	 */
+	private int constant(int tag, int first, int second) {
+		Long key = ((long) tag << 32) | ((long) first << 16) | second;
+		Integer index = constants.get(key);
+		if (index != null)
+			return index;
+
+		index = newConstant();
+		constantPool.write(tag);
+		if (tag == CONSTANT_METHOD_HANDLE)
+			constantPool.write(first);
+		else
+			writeShort(constantPool, first);
+		if (tag != CONSTANT_CLASS && tag != CONSTANT_STRING && tag != CONSTANT_METHOD_TYPE)
+			writeShort(constantPool, second);
+		constants.put(key, index);
+		return index;
+	}
+
+	/**
+	 * Adds (if not yet added) the CONSTANT_Utf8 entry (in the modified UTF-8 encoding, see: {@link java.io.DataInput}).
+	 */
+	private int utf8Constant(String value) {
+		Integer index = utf8Constants.get(value);
+		if (index != null)
+			return index;
+
+		index = newConstant();
+		constantPool.write(CONSTANT_UTF8);
+		int lengthPosition = constantPool.size();
+		writeShort(constantPool, 0);
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c >= 0x0001 && c <= 0x007f) {
+				constantPool.write(c);
+			} else if (c <= 0x07ff) {
+				constantPool.write(0xc0 | (c >> 6));
+				constantPool.write(0x80 | (c & 0x3f));
+			} else {
+				constantPool.write(0xe0 | (c >> 12));
+				constantPool.write(0x80 | ((c >> 6) & 0x3f));
+				constantPool.write(0x80 | (c & 0x3f));
+			}
+		}
+		int length = constantPool.size() - lengthPosition - 2;
+		if (length > 0xffff)
+			throw new IllegalArgumentException("Too long constant: " + value.substring(0, 64) + "...");
+		constantPool.set(lengthPosition, length >>> 8);
+		constantPool.set(lengthPosition + 1, length);
+		utf8Constants.put(value, index);
+		return index;
+	}
+
+	private int newConstant() {
+		if (constantPoolCount >= 0xffff)
+			throw new IllegalStateException("Too many constants in the generated class");
+		return constantPoolCount++;
+	}
+
+	/**
+	 * @return	Kind of the value of the given type, as ordered in the load instructions: 0 - int (boolean, byte, char, short), 1 - long, 2 - float, 3 - double, 4 - reference
+	 */
+	private static int kindOf(Class<?> type) {
+		if (long.class.equals(type)) {
+			return 1;
+		} else if (float.class.equals(type)) {
+			return 2;
+		} else if (double.class.equals(type)) {
+			return 3;
+		} else if (type.isPrimitive()) {
+			return 0;
+		} else {
+			return 4;
+		}
+	}
+
+	/**
+	 * @return	Kind of the array's element of the given type, as ordered in the array load/store instructions: 0 - int, 1 - long, 2 - float, 3 - double, 4 - reference, 5 - byte (boolean), 6 - char, 7 - short
+	 */
+	private static int arrayKindOf(Class<?> componentType) {
+		if (boolean.class.equals(componentType) || byte.class.equals(componentType)) {
+			return 5;
+		} else if (char.class.equals(componentType)) {
+			return 6;
+		} else if (short.class.equals(componentType)) {
+			return 7;
+		} else {
+			return kindOf(componentType);
+		}
+	}
+
+	private static String internalName(Class<?> clazz) {
+		return clazz.getName().replace('.', '/');
+	}
+
+	private static void writeShort(Bytes out, int value) {
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	private static void writeInt(Bytes out, int value) {
+		out.write(value >>> 24);
+		out.write(value >>> 16);
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	/**
+	 * Growable array of bytes (like the ByteArrayOutputStream, but not synchronized, as each generator is used by a single thread).
+	 */
+	private static final class Bytes {
+		private byte[] data;
+		private int size;
+
+		Bytes(int initialCapacity) {
+			data = new byte[initialCapacity];
+		}
+
+		void write(int b) {
+			if (size == data.length)
+				data = Arrays.copyOf(data, size * 2);
+			data[size++] = (byte) b;
+		}
+
+		void set(int position, int b) {
+			data[position] = (byte) b;
+		}
+
+		void writeTo(Bytes out) {
+			if (out.size + size > out.data.length)
+				out.data = Arrays.copyOf(out.data, Math.max(out.data.length * 2, out.size + size));
+			System.arraycopy(data, 0, out.data, out.size, size);
+			out.size += size;
+		}
+
+		int size() {
+			return size;
+		}
+
+		void reset() {
+			size = 0;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package pl.confitura2012.speedrecurence;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress test and benchmark of the memoized call sites (see: {@link Memoizer}) called from many threads at the same time.
+ * <p/>
+ * First, all the threads call the memoized methods for the same arguments (in a different order, while the memo tables grow and get resized)
+ * and the results are checked: every result must be right, every thread must get the very same (remembered) object for a given argument,
+ * and the memo table must hold every argument once.
+ * Then, the throughput (calls per second) is measured for a growing number of threads, for: <ul>
+ * <li> HITS - the results of all the arguments are already remembered </li>
+ * <li> MISSES - each thread calls the memoized method for the new arguments (its own range), so each call inserts a new result </li></ul>
+ * <p/>
+ * Usage: <code>ConcurrentMemoBenchmark [number of arguments] [max number of threads]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class ConcurrentMemoBenchmark {
+	public interface ILongFunction {
+		public long apply(long n);
+	}
+
+	public interface ILabelFunction {
+		public String apply(long n);
+	}
+
+	private static final AtomicLong invocations = new AtomicLong();
+
+	/**
+	 * The memoized method (with a primitive result).
+	 */
+	public static long mix(long n) {
+		invocations.incrementAndGet();
+		return expectedMix(n);
+	}
+
+	private static long expectedMix(long n) {
+		long h = n * 0x9e3779b97f4a7c15L;
+		return h ^ (h >>> 29);
+	}
+
+	/**
+	 * The memoized method (with a new object as the result, so the threads can check that they got the remembered one).
+	 */
+	public static String label(long n) {
+		return "label " + n;
+	}
+
+	private static final int DEFAULT_NUMBER_OF_ARGUMENTS = 200_000;
+	private static final long NUMBER_OF_CALLS = 20_000_000;
+	private static final int NUMBER_OF_STRESS_ROUNDS = 5;
+	private static final MethodType BSM_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Class.class);
+
+	public static void main(String args[]) throws Throwable {
+		int numberOfArguments = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUMBER_OF_ARGUMENTS;
+		int maxNumberOfThreads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		StressTestConcurrentMemo(Math.max(maxNumberOfThreads, 4), numberOfArguments);
+		for (int threads = 1; threads <= maxNumberOfThreads; threads *= 2) {
+			BenchmarkHits(threads, numberOfArguments);
+			BenchmarkMisses(threads, numberOfArguments);
+		}
+	}
+
+	private static ILongFunction prepareMix() throws Throwable {
+		return InvokeDynamic.prepareInvoker(ILongFunction.class, "mix", "memoize", Memoizer.class, BSM_TYPE, ConcurrentMemoBenchmark.class);
+	}
+
+	public static void StressTestConcurrentMemo(int numberOfThreads, final int numberOfArguments) throws Throwable {
+		System.out.println("\nStress test CONCURRENT MEMO, THREADS: " + numberOfThreads + ", ARGUMENTS: " + numberOfArguments);
+		final ILongFunction mix = prepareMix();
+		final ILabelFunction label = InvokeDynamic.prepareInvoker(ILabelFunction.class, "label", "memoize", Memoizer.class, BSM_TYPE, ConcurrentMemoBenchmark.class);
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		try {
+			for (int round = 0; round < NUMBER_OF_STRESS_ROUNDS; round++) {
+				Memoizer.clear(ConcurrentMemoBenchmark.class);
+				invocations.set(0);
+				final CountDownLatch startSignal = new CountDownLatch(1);
+
+				List<Future<String[]>> results = new ArrayList<Future<String[]>>();
+				for (int t = 0; t < numberOfThreads; t++) {
+					final int threadNumber = t;
+					results.add(executor.submit(new Callable<String[]>() {
+						@Override
+						public String[] call() throws Exception {
+							int[] order = shuffledArguments(numberOfArguments, new Random(threadNumber));
+							String[] labels = new String[numberOfArguments];
+							startSignal.await();
+							for (int n : order) {
+								long result = mix.apply(n);
+								if (result != expectedMix(n))
+									throw new AssertionError("Memoized mix(" + n + ") returned " + result + " instead of " + expectedMix(n));
+								labels[n] = label.apply(n);
+							}
+							return labels;
+						}
+					}));
+				}
+				startSignal.countDown();
+
+				String[] expected = results.get(0).get();
+				for (Future<String[]> result : results) {
+					String[] labels = result.get();
+					for (int n = 0; n < numberOfArguments; n++) {
+						if (labels[n] != expected[n] || !labels[n].equals(label(n)))
+							throw new AssertionError("Threads got different results of label(" + n + ")");
+					}
+				}
+				int size = Memoizer.tableOf(ConcurrentMemoBenchmark.class, "mix", MethodType.methodType(long.class, long.class)).size();
+				if (size != numberOfArguments)
+					throw new AssertionError("The memo table holds " + size + " results for " + numberOfArguments + " arguments");
+				System.out.println("ROUND " + round + ", INVOCATIONS OF THE MEMOIZED METHOD: " + invocations.get()
+									+ " (" + (invocations.get() - numberOfArguments) + " computed again by the racing threads)");
+			}
+			System.out.println("OK, ROUNDS: " + NUMBER_OF_STRESS_ROUNDS);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public static void BenchmarkHits(int numberOfThreads, final int numberOfArguments) throws Throwable {
+		System.out.println("\nBenchmark HITS, THREADS: " + numberOfThreads);
+		Memoizer.clear(ConcurrentMemoBenchmark.class);
+		final ILongFunction mix = prepareMix();
+		for (int n = 0; n < numberOfArguments; n++)
+			mix.apply(n);
+
+		final long callsPerThread = NUMBER_OF_CALLS / numberOfThreads;
+		runThreads(numberOfThreads, callsPerThread, new ThreadBody() {
+			@Override
+			public long run(int threadNumber) {
+				long sum = 0;
+				long n = threadNumber;
+				for (long i = 0; i < callsPerThread; i++) {
+					sum += mix.apply(n);
+					n = (n + 7919) % numberOfArguments;
+				}
+				return sum;
+			}
+		});
+	}
+
+	public static void BenchmarkMisses(int numberOfThreads, int numberOfArguments) throws Throwable {
+		System.out.println("\nBenchmark MISSES, THREADS: " + numberOfThreads);
+		Memoizer.clear(ConcurrentMemoBenchmark.class);
+		final ILongFunction mix = prepareMix();
+
+		final long callsPerThread = numberOfArguments * 10L / numberOfThreads;
+		runThreads(numberOfThreads, callsPerThread, new ThreadBody() {
+			@Override
+			public long run(int threadNumber) {
+				long sum = 0;
+				long firstArgument = threadNumber * callsPerThread;
+				for (long n = firstArgument; n < firstArgument + callsPerThread; n++)
+					sum += mix.apply(n);
+				return sum;
+			}
+		});
+	}
+
+	private interface ThreadBody {
+		long run(int threadNumber);
+	}
+
+	private static void runThreads(int numberOfThreads, long callsPerThread, final ThreadBody body) throws Throwable {
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		try {
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for (int t = 0; t < numberOfThreads; t++) {
+				final int threadNumber = t;
+				results.add(executor.submit(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						startSignal.await();
+						return body.run(threadNumber);
+					}
+				}));
+			}
+
+			long start = System.nanoTime();
+			startSignal.countDown();
+			long sum = 0;
+			for (Future<Long> result : results)
+				sum += result.get();
+			long time = System.nanoTime() - start;
+
+			long calls = callsPerThread * numberOfThreads;
+			System.out.println(sum + ", TIME: " + (time / 1_000_000) + " ms, THROUGHPUT: " + (calls * 1_000_000_000L / time) + " calls/s");
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static int[] shuffledArguments(int numberOfArguments, Random random) {
+		int[] arguments = new int[numberOfArguments];
+		for (int i = 0; i < numberOfArguments; i++)
+			arguments[i] = i;
+		for (int i = numberOfArguments - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int swap = arguments[i];
+			arguments[i] = arguments[j];
+			arguments[j] = swap;
+		}
+		return arguments;
+	}
+}
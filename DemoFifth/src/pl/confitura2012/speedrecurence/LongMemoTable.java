@@ -0,0 +1,168 @@
+package pl.confitura2012.speedrecurence;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Memo table of the primitive arguments and results (see: {@link MemoTable}), kept as longs in an open addressing table (linear probing),
+ * so neither the lookup nor the insert allocates (no boxing).
+ * <p/>
+ * The table is an array of the pairs: the key and the value (the key 0 marks an empty slot, the result of the key 0 is kept in the extra, last pair).
+ * A lookup reads the current array once and probes it without any lock. An insert (under the table's lock) writes the value before the key,
+ * so a lookup which finds the key also sees its value. The array is resized (at half full) by copying it into a new one,
+ * which is then published: the lookups still probing the old array are not stopped and find the very same results there.
+ * The capacity reached is kept by {@link #clear}, so refilling the cleared table resizes it no more,
+ * and the table can be presized for the expected number of the results (see: {@link MemoTable#PRESIZED}), so filling it never resizes it.
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public final class LongMemoTable extends MemoTable {
+	/**
+	 * The array of the table, never changed after being replaced (by a resize or a clear).
+	 */
+	static final class Entries {
+		final AtomicLongArray slots;
+		final int mask;
+
+		Entries(int capacity) {
+			slots = new AtomicLongArray(2 * capacity + 2);
+			mask = capacity - 1;
+		}
+	}
+
+	private volatile Entries entries;
+	private int size;
+
+	LongMemoTable() {
+		this(0);
+	}
+
+	/**
+	 * @param	expectedSize Expected number of the remembered results, for which the table is presized (see: {@link MemoTable#capacityFor})
+	 */
+	LongMemoTable(int expectedSize) {
+		entries = new Entries(capacityFor(expectedSize));
+	}
+
+	private static final MethodHandle ENTRIES;
+	private static final MethodHandle FIND;
+	private static final MethodHandle IS_FOUND;
+	private static final MethodHandle VALUE_AT;
+	private static final MethodHandle UPDATE;
+	static {
+		Lookup lookup = MethodHandles.lookup();
+		try {
+			ENTRIES = lookup.findVirtual(LongMemoTable.class, "entries", MethodType.methodType(Entries.class));
+			FIND = lookup.findStatic(LongMemoTable.class, "find", MethodType.methodType(int.class, Entries.class, long.class));
+			IS_FOUND = lookup.findStatic(LongMemoTable.class, "isFound", MethodType.methodType(boolean.class, int.class));
+			VALUE_AT = lookup.findStatic(LongMemoTable.class, "valueAt", MethodType.methodType(long.class, int.class, Entries.class));
+			UPDATE = lookup.findVirtual(LongMemoTable.class, "update", MethodType.methodType(long.class, long.class, long.class));
+		} catch (ReflectiveOperationException e) {
+			throw (AssertionError) new AssertionError().initCause(e);
+		}
+	}
+
+	@Override
+	MethodHandle memoize(MethodHandle target) {
+		MethodType type = target.type();
+		MethodHandle longTarget = withLongResult(withLongParameter(target));
+
+		//(long)long: target's result remembered by the update
+		MethodHandle fallback = MethodHandles.foldArguments(UPDATE.bindTo(this), longTarget);
+		//(int index, Entries, long)long: the value found at the index, or the fallback
+		MethodHandle combiner = MethodHandles.guardWithTest(IS_FOUND, MethodHandles.dropArguments(VALUE_AT, 2, long.class),
+															MethodHandles.dropArguments(fallback, 0, int.class, Entries.class));
+		MethodHandle memoize = MethodHandles.foldArguments(combiner, FIND);
+		memoize = MethodHandles.foldArguments(memoize, ENTRIES.bindTo(this));
+		return withParameter(withResult(memoize, type.returnType()), type.parameterType(0));
+	}
+
+	@SuppressWarnings("unused")
+	private Entries entries() {
+		return entries;
+	}
+
+	/**
+	 * @return	Index of the key's value in the array, or -1 if the key is not in the array
+	 */
+	static int find(Entries entries, long key) {
+		AtomicLongArray slots = entries.slots;
+		if (key == 0) {
+			int zeroKey = slots.length() - 2;
+			return (slots.get(zeroKey) != 0) ? zeroKey + 1 : -1;
+		}
+		for (int i = hash(key) & entries.mask; ; i = (i + 1) & entries.mask) {
+			long slotKey = slots.get(2 * i);
+			if (slotKey == key)
+				return 2 * i + 1;
+			if (slotKey == 0)
+				return -1;
+		}
+	}
+
+	static boolean isFound(int index) {
+		return index >= 0;
+	}
+
+	static long valueAt(int index, Entries entries) {
+		return entries.slots.get(index);
+	}
+
+	/**
+	 * Remembers the result (unless a racing thread has already remembered one for the key).
+	 *
+	 * @return	The remembered result
+	 */
+	@SuppressWarnings("unused")
+	private synchronized long update(long result, long key) {
+		Entries current = entries;
+		int index = find(current, key);
+		if (index >= 0)
+			return current.slots.get(index);
+
+		if (2 * (size + 1) > current.mask + 1) {
+			Entries resized = new Entries(2 * (current.mask + 1));
+			for (int i = 0; i < current.slots.length() - 2; i += 2) {
+				if (current.slots.get(i) != 0)
+					insert(resized, current.slots.get(i), current.slots.get(i + 1));
+			}
+			int zeroKey = current.slots.length() - 2;
+			if (current.slots.get(zeroKey) != 0)
+				insert(resized, 0, current.slots.get(zeroKey + 1));
+			entries = resized;
+			current = resized;
+		}
+		insert(current, key, result);
+		size++;
+		return result;
+	}
+
+	private static void insert(Entries entries, long key, long value) {
+		AtomicLongArray slots = entries.slots;
+		int keyIndex = slots.length() - 2;
+		if (key != 0) {
+			int i = hash(key) & entries.mask;
+			while (slots.get(2 * i) != 0)
+				i = (i + 1) & entries.mask;
+			keyIndex = 2 * i;
+		}
+		slots.lazySet(keyIndex + 1, value);
+		slots.lazySet(keyIndex, (key != 0) ? key : 1);
+	}
+
+	@Override
+	public synchronized int size() {
+		return size;
+	}
+
+	@Override
+	public synchronized void clear() {
+		//a new, empty array of the capacity already reached (the lookups still probing the old one find the old results there)
+		entries = new Entries(entries.mask + 1);
+		size = 0;
+	}
+}
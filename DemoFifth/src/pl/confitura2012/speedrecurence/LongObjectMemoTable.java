@@ -0,0 +1,162 @@
+package pl.confitura2012.speedrecurence;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Memo table of the primitive arguments and the object results (see: {@link MemoTable}): the arguments are kept as longs in an open addressing table
+ * (linear probing, the same way as in {@link LongMemoTable}), next to the array of the results, so neither the lookup nor the insert allocates.
+ * The key 0 marks an empty slot, the result of the key 0 is kept in the extra, last slot of the results.
+ * A null result is not remembered (the method is invoked again for that argument).
+ * As in {@link LongMemoTable}, the capacity reached is kept by {@link #clear}, and the table can be presized (see: {@link MemoTable#PRESIZED}).
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public final class LongObjectMemoTable extends MemoTable {
+	/**
+	 * The arrays of the table, never changed after being replaced (by a resize or a clear).
+	 */
+	static final class Entries {
+		final AtomicLongArray keys;
+		final AtomicReferenceArray<Object> values;
+		final int mask;
+
+		Entries(int capacity) {
+			keys = new AtomicLongArray(capacity);
+			values = new AtomicReferenceArray<Object>(capacity + 1);
+			mask = capacity - 1;
+		}
+	}
+
+	private volatile Entries entries;
+	private int size;
+
+	LongObjectMemoTable() {
+		this(0);
+	}
+
+	/**
+	 * @param	expectedSize Expected number of the remembered results, for which the table is presized (see: {@link MemoTable#capacityFor})
+	 */
+	LongObjectMemoTable(int expectedSize) {
+		entries = new Entries(capacityFor(expectedSize));
+	}
+
+	private static final MethodHandle ENTRIES;
+	private static final MethodHandle FIND;
+	private static final MethodHandle IS_FOUND;
+	private static final MethodHandle VALUE_AT;
+	private static final MethodHandle UPDATE;
+	static {
+		Lookup lookup = MethodHandles.lookup();
+		try {
+			ENTRIES = lookup.findVirtual(LongObjectMemoTable.class, "entries", MethodType.methodType(Entries.class));
+			FIND = lookup.findStatic(LongObjectMemoTable.class, "find", MethodType.methodType(int.class, Entries.class, long.class));
+			IS_FOUND = lookup.findStatic(LongObjectMemoTable.class, "isFound", MethodType.methodType(boolean.class, int.class));
+			VALUE_AT = lookup.findStatic(LongObjectMemoTable.class, "valueAt", MethodType.methodType(Object.class, int.class, Entries.class));
+			UPDATE = lookup.findVirtual(LongObjectMemoTable.class, "update", MethodType.methodType(Object.class, Object.class, long.class));
+		} catch (ReflectiveOperationException e) {
+			throw (AssertionError) new AssertionError().initCause(e);
+		}
+	}
+
+	@Override
+	MethodHandle memoize(MethodHandle target) {
+		MethodType type = target.type();
+		MethodHandle longTarget = withLongParameter(target).asType(MethodType.methodType(Object.class, long.class));
+
+		MethodHandle fallback = MethodHandles.foldArguments(UPDATE.bindTo(this), longTarget);
+		MethodHandle combiner = MethodHandles.guardWithTest(IS_FOUND, MethodHandles.dropArguments(VALUE_AT, 2, long.class),
+															MethodHandles.dropArguments(fallback, 0, int.class, Entries.class));
+		MethodHandle memoize = MethodHandles.foldArguments(combiner, FIND);
+		memoize = MethodHandles.foldArguments(memoize, ENTRIES.bindTo(this));
+		return withParameter(memoize.asType(MethodType.methodType(type.returnType(), long.class)), type.parameterType(0));
+	}
+
+	@SuppressWarnings("unused")
+	private Entries entries() {
+		return entries;
+	}
+
+	/**
+	 * @return	Index of the key's value in the array of the results, or -1 if the key is not in the table
+	 */
+	static int find(Entries entries, long key) {
+		if (key == 0)
+			return (entries.values.get(entries.mask + 1) != null) ? entries.mask + 1 : -1;
+		for (int i = hash(key) & entries.mask; ; i = (i + 1) & entries.mask) {
+			long slotKey = entries.keys.get(i);
+			if (slotKey == key)
+				return i;
+			if (slotKey == 0)
+				return -1;
+		}
+	}
+
+	static boolean isFound(int index) {
+		return index >= 0;
+	}
+
+	static Object valueAt(int index, Entries entries) {
+		return entries.values.get(index);
+	}
+
+	/**
+	 * Remembers the result (unless a racing thread has already remembered one for the key).
+	 *
+	 * @return	The remembered result
+	 */
+	@SuppressWarnings("unused")
+	private synchronized Object update(Object result, long key) {
+		if (result == null)
+			return null;
+		Entries current = entries;
+		int index = find(current, key);
+		if (index >= 0)
+			return current.values.get(index);
+
+		if (2 * (size + 1) > current.mask + 1) {
+			Entries resized = new Entries(2 * (current.mask + 1));
+			for (int i = 0; i <= current.mask; i++) {
+				if (current.keys.get(i) != 0)
+					insert(resized, current.keys.get(i), current.values.get(i));
+			}
+			if (current.values.get(current.mask + 1) != null)
+				insert(resized, 0, current.values.get(current.mask + 1));
+			entries = resized;
+			current = resized;
+		}
+		insert(current, key, result);
+		size++;
+		return result;
+	}
+
+	private static void insert(Entries entries, long key, Object value) {
+		if (key == 0) {
+			entries.values.lazySet(entries.mask + 1, value);
+			return;
+		}
+		int i = hash(key) & entries.mask;
+		while (entries.keys.get(i) != 0)
+			i = (i + 1) & entries.mask;
+		entries.values.lazySet(i, value);
+		entries.keys.lazySet(i, key);
+	}
+
+	@Override
+	public synchronized int size() {
+		return size;
+	}
+
+	@Override
+	public synchronized void clear() {
+		//a new, empty array of the capacity already reached (the lookups still probing the old one find the old results there)
+		entries = new Entries(entries.mask + 1);
+		size = 0;
+	}
+}
@@ -0,0 +1,162 @@
+package pl.confitura2012.speedrecurence;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+
+/**
+ * Memo table of a memoized method (see: {@link Memoizer}), remembering the method's results by its (single) argument.
+ * The table builds the memoizing MethodHandle of the method: it looks the argument up in the table and returns the remembered result,
+ * or (on a miss) invokes the method and remembers its result.
+ * <p/>
+ * The table is chosen by the type of the memoized method (see: {@link #forType}): <ul>
+ * <li> a primitive argument and a primitive result - {@link LongMemoTable} (the argument and the result kept as longs, nothing boxed) </li>
+ * <li> a primitive argument and an object result - {@link LongObjectMemoTable} (the argument kept as a long) </li>
+ * <li> otherwise - {@link ObjectMemoTable} (a <code>ConcurrentHashMap</code> of the boxed arguments and results) </li></ul>
+ * unless the table is bounded by the options (the eviction policy and the capacity) - then it is a {@link BoundedMemoTable}, of any type,
+ * or the options select the off-heap table ({@value OffHeapMemoTable#OFF_HEAP}) - then it is an {@link OffHeapMemoTable},
+ * or the persistent table ({@value PersistentMemoTable#PERSISTENT}) - then it is a {@link PersistentMemoTable}.
+ * With the options {@value #PRESIZED} and the expected number of the results, the (unbounded) table of the type is presized for them.
+ * All the tables can be used from many threads: the lookups are lock-free, and the racing threads get the first remembered result.
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public abstract class MemoTable {
+	/**
+	 * Name of the option (the bootstrap argument, followed by the expected number of the results) presizing the table.
+	 */
+	public static final String PRESIZED = "PRESIZED";
+	private static final int MIN_CAPACITY = 64;
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private static final MethodHandle DOUBLE_TO_BITS;
+	private static final MethodHandle BITS_TO_DOUBLE;
+	static {
+		try {
+			DOUBLE_TO_BITS = MethodHandles.lookup().findStatic(Double.class, "doubleToRawLongBits", MethodType.methodType(long.class, double.class));
+			BITS_TO_DOUBLE = MethodHandles.lookup().findStatic(Double.class, "longBitsToDouble", MethodType.methodType(double.class, long.class));
+		} catch (ReflectiveOperationException e) {
+			throw (AssertionError) new AssertionError().initCause(e);
+		}
+	}
+
+	/**
+	 * @param	target MethodHandle of the memoized method
+	 * @return	MethodHandle (of the target's type) returning the remembered result, or invoking the target and remembering its result
+	 */
+	abstract MethodHandle memoize(MethodHandle target);
+
+	/**
+	 * @return	Number of the remembered results
+	 */
+	public abstract int size();
+
+	/**
+	 * Forgets all the remembered results.
+	 */
+	public abstract void clear();
+
+	/**
+	 * @param	method Name of the memoized method, with its class and descriptor
+	 * @param	type Type of the memoized method
+	 * @param	options Options of the table: the eviction policy and the capacity (see: {@link BoundedMemoTable#of}),
+	 * 			or {@value OffHeapMemoTable#OFF_HEAP} (see: {@link OffHeapMemoTable#of}),
+	 * 			or {@value PersistentMemoTable#PERSISTENT} and the snapshot's file (see: {@link PersistentMemoTable#of}),
+	 * 			or {@value #PRESIZED} and the expected number of the results (an Integer), or none
+	 * @return	New memo table, specialized for the type of the method's argument and result
+	 */
+	static MemoTable forType(String method, MethodType type, Object... options) {
+		if (options.length > 0 && PRESIZED.equals(options[0])) {
+			if (options.length != 2 || !(options[1] instanceof Integer) || (Integer) options[1] < 0)
+				throw new IllegalArgumentException("No expected number of the results of the presized memo table in the bootstrap arguments: " + Arrays.toString(options));
+			return unbounded(type, (Integer) options[1]);
+		}
+		if (options.length > 0 && PersistentMemoTable.PERSISTENT.equals(options[0]))
+			return PersistentMemoTable.of(method, type, options);
+		if (options.length > 0 && OffHeapMemoTable.OFF_HEAP.equals(options[0]))
+			return OffHeapMemoTable.of(type, options);
+		if (options.length > 0)
+			return BoundedMemoTable.of(options);
+		return unbounded(type, 0);
+	}
+
+	/**
+	 * @param	type Type of the memoized method
+	 * @param	expectedSize Expected number of the results (0, if not known)
+	 * @return	New unbounded memo table, specialized for the type of the method's argument and result
+	 */
+	private static MemoTable unbounded(MethodType type, int expectedSize) {
+		if (!type.parameterType(0).isPrimitive() || type.returnType() == void.class)
+			return new ObjectMemoTable(expectedSize);
+		return type.returnType().isPrimitive() ? new LongMemoTable(expectedSize) : new LongObjectMemoTable(expectedSize);
+	}
+
+	/**
+	 * @return	Capacity (a power of two) of the open addressing table, at which the expected number of the results keeps the table at most half full
+	 * 			(i.e. it is never resized while being filled)
+	 */
+	static int capacityFor(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < 2L * expectedSize && capacity < MAX_CAPACITY)
+			capacity <<= 1;
+		return capacity;
+	}
+
+	/**
+	 * Adapts the target with a primitive parameter to a long parameter: integral values (and char, boolean) are widened to long,
+	 * floating point values are taken as the bits of a double (so, e.g., -0.0 and 0.0 are different arguments).
+	 */
+	static MethodHandle withLongParameter(MethodHandle target) {
+		Class<?> parameterType = target.type().parameterType(0);
+		if (parameterType == double.class || parameterType == float.class) {
+			MethodHandle doubleTarget = MethodHandles.explicitCastArguments(target, target.type().changeParameterType(0, double.class));
+			return MethodHandles.filterArguments(doubleTarget, 0, BITS_TO_DOUBLE);
+		}
+		return MethodHandles.explicitCastArguments(target, target.type().changeParameterType(0, long.class));
+	}
+
+	/**
+	 * Reverse of {@link #withLongParameter}: adapts the MethodHandle with a long parameter to the given primitive parameter type.
+	 */
+	static MethodHandle withParameter(MethodHandle memoized, Class<?> parameterType) {
+		if (parameterType == double.class || parameterType == float.class) {
+			MethodHandle doubleMemoized = MethodHandles.filterArguments(memoized, 0, DOUBLE_TO_BITS);
+			return MethodHandles.explicitCastArguments(doubleMemoized, doubleMemoized.type().changeParameterType(0, parameterType));
+		}
+		return MethodHandles.explicitCastArguments(memoized, memoized.type().changeParameterType(0, parameterType));
+	}
+
+	/**
+	 * Adapts the target with a primitive result to a long result (the same way {@link #withLongParameter} adapts the parameter).
+	 */
+	static MethodHandle withLongResult(MethodHandle target) {
+		Class<?> returnType = target.type().returnType();
+		if (returnType == double.class || returnType == float.class) {
+			MethodHandle doubleTarget = MethodHandles.explicitCastArguments(target, target.type().changeReturnType(double.class));
+			return MethodHandles.filterReturnValue(doubleTarget, DOUBLE_TO_BITS);
+		}
+		return MethodHandles.explicitCastArguments(target, target.type().changeReturnType(long.class));
+	}
+
+	/**
+	 * Reverse of {@link #withLongResult}: adapts the MethodHandle with a long result to the given primitive result type.
+	 */
+	static MethodHandle withResult(MethodHandle memoized, Class<?> returnType) {
+		if (returnType == double.class || returnType == float.class) {
+			MethodHandle doubleMemoized = MethodHandles.filterReturnValue(memoized, BITS_TO_DOUBLE);
+			return MethodHandles.explicitCastArguments(doubleMemoized, doubleMemoized.type().changeReturnType(returnType));
+		}
+		return MethodHandles.explicitCastArguments(memoized, memoized.type().changeReturnType(returnType));
+	}
+
+	/**
+	 * @return	Hash of the long key, for the open addressing tables
+	 */
+	static int hash(long key) {
+		int h = (int) (key ^ (key >>> 32));
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+}
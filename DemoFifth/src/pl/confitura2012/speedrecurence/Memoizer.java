@@ -0,0 +1,131 @@
+package pl.confitura2012.speedrecurence;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The memoizing bootstrap method of the SpeedRecurence demos (the idea stolen from the <a href='http://code.google.com/p/jsr292-cookbook'>JSR292 Cookbook</a>):
+ * the call site's target is the static method of the call site's name and type, whose results are remembered (by the argument) in the memo table
+ * of the call site's selector (name and type), so the method is invoked only once per argument.
+ * <p/>
+ * The memo table is chosen by the type of the method (see: {@link MemoTable}): e.g. the results of <code>long fib(long)</code> are kept
+ * in a table of longs, so the memoized call neither boxes the argument nor the result. All the memo tables are concurrent,
+ * so a memoized call site can be called from many threads: the lookups are lock-free, and the tables are resized while the lookups go on
+ * (they never wait for the resize). When many threads compute the result for the same argument at the same time,
+ * the first remembered result is kept and returned to all of them.
+ * <p/>
+ * The memo table of a call site can be bounded with the extra bootstrap arguments: the eviction policy and the capacity
+ * (see: {@link BoundedMemoTable}), e.g. <code>"TINY_LFU", 10000</code> (at most 10000 results) or <code>"LRU", 1048576L</code>
+ * (at most about 1 MB of the arguments and the results). The large results can be kept off the heap, with the bootstrap argument
+ * <code>"OFF_HEAP"</code> (see: {@link OffHeapMemoTable}), or remembered across the restarts of the JVM, in a memory-mapped snapshot,
+ * with the bootstrap arguments <code>"PERSISTENT"</code> and the snapshot's file (see: {@link PersistentMemoTable}).
+ * An unbounded memo table can be presized for the expected number of the results, with the bootstrap arguments
+ * <code>"PRESIZED"</code> and the number, e.g. <code>"PRESIZED", 100000</code>, so it is not resized while being filled.
+ * The call sites with different bootstrap arguments get different memo tables.
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public final class Memoizer {
+	//method invocation result's buffer: memo tables by the selector, per class of the memoized methods
+	private static ClassValue<ConcurrentMap<String, MemoTable>> cacheTables = new ClassValue<ConcurrentMap<String, MemoTable>>() {
+		@Override
+		protected ConcurrentMap<String, MemoTable> computeValue(Class<?> type) {
+			return new ConcurrentHashMap<String, MemoTable>();
+		}
+	};
+
+	/**
+	 * Name of the system property with the directory of the memo snapshots of the demos (see: {@link #snapshotOptions}).
+	 */
+	public static final String SNAPSHOT_DIRECTORY_PROPERTY = "memoizer.snapshotDirectory";
+
+	private Memoizer() {
+	}
+
+	/**
+	 * @param	staticType Class of the memoized method
+	 * @param	name Name of the memoized method
+	 * @return	The bootstrap arguments selecting the persistent memo table (see: {@link PersistentMemoTable}) with the snapshot in the directory
+	 * 			given by the {@value #SNAPSHOT_DIRECTORY_PROPERTY} system property, or none (if the property is not set)
+	 */
+	public static Object[] snapshotOptions(Class<?> staticType, String name) {
+		String directory = System.getProperty(SNAPSHOT_DIRECTORY_PROPERTY);
+		if (directory == null)
+			return new Object[0];
+		return new Object[] { PersistentMemoTable.PERSISTENT, Paths.get(directory, staticType.getName() + "." + name + ".memo").toString() };
+	}
+
+	/**
+	 * BSM - bootstrap method, returns the call site of the memoized method.
+	 *
+	 * @param	lookup Lookup of the caller
+	 * @param	name Name of the memoized method (and of the call site)
+	 * @param	type Type of the memoized method, with a single parameter (the argument the results are remembered by)
+	 * @param	staticType Class of the memoized method
+	 * @return	The call site
+	 */
+	public static CallSite memoize(Lookup lookup, String name, MethodType type, Class<?> staticType) throws ReflectiveOperationException {
+		MethodHandle target = lookup.findStatic(staticType, name, type);
+		return new ConstantCallSite(tableOf(staticType, name, type).memoize(target));
+	}
+
+	/**
+	 * BSM - bootstrap method, returns the call site of the memoized method, with the memo table chosen by the bootstrap arguments.
+	 *
+	 * @param	lookup Lookup of the caller
+	 * @param	name Name of the memoized method (and of the call site)
+	 * @param	type Type of the memoized method, with a single parameter (the argument the results are remembered by)
+	 * @param	staticType Class of the memoized method
+	 * @param	bsmArgs Options of the memo table: the eviction policy and the capacity (see: {@link BoundedMemoTable#of}),
+	 * 			or <code>"OFF_HEAP"</code> (see: {@link OffHeapMemoTable#of}), or <code>"PERSISTENT"</code> and the snapshot's file
+	 * 			(see: {@link PersistentMemoTable#of}), or <code>"PRESIZED"</code> and the expected number of the results, or none (an unbounded table)
+	 * @return	The call site
+	 */
+	public static CallSite memoize(Lookup lookup, String name, MethodType type, Class<?> staticType, Object... bsmArgs) throws ReflectiveOperationException {
+		MethodHandle target = lookup.findStatic(staticType, name, type);
+		return new ConstantCallSite(tableOf(staticType, name, type, bsmArgs).memoize(target));
+	}
+
+	/**
+	 * @param	staticType Class of the memoized method
+	 * @param	name Name of the memoized method
+	 * @param	type Type of the memoized method
+	 * @param	options Options of the memo table (see: {@link MemoTable#forType})
+	 * @return	The memo table of the memoized method (shared by all its call sites with the same options)
+	 */
+	static MemoTable tableOf(Class<?> staticType, String name, MethodType type, Object... options) {
+		ConcurrentMap<String, MemoTable> cacheTable = cacheTables.get(staticType);
+
+		String selector = name + type.toMethodDescriptorString() + ((options.length > 0) ? Arrays.toString(options) : "");
+		MemoTable cache = cacheTable.get(selector);
+		if (cache == null) {
+			//created once, under the lock (a persistent memo table opens its files)
+			synchronized (cacheTable) {
+				cache = cacheTable.get(selector);
+				if (cache == null) {
+					cache = MemoTable.forType(staticType.getName() + "." + name + type.toMethodDescriptorString(), type, options);
+					cacheTable.put(selector, cache);
+				}
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * Forgets the remembered results of all the memoized methods of the class (e.g. between the runs of a benchmark).
+	 *
+	 * @param	staticType Class of the memoized methods
+	 */
+	public static void clear(Class<?> staticType) {
+		for (MemoTable cache : cacheTables.get(staticType).values())
+			cache.clear();
+	}
+}
@@ -0,0 +1,93 @@
+package pl.confitura2012.speedrecurence;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Memo table of the boxed arguments and results (see: {@link MemoTable}), a <code>ConcurrentHashMap</code>:
+ * the lookups are lock-free, a new result is inserted with a CAS into an empty bin (or under the lock of its bin only), and the table is resized
+ * by the inserting threads together, while the lookups go on (they never wait for the resize).
+ * A null result is not remembered (the method is invoked again for that argument).
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public final class ObjectMemoTable extends MemoTable {
+	private final ConcurrentMap<Object, Object> cache;
+
+	ObjectMemoTable() {
+		this(0);
+	}
+
+	/**
+	 * @param	expectedSize Expected number of the remembered results, for which the map is presized
+	 */
+	ObjectMemoTable(int expectedSize) {
+		cache = new ConcurrentHashMap<Object, Object>(expectedSize);
+	}
+
+	//helper methods
+	public static boolean notNull(Object receiver) {
+		return receiver != null;
+	}
+
+	public static Object update(ConcurrentMap<Object, Object> cache, Object result, Object arg) {
+		if (result == null)
+			return null;
+		Object previous = cache.putIfAbsent(arg, result);
+		return (previous != null) ? previous : result;
+	}
+
+	private static final MethodHandle NOT_NULL;
+	private static final MethodHandle MAP_GET;
+	private static final MethodHandle UPDATE;
+	static {
+		Lookup lookup = MethodHandles.lookup();
+		try {
+			NOT_NULL = lookup.findStatic(ObjectMemoTable.class, "notNull", MethodType.methodType(boolean.class, Object.class));
+			MAP_GET = lookup.findVirtual(ConcurrentMap.class, "get", MethodType.methodType(Object.class, Object.class));
+			UPDATE = lookup.findStatic(ObjectMemoTable.class, "update",
+					MethodType.methodType(Object.class, ConcurrentMap.class, Object.class, Object.class));
+
+		} catch (ReflectiveOperationException e) {
+			throw (AssertionError) new AssertionError().initCause(e);
+		}
+	}
+
+	//warning ! stolen code ahead ! (http://code.google.com/p/jsr292-cookbook)
+	@Override
+	MethodHandle memoize(MethodHandle target) {
+		MethodType type = target.type();
+
+		MethodHandle identity = MethodHandles.identity(type.returnType());
+		identity = identity.asType(identity.type().changeParameterType(0, Object.class));
+		identity = MethodHandles.dropArguments(identity, 1, type.parameterType(0));
+
+		MethodHandle update = UPDATE.bindTo(cache);
+		update = update.asType(type.insertParameterTypes(0, type.returnType()));
+
+		MethodHandle fallback = MethodHandles.foldArguments(update, target);
+		fallback = MethodHandles.dropArguments(fallback, 0, Object.class);
+
+		MethodHandle combiner = MethodHandles.guardWithTest(NOT_NULL, identity, fallback);
+
+		MethodHandle cacheQuerier = MAP_GET.bindTo(cache);
+		cacheQuerier = cacheQuerier.asType(MethodType.methodType(Object.class, type.parameterType(0)));
+
+		return MethodHandles.foldArguments(combiner, cacheQuerier);
+	}
+
+	@Override
+	public int size() {
+		return cache.size();
+	}
+
+	@Override
+	public void clear() {
+		cache.clear();
+	}
+}
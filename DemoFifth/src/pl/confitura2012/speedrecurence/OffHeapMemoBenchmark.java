@@ -0,0 +1,136 @@
+package pl.confitura2012.speedrecurence;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+
+/**
+ * Benchmark of the off-heap memo table (see: {@link OffHeapMemoTable}) against the memo table on the heap (see: {@link ObjectMemoTable}),
+ * for the memoized Fibonacci numbers of the {@link SpeedRecurenceWithIndyUsingBigInteger} demo (with many more of them, so the results
+ * take tens of megabytes). For each of the tables, the following is reported: <ul>
+ * <li> MISSES - time of computing (and remembering) all the Fibonacci numbers </li>
+ * <li> HEAP - the heap used by the memo table (after a full GC, compared to the heap used before) and the direct memory used by it </li>
+ * <li> GC - time of the GCs during the computing, and the pause of a full GC (System.gc()) with all the results remembered </li>
+ * <li> HITS - time of the call which finds the result in the memo table (for the off-heap table: with deserializing the result) </li></ul>
+ * The results of both tables are compared, so both must remember the very same numbers.
+ * <p/>
+ * Usage: <code>OffHeapMemoBenchmark [how many numbers]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class OffHeapMemoBenchmark {
+	private static MethodHandle mhDynamic = null;
+
+	public static BigInteger fib(BigInteger n) throws Throwable {
+		if (n.equals(BigInteger.ZERO))
+			return BigInteger.ZERO;
+
+		if (n.equals(BigInteger.ONE))
+			return BigInteger.ONE;
+
+		return ((BigInteger) mhDynamic.invokeExact(n.subtract(BigInteger.ONE))).add((BigInteger) mhDynamic.invokeExact(n.subtract(BigInteger.valueOf(2))));
+	}
+
+	private static final int DEFAULT_HOW_MANY_NUMBERS = 30_000;
+	private static final int NUMBER_OF_HIT_ROUNDS = 10;
+	private static final int NUMBER_OF_REPEATS = 3;
+	private static final MethodType TYPE = MethodType.methodType(BigInteger.class, BigInteger.class);
+	private static final MethodType BSM_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Class.class, Object[].class);
+
+	public static void main(String args[]) throws Throwable {
+		int howManyNumbers = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_HOW_MANY_NUMBERS;
+
+		BigInteger onHeapSum = null;
+		BigInteger offHeapSum = null;
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			onHeapSum = BenchmarkMemo("ON HEAP", howManyNumbers);
+			offHeapSum = BenchmarkMemo("OFF HEAP", howManyNumbers, OffHeapMemoTable.OFF_HEAP);
+		}
+		if (!onHeapSum.equals(offHeapSum))
+			throw new AssertionError("The off-heap memo table remembered different Fibonacci numbers");
+	}
+
+	public static BigInteger BenchmarkMemo(String name, int howManyNumbers, Object... options) throws Throwable {
+		System.out.println("\nBenchmark " + name + ", NUMBERS: " + howManyNumbers);
+		Memoizer.clear(OffHeapMemoBenchmark.class);
+		long heapBefore = usedHeapAfterFullGC();
+		long directBefore = usedDirectMemory();
+
+		Object[] bsmArgs = new Object[options.length + 1];
+		bsmArgs[0] = OffHeapMemoBenchmark.class;
+		System.arraycopy(options, 0, bsmArgs, 1, options.length);
+		mhDynamic = InvokeDynamic.prepare("fib", TYPE, "memoize", Memoizer.class, BSM_TYPE, bsmArgs);
+
+		long gcBefore = gcTime();
+		long start = System.nanoTime();
+		BigInteger sum = BigInteger.ZERO;
+		for (long i = 0; i < howManyNumbers; i++)
+			sum = sum.add((BigInteger) mhDynamic.invokeExact(BigInteger.valueOf(i)));
+		long missTime = System.nanoTime() - start;
+		long missGcTime = gcTime() - gcBefore;
+
+		long heap = usedHeapAfterFullGC() - heapBefore;
+		long direct = usedDirectMemory() - directBefore;
+		long fullGcPause = fullGcPause();
+
+		BigInteger[] arguments = new BigInteger[howManyNumbers];
+		for (int i = 0; i < howManyNumbers; i++)
+			arguments[i] = BigInteger.valueOf(i);
+		start = System.nanoTime();
+		long bits = 0;
+		for (int round = 0; round < NUMBER_OF_HIT_ROUNDS; round++) {
+			for (BigInteger n : arguments)
+				bits += ((BigInteger) mhDynamic.invokeExact(n)).bitLength();
+		}
+		long hitTime = System.nanoTime() - start;
+
+		MemoTable table = Memoizer.tableOf(OffHeapMemoBenchmark.class, "fib", TYPE, options);
+		System.out.println("MISSES: " + (missTime / 1_000_000) + " ms (GC: " + missGcTime + " ms)"
+							+ ", HEAP: " + (heap / 1024) + " KB, DIRECT: " + (direct / 1024) + " KB"
+							+ ((table instanceof OffHeapMemoTable) ? " (" + (((OffHeapMemoTable) table).getOffHeapBytes() / 1024) + " KB of results)" : "")
+							+ ", FULL GC PAUSE: " + fullGcPause + " ms"
+							+ ", HITS: " + (hitTime / ((long) NUMBER_OF_HIT_ROUNDS * howManyNumbers)) + " ns/call (" + (bits / NUMBER_OF_HIT_ROUNDS / howManyNumbers) + " bits/result)");
+		return sum;
+	}
+
+	private static long usedHeapAfterFullGC() throws InterruptedException {
+		System.gc();
+		System.gc();
+		//the direct memory of the collected buffers is freed by their cleaners, after the GC
+		Thread.sleep(100);
+		return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+	}
+
+	private static long usedDirectMemory() {
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			if (pool.getName().equals("direct"))
+				return pool.getMemoryUsed();
+		}
+		return 0;
+	}
+
+	/**
+	 * @return	Total time (in ms) of all the GCs so far
+	 */
+	private static long gcTime() {
+		long time = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+			time += Math.max(0, gc.getCollectionTime());
+		return time;
+	}
+
+	/**
+	 * @return	Time (in ms) of a full GC
+	 */
+	private static long fullGcPause() {
+		long start = System.nanoTime();
+		System.gc();
+		return (System.nanoTime() - start) / 1_000_000;
+	}
+}
@@ -0,0 +1,286 @@
+package pl.confitura2012.speedrecurence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Memo table keeping the results off the heap (see: {@link MemoTable}), e.g. for the large results (like the BigIntegers of the Fibonacci numbers),
+ * which would otherwise fill the old generation and make the GC pauses longer (every full GC has to go through all of them).
+ * <p/>
+ * The results are serialized (see: {@link Codec}) into the chunks of the direct memory (direct ByteBuffers, not scanned by the GC),
+ * one after another: the length, then the bytes. The index - the arguments and the locations (the chunk and the offset) of their results - is kept
+ * on the heap, in a <code>ConcurrentHashMap</code>. A hit is lock-free: a lookup of the location in the index, then the result is deserialized
+ * from the chunk (so each hit returns a new copy of the result, unlike the other memo tables). A miss serializes the result,
+ * then appends it to the last chunk and puts its location into the index under the table's lock (so the result of a racing miss
+ * is not appended twice). A null result is not remembered.
+ * <p/>
+ * The direct memory of the chunks is freed when the chunks are garbage collected (after {@link #clear}). A hit racing with the clear finds
+ * no chunk of its location, and is a miss.
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public final class OffHeapMemoTable extends MemoTable {
+	/**
+	 * Name of the option (the bootstrap argument) selecting this table.
+	 */
+	public static final String OFF_HEAP = "OFF_HEAP";
+	private static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+	/**
+	 * Serialization of the results (and of the arguments, see: {@link PersistentMemoTable}), chosen by their type.
+	 */
+	public enum Codec {
+		LONG {
+			@Override
+			byte[] encode(Object value) {
+				return ByteBuffer.allocate(8).putLong((Long) value).array();
+			}
+
+			@Override
+			Object decode(byte[] bytes) {
+				return ByteBuffer.wrap(bytes).getLong();
+			}
+		},
+		BIG_INTEGER {
+			@Override
+			byte[] encode(Object value) {
+				return ((BigInteger) value).toByteArray();
+			}
+
+			@Override
+			Object decode(byte[] bytes) {
+				return new BigInteger(bytes);
+			}
+		},
+		STRING {
+			@Override
+			byte[] encode(Object value) {
+				return ((String) value).getBytes(StandardCharsets.UTF_8);
+			}
+
+			@Override
+			Object decode(byte[] bytes) {
+				return new String(bytes, StandardCharsets.UTF_8);
+			}
+		},
+		/**
+		 * Java serialization (of any other Serializable value, also a boxed primitive).
+		 */
+		SERIALIZABLE {
+			@Override
+			byte[] encode(Object value) {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+					out.writeObject(value);
+				} catch (IOException e) {
+					throw new IllegalArgumentException("Cannot serialize the result: " + value, e);
+				}
+				return bytes.toByteArray();
+			}
+
+			@Override
+			Object decode(byte[] bytes) {
+				try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+					return in.readObject();
+				} catch (IOException | ClassNotFoundException e) {
+					throw new IllegalStateException("Cannot deserialize the result", e);
+				}
+			}
+		};
+
+		abstract byte[] encode(Object value);
+
+		abstract Object decode(byte[] bytes);
+
+		/**
+		 * @param	type Type of the memoized method's argument or result
+		 * @return	The codec of the arguments or results
+		 */
+		static Codec forType(Class<?> type) {
+			if (type == long.class || type == Long.class)
+				return LONG;
+			if (type == BigInteger.class)
+				return BIG_INTEGER;
+			if (type == String.class)
+				return STRING;
+			return SERIALIZABLE;
+		}
+	}
+
+	private final ConcurrentMap<Object, Long> index = new ConcurrentHashMap<Object, Long>();
+	private final Codec codec;
+	private final int chunkSize;
+	private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+	private int position;
+	private long usedBytes;
+
+	/**
+	 * @param	codec Serialization of the results
+	 * @param	chunkSize Size (in bytes) of a chunk of the direct memory (a larger result gets a chunk of its own)
+	 */
+	OffHeapMemoTable(Codec codec, int chunkSize) {
+		if (chunkSize <= 4)
+			throw new IllegalArgumentException("Chunk size of the off-heap memo table is too small: " + chunkSize);
+		this.codec = codec;
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * Creates the off-heap memo table of the bootstrap arguments: {@value #OFF_HEAP} and, optionally, the size of the chunk (an Integer, in bytes).
+	 *
+	 * @param	type Type of the memoized method
+	 * @param	bsmArgs The bootstrap arguments
+	 * @return	The memo table
+	 */
+	static OffHeapMemoTable of(MethodType type, Object... bsmArgs) {
+		if (bsmArgs.length > 2 || !OFF_HEAP.equals(bsmArgs[0]) || (bsmArgs.length == 2 && !(bsmArgs[1] instanceof Integer)))
+			throw new IllegalArgumentException("Wrong options of the off-heap memo table in the bootstrap arguments: " + Arrays.toString(bsmArgs));
+		if (type.returnType().isPrimitive())
+			throw new IllegalArgumentException("Off-heap memo table of the primitive results: " + type);
+		return new OffHeapMemoTable(Codec.forType(type.returnType()), (bsmArgs.length == 2) ? (Integer) bsmArgs[1] : DEFAULT_CHUNK_SIZE);
+	}
+
+	private static final MethodHandle NOT_NULL;
+	private static final MethodHandle LOOKUP;
+	private static final MethodHandle UPDATE;
+	static {
+		Lookup lookup = MethodHandles.lookup();
+		try {
+			NOT_NULL = lookup.findStatic(ObjectMemoTable.class, "notNull", MethodType.methodType(boolean.class, Object.class));
+			LOOKUP = lookup.findVirtual(OffHeapMemoTable.class, "lookup", MethodType.methodType(Object.class, Object.class));
+			UPDATE = lookup.findVirtual(OffHeapMemoTable.class, "update", MethodType.methodType(Object.class, Object.class, Object.class));
+		} catch (ReflectiveOperationException e) {
+			throw (AssertionError) new AssertionError().initCause(e);
+		}
+	}
+
+	@Override
+	MethodHandle memoize(MethodHandle target) {
+		MethodType type = target.type();
+
+		MethodHandle identity = MethodHandles.identity(type.returnType());
+		identity = identity.asType(identity.type().changeParameterType(0, Object.class));
+		identity = MethodHandles.dropArguments(identity, 1, type.parameterType(0));
+
+		MethodHandle update = UPDATE.bindTo(this);
+		update = update.asType(type.insertParameterTypes(0, type.returnType()));
+
+		MethodHandle fallback = MethodHandles.foldArguments(update, target);
+		fallback = MethodHandles.dropArguments(fallback, 0, Object.class);
+
+		MethodHandle combiner = MethodHandles.guardWithTest(NOT_NULL, identity, fallback);
+
+		MethodHandle cacheQuerier = LOOKUP.bindTo(this);
+		cacheQuerier = cacheQuerier.asType(MethodType.methodType(Object.class, type.parameterType(0)));
+
+		return MethodHandles.foldArguments(combiner, cacheQuerier);
+	}
+
+	/**
+	 * Lock-free lookup: deserializes the result found in the index.
+	 *
+	 * @return	The remembered result (a new copy of it), or null
+	 */
+	@SuppressWarnings("unused")
+	private Object lookup(Object key) {
+		Long location = index.get(key);
+		return (location != null) ? read(location) : null;
+	}
+
+	/**
+	 * Remembers the result (unless a racing thread has already remembered one for the key).
+	 *
+	 * @return	The result
+	 */
+	@SuppressWarnings("unused")
+	private Object update(Object result, Object key) {
+		if (result == null || index.containsKey(key))
+			return result;
+		append(key, codec.encode(result));
+		return result;
+	}
+
+	/**
+	 * Appends the bytes and puts their location into the index: the index of the chunk (the high 32 bits) and the offset in the chunk (the low 32 bits).
+	 * Nothing is appended, if the index already has the key.
+	 */
+	private synchronized void append(Object key, byte[] bytes) {
+		if (index.containsKey(key))
+			return;
+		ByteBuffer[] current = chunks;
+		int length = 4 + bytes.length;
+		if (current.length == 0 || current[current.length - 1] == null || position + length > current[current.length - 1].capacity()) {
+			current = Arrays.copyOf(current, current.length + 1);
+			current[current.length - 1] = ByteBuffer.allocateDirect(Math.max(chunkSize, length));
+			position = 0;
+		}
+		ByteBuffer chunk = current[current.length - 1].duplicate();
+		chunk.position(position);
+		chunk.putInt(bytes.length);
+		chunk.put(bytes);
+		//the chunk with the bytes is published before the location (the location is published by the index)
+		chunks = current;
+
+		index.put(key, ((long) (current.length - 1) << 32) | position);
+		position += length;
+		usedBytes += length;
+	}
+
+	/**
+	 * @return	The result of the location, or null (if the table has been cleared since the location was found)
+	 */
+	private Object read(long location) {
+		//the chunks are read once, as the table can be cleared meanwhile
+		ByteBuffer[] current = chunks;
+		int chunkIndex = (int) (location >>> 32);
+		if (chunkIndex >= current.length || current[chunkIndex] == null)
+			return null;
+		ByteBuffer chunk = current[chunkIndex].duplicate();
+		chunk.position((int) location);
+		byte[] bytes = new byte[chunk.getInt()];
+		chunk.get(bytes);
+		return codec.decode(bytes);
+	}
+
+	/**
+	 * @return	The codec of the results
+	 */
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * @return	Number of bytes of the serialized results (in the direct memory)
+	 */
+	public synchronized long getOffHeapBytes() {
+		return usedBytes;
+	}
+
+	@Override
+	public int size() {
+		return index.size();
+	}
+
+	@Override
+	public synchronized void clear() {
+		index.clear();
+		//the numbers of the chunks are not reused, so a location found before the clear never points to a new result
+		chunks = new ByteBuffer[chunks.length];
+		position = 0;
+		usedBytes = 0;
+	}
+}
@@ -0,0 +1,194 @@
+package pl.confitura2012.speedrecurence;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark of the restarts of the JVM with the persistent memo table (see: {@link PersistentMemoTable}): each run is a new JVM,
+ * which computes the results of the memoized method for all the arguments, and reports its restart-to-warm latency (the time from the start of the JVM
+ * till all the results are there) and the time of loading the memo table (i.e. of mapping the snapshot and reading the log). The runs are: <ul>
+ * <li> NO SNAPSHOT - with the memo table on the heap only (so each run computes all the results again) </li>
+ * <li> COLD - with the persistent memo table, but without its files (all the results are computed and appended to the log) </li>
+ * <li> WARM FROM THE LOG - the results of the log are read to the heap (and compacted into the snapshot, before the JVM exits) </li>
+ * <li> WARM FROM THE SNAPSHOT - the results are served from the memory-mapped snapshot </li></ul>
+ * for the memoized methods: <ul>
+ * <li> FIBONACCI - the Fibonacci numbers of the {@link SpeedRecurenceWithIndyUsingBigInteger} demo (cheap: each is a sum of the two remembered ones) </li>
+ * <li> PRIMES - the first prime number after n * 2^128 (expensive) </li></ul>
+ * The results of all the runs are compared. Before the restarts, a crash while appending to the log is simulated (the last record is written partly),
+ * and the memo table loaded again must have all the results but the last one.
+ * <p/>
+ * Usage: <code>PersistentMemoBenchmark [how many Fibonacci numbers] [how many primes]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class PersistentMemoBenchmark {
+	private static MethodHandle mhDynamic = null;
+
+	public static BigInteger fib(BigInteger n) throws Throwable {
+		if (n.equals(BigInteger.ZERO))
+			return BigInteger.ZERO;
+
+		if (n.equals(BigInteger.ONE))
+			return BigInteger.ONE;
+
+		return ((BigInteger) mhDynamic.invokeExact(n.subtract(BigInteger.ONE))).add((BigInteger) mhDynamic.invokeExact(n.subtract(BigInteger.valueOf(2))));
+	}
+
+	public static BigInteger prime(BigInteger n) {
+		return n.shiftLeft(128).nextProbablePrime();
+	}
+
+	private static final int DEFAULT_HOW_MANY_NUMBERS = 30_000;
+	private static final int DEFAULT_HOW_MANY_PRIMES = 3_000;
+	private static final int NUMBER_OF_REPEATS = 3;
+	private static final String NO_SNAPSHOT = "none";
+	private static final MethodType TYPE = MethodType.methodType(BigInteger.class, BigInteger.class);
+	private static final MethodType BSM_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Class.class, Object[].class);
+
+	public static void main(String args[]) throws Throwable {
+		if (args.length > 0 && args[0].equals("run")) {
+			run(args[1], Integer.parseInt(args[2]), args[3], Boolean.parseBoolean(args[4]));
+			return;
+		}
+		int howManyNumbers = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_HOW_MANY_NUMBERS;
+		int howManyPrimes = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_HOW_MANY_PRIMES;
+
+		File directory = Files.createTempDirectory("memo").toFile();
+		try {
+			StressTestTornLog(directory);
+			BenchmarkRestarts("fib", howManyNumbers, directory);
+			BenchmarkRestarts("prime", howManyPrimes, directory);
+		} finally {
+			for (File file : directory.listFiles())
+				file.delete();
+			directory.delete();
+		}
+	}
+
+	public static void StressTestTornLog(File directory) throws Throwable {
+		System.out.println("\nStress test TORN LOG");
+		File snapshot = new File(directory, "torn.memo");
+		int howManyPrimes = 100;
+		PersistentMemoTable table = PersistentMemoTable.of("prime", TYPE, PersistentMemoTable.PERSISTENT, snapshot.getPath());
+		MethodHandle memoized = table.memoize(MethodHandles.lookup().findStatic(PersistentMemoBenchmark.class, "prime", TYPE));
+		for (long i = 0; i < howManyPrimes; i++)
+			memoized.invoke(BigInteger.valueOf(i));
+
+		//the crash: the last record written partly, followed by garbage
+		long logSize = Files.size(table.getLogFile());
+		try (FileChannel channel = FileChannel.open(table.getLogFile(), StandardOpenOption.WRITE)) {
+			channel.truncate(logSize - 5);
+			channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), logSize - 5);
+		}
+
+		PersistentMemoTable loaded = PersistentMemoTable.of("prime", TYPE, PersistentMemoTable.PERSISTENT, snapshot.getPath());
+		if (loaded.size() != howManyPrimes - 1)
+			throw new AssertionError("The memo table loaded " + loaded.size() + " results of the torn log, instead of " + (howManyPrimes - 1));
+		MethodHandle reloaded = loaded.memoize(MethodHandles.lookup().findStatic(PersistentMemoBenchmark.class, "prime", TYPE));
+		for (long i = 0; i < howManyPrimes; i++) {
+			BigInteger result = (BigInteger) reloaded.invokeExact(BigInteger.valueOf(i));
+			if (!result.equals(prime(BigInteger.valueOf(i))))
+				throw new AssertionError("The memo table loaded a wrong result of prime(" + i + "): " + result);
+		}
+		loaded.compactInBackground().get();
+		if (loaded.getCompactionFailure() != null)
+			throw new AssertionError("The compaction of the loaded memo table failed: " + loaded.getCompactionFailure());
+		//the result lost with the torn record has been computed again
+		if (loaded.mappedSize() != howManyPrimes)
+			throw new AssertionError("The compacted snapshot maps " + loaded.mappedSize() + " results, instead of " + howManyPrimes);
+		System.out.println("OK, LOG: " + logSize + " bytes, LOADED RESULTS: " + (howManyPrimes - 1) + ", SNAPSHOT AFTER COMPACTION: " + Files.size(loaded.getSnapshotFile()) + " bytes");
+	}
+
+	public static void BenchmarkRestarts(String methodName, int howManyArguments, File directory) throws Throwable {
+		System.out.println("\nBenchmark RESTARTS, " + (methodName.equals("fib") ? "FIBONACCI" : "PRIMES") + ", ARGUMENTS: " + howManyArguments);
+		String snapshot = new File(directory, methodName + ".memo").getPath();
+		List<String> results = new ArrayList<String>();
+
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++)
+			results.add(restart("NO SNAPSHOT", methodName, howManyArguments, NO_SNAPSHOT, false));
+		results.add(restart("COLD", methodName, howManyArguments, snapshot, false));
+		results.add(restart("WARM FROM THE LOG", methodName, howManyArguments, snapshot, true));
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++)
+			results.add(restart("WARM FROM THE SNAPSHOT", methodName, howManyArguments, snapshot, false));
+
+		for (String result : results) {
+			if (!result.equals(results.get(0)))
+				throw new AssertionError("The runs computed different results: " + results);
+		}
+	}
+
+	/**
+	 * Runs a new JVM (with this class's main method).
+	 *
+	 * @return	The result computed by the JVM
+	 */
+	private static String restart(String name, String methodName, int howManyArguments, String snapshot, boolean compact) throws IOException, InterruptedException {
+		String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), PersistentMemoBenchmark.class.getName(),
+													"run", methodName, String.valueOf(howManyArguments), snapshot, String.valueOf(compact));
+		builder.redirectErrorStream(true);
+
+		long start = System.nanoTime();
+		Process process = builder.start();
+		String result = null;
+		try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+			for (String line; (line = output.readLine()) != null; ) {
+				if (line.startsWith("RESULT: "))
+					result = line.substring("RESULT: ".length());
+				else
+					System.out.println(name + ", " + line);
+			}
+		}
+		if (process.waitFor() != 0 || result == null)
+			throw new AssertionError(name + " run failed, exit code: " + process.exitValue());
+		System.out.println(name + ", PROCESS: " + ((System.nanoTime() - start) / 1_000_000) + " ms");
+		return result;
+	}
+
+	/**
+	 * The run in a new JVM: computes the results of the memoized method, reports the times and prints the result (the sum of the results).
+	 */
+	private static void run(String methodName, int howManyArguments, String snapshot, boolean compact) throws Throwable {
+		long start = System.nanoTime();
+		Object[] options = snapshot.equals(NO_SNAPSHOT) ? new Object[0] : new Object[] { PersistentMemoTable.PERSISTENT, snapshot };
+		//the memo table is loaded before the call site is linked (at its first call), to be measured separately
+		MemoTable table = Memoizer.tableOf(PersistentMemoBenchmark.class, methodName, TYPE, options);
+		long loadTime = System.nanoTime() - start;
+		Object[] bsmArgs = new Object[options.length + 1];
+		bsmArgs[0] = PersistentMemoBenchmark.class;
+		System.arraycopy(options, 0, bsmArgs, 1, options.length);
+		MethodHandle memoized = InvokeDynamic.prepare(methodName, TYPE, "memoize", Memoizer.class, BSM_TYPE, bsmArgs);
+		mhDynamic = memoized;
+
+		BigInteger sum = BigInteger.ZERO;
+		for (long i = 0; i < howManyArguments; i++)
+			sum = sum.add((BigInteger) memoized.invokeExact(BigInteger.valueOf(i)));
+		long warmTime = System.nanoTime() - start;
+		long restartToWarm = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+
+		System.out.println("RESTART-TO-WARM: " + restartToWarm + " ms (LOAD: " + (loadTime / 1_000_000) + " ms, WARM: " + (warmTime / 1_000_000) + " ms)"
+							+ ((table instanceof PersistentMemoTable) ? ", MAPPED RESULTS: " + ((PersistentMemoTable) table).mappedSize() : ""));
+		if (compact && table instanceof PersistentMemoTable) {
+			((PersistentMemoTable) table).compactInBackground().get();
+			if (((PersistentMemoTable) table).getCompactionFailure() != null)
+				throw new AssertionError("The compaction of the memo table failed: " + ((PersistentMemoTable) table).getCompactionFailure());
+		}
+		System.out.println("RESULT: " + sum.bitLength() + "/" + sum.hashCode());
+	}
+}
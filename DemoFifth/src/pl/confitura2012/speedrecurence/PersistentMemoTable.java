@@ -0,0 +1,837 @@
+package pl.confitura2012.speedrecurence;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+import pl.confitura2012.speedrecurence.OffHeapMemoTable.Codec;
+
+/**
+ * Memo table remembering the results across the restarts of the JVM (see: {@link MemoTable}), in the two files of the current generation: <ul>
+ * <li> the snapshot (the file given in the bootstrap arguments, with the number of the generation appended) - memory-mapped when the call site
+ * is linked; the hits of its results are served from the mapped file: the argument is looked up in the snapshot's index (an open addressing table
+ * of the offsets of the records, hashed by the serialized arguments), then the result is deserialized from its record (a long is read directly),
+ * so neither the arguments nor the results of the snapshot are copied to the heap when the snapshot is mapped </li>
+ * <li> the log (the snapshot's file + {@value #LOG_SUFFIX}) - the new results are appended to it (and kept on the heap, as the results
+ * of the {@link ObjectMemoTable}); when the call site is linked, the log is read and its results are remembered again </li></ul>
+ * The records of the log are: the length of the record's data, the CRC32 of the data, then the data (the serialized argument and result,
+ * see: {@link Codec}), after the header (which names the memoized method, so a file of another method is never used). The log is read
+ * up to the first record with a wrong length or CRC (e.g. written partly, when the JVM crashed), and truncated there. The records of the snapshot
+ * are not checked: a snapshot is written completely (and forced to the disk) before it is published (moved to the name of its generation).
+ * <p/>
+ * When the log grows larger than the snapshot, it is compacted in the background: the records of the snapshot and of the log (each argument once)
+ * are written, with their index, into the snapshot of the next generation, without the table's lock (the misses keep appending to the log).
+ * Then, under the lock, the records appended meanwhile are copied into the log of the next generation, the snapshot is published and mapped,
+ * and the files of the previous generation are deleted. So, a crash at any time leaves a complete generation (the one of the latest snapshot).
+ * No file is replaced, so the files mapped by the running JVM remain valid (the files which cannot be deleted while mapped, e.g. on Windows,
+ * are deleted by the next JVM).
+ * <p/>
+ * A hit is lock-free. A miss appends the result to the log under the table's lock (not forced to the disk, so the results of the last moments
+ * may be lost when the operating system crashes). The snapshot can be up to 2 GB. A null result is not remembered.
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public final class PersistentMemoTable extends MemoTable {
+	/**
+	 * Name of the option (the bootstrap argument) selecting this table.
+	 */
+	public static final String PERSISTENT = "PERSISTENT";
+	/**
+	 * Suffix of the log's file name.
+	 */
+	public static final String LOG_SUFFIX = ".log";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	private static final int MAGIC = 0x4d454d4f;
+	private static final long MIN_LOG_SIZE_TO_COMPACT = 1 << 20;
+	//the directory at the end of the snapshot: the number of the records, the number of the index's slots and the offset of the index
+	private static final int DIRECTORY_SIZE = 12;
+	private static final int NOT_FOUND = -1;
+
+	private static final ExecutorService compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "memo-compactor");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * The mapped snapshot, never changed after being replaced (by a compaction or a clear).
+	 */
+	static final class Snapshot {
+		final ByteBuffer buffer;
+		final int count;
+		final int mask;
+		final int index;
+
+		Snapshot(ByteBuffer buffer, int count, int slots, int index) {
+			this.buffer = buffer;
+			this.count = count;
+			this.mask = slots - 1;
+			this.index = index;
+		}
+	}
+
+	private final Path snapshotPath;
+	private final byte[] header;
+	private final Codec keyCodec;
+	private final Codec valueCodec;
+	private volatile Snapshot snapshot;
+	//the results of the log
+	private final ConcurrentMap<Object, Object> recent = new ConcurrentHashMap<Object, Object>();
+	//held (before the table's lock) by the compaction and the clear, which create the next generation
+	private final Object generationLock = new Object();
+	private long generation;
+	private FileChannel log;
+	private long logSize;
+	private long snapshotSize;
+	private boolean compactionScheduled;
+	private volatile Exception compactionFailure;
+
+	/**
+	 * Opens the files of the latest generation (creates them, if there are none) and remembers their results.
+	 *
+	 * @param	method Name of the memoized method (with its class and descriptor), written in the header of the files
+	 * @param	snapshotPath The snapshot's file (without the number of the generation)
+	 * @param	keyCodec Serialization of the arguments
+	 * @param	valueCodec Serialization of the results
+	 */
+	PersistentMemoTable(String method, Path snapshotPath, Codec keyCodec, Codec valueCodec) throws IOException {
+		this.snapshotPath = snapshotPath.toAbsolutePath();
+		this.keyCodec = keyCodec;
+		this.valueCodec = valueCodec;
+		byte[] name = method.getBytes(StandardCharsets.UTF_8);
+		this.header = ByteBuffer.allocate(8 + name.length).putInt(MAGIC).putInt(name.length).put(name).array();
+
+		generation = latestGeneration();
+		if (generation < 0) {
+			writeSnapshot(0, null, null);
+			publish(0, ByteBuffer.allocate(0));
+		} else {
+			snapshot = map(snapshotFile(generation));
+			snapshotSize = snapshot.buffer.limit();
+			if (!Files.exists(logFile(generation)))
+				writeFile(logFile(generation), ByteBuffer.wrap(header));
+			log = FileChannel.open(logFile(generation), READ, WRITE);
+		}
+		logSize = loadLog();
+		deleteOtherGenerations();
+		if (logSize > header.length)
+			compactInBackground();
+	}
+
+	/**
+	 * Creates the persistent memo table of the bootstrap arguments: {@value #PERSISTENT} and the snapshot's file (a String, the files
+	 * of the generations are named after it).
+	 *
+	 * @param	method Name of the memoized method (with its class and descriptor)
+	 * @param	type Type of the memoized method
+	 * @param	bsmArgs The bootstrap arguments
+	 * @return	The memo table
+	 */
+	static PersistentMemoTable of(String method, MethodType type, Object... bsmArgs) {
+		if (bsmArgs.length != 2 || !PERSISTENT.equals(bsmArgs[0]) || !(bsmArgs[1] instanceof String))
+			throw new IllegalArgumentException("No snapshot's file of the persistent memo table in the bootstrap arguments: " + Arrays.toString(bsmArgs));
+		Path path = Paths.get((String) bsmArgs[1]);
+		try {
+			return new PersistentMemoTable(method, path, Codec.forType(type.parameterType(0)), Codec.forType(type.returnType()));
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot open the memo snapshot: " + path, e);
+		}
+	}
+
+	private static final MethodHandle NOT_NULL;
+	private static final MethodHandle LOOKUP;
+	private static final MethodHandle UPDATE;
+	private static final MethodHandle SNAPSHOT;
+	private static final MethodHandle FIND;
+	private static final MethodHandle FIND_LONG;
+	private static final MethodHandle IS_FOUND;
+	private static final MethodHandle VALUE_AT;
+	private static final MethodHandle LONG_AT;
+	static {
+		Lookup lookup = MethodHandles.lookup();
+		try {
+			NOT_NULL = lookup.findStatic(ObjectMemoTable.class, "notNull", MethodType.methodType(boolean.class, Object.class));
+			LOOKUP = lookup.findVirtual(PersistentMemoTable.class, "lookup", MethodType.methodType(Object.class, Object.class));
+			UPDATE = lookup.findVirtual(PersistentMemoTable.class, "update", MethodType.methodType(Object.class, Object.class, Object.class));
+			SNAPSHOT = lookup.findVirtual(PersistentMemoTable.class, "snapshot", MethodType.methodType(Snapshot.class));
+			FIND = lookup.findVirtual(PersistentMemoTable.class, "find", MethodType.methodType(int.class, Snapshot.class, Object.class));
+			FIND_LONG = lookup.findStatic(PersistentMemoTable.class, "findLong", MethodType.methodType(int.class, Snapshot.class, long.class));
+			IS_FOUND = lookup.findStatic(PersistentMemoTable.class, "isFound", MethodType.methodType(boolean.class, int.class));
+			VALUE_AT = lookup.findVirtual(PersistentMemoTable.class, "valueAt", MethodType.methodType(Object.class, int.class, Snapshot.class));
+			LONG_AT = lookup.findStatic(PersistentMemoTable.class, "longAt", MethodType.methodType(long.class, int.class, Snapshot.class));
+		} catch (ReflectiveOperationException e) {
+			throw (AssertionError) new AssertionError().initCause(e);
+		}
+	}
+
+	@Override
+	MethodHandle memoize(MethodHandle target) {
+		MethodType type = target.type();
+		Class<?> keyType = type.parameterType(0);
+
+		MethodHandle identity = MethodHandles.identity(type.returnType());
+		identity = identity.asType(identity.type().changeParameterType(0, Object.class));
+		identity = MethodHandles.dropArguments(identity, 1, keyType);
+
+		MethodHandle update = UPDATE.bindTo(this);
+		update = update.asType(type.insertParameterTypes(0, type.returnType()));
+
+		MethodHandle fallback = MethodHandles.foldArguments(update, target);
+		fallback = MethodHandles.dropArguments(fallback, 0, Object.class);
+
+		MethodHandle combiner = MethodHandles.guardWithTest(NOT_NULL, identity, fallback);
+
+		MethodHandle cacheQuerier = LOOKUP.bindTo(this);
+		cacheQuerier = cacheQuerier.asType(MethodType.methodType(Object.class, keyType));
+
+		//(P)R: the result of the log, or the target's result remembered by the update
+		MethodHandle recentMemoized = MethodHandles.foldArguments(combiner, cacheQuerier);
+
+		//(int record, Snapshot, P)R: the result of the record found in the snapshot, or the recentMemoized
+		MethodHandle valueAt = (valueCodec == Codec.LONG) ? LONG_AT : VALUE_AT.bindTo(this);
+		valueAt = valueAt.asType(MethodType.methodType(type.returnType(), int.class, Snapshot.class));
+		MethodHandle snapshotCombiner = MethodHandles.guardWithTest(IS_FOUND, MethodHandles.dropArguments(valueAt, 2, keyType),
+																	MethodHandles.dropArguments(recentMemoized, 0, int.class, Snapshot.class));
+
+		MethodHandle find = (keyCodec == Codec.LONG && keyType == long.class) ? FIND_LONG : FIND.bindTo(this);
+		find = find.asType(MethodType.methodType(int.class, Snapshot.class, keyType));
+		MethodHandle memoize = MethodHandles.foldArguments(snapshotCombiner, find);
+		return MethodHandles.foldArguments(memoize, SNAPSHOT.bindTo(this));
+	}
+
+	@SuppressWarnings("unused")
+	private Snapshot snapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Lock-free lookup of the results of the log.
+	 *
+	 * @return	The remembered result, or null
+	 */
+	@SuppressWarnings("unused")
+	private Object lookup(Object key) {
+		return recent.get(key);
+	}
+
+	/**
+	 * @return	Offset of the argument's record in the snapshot, or -1 if the argument is not in the snapshot
+	 */
+	private int find(Snapshot snapshot, Object key) {
+		if (keyCodec == Codec.LONG)
+			return findLong(snapshot, (Long) key);
+		return findSerialized(snapshot, ByteBuffer.wrap(keyCodec.encode(key)));
+	}
+
+	/**
+	 * @return	Offset of the record of the argument serialized by the {@link Codec#LONG} in the snapshot, or -1 if the argument is not in the snapshot
+	 */
+	static int findLong(Snapshot snapshot, long key) {
+		ByteBuffer buffer = snapshot.buffer;
+		for (int i = hashOf(key) & snapshot.mask; ; i = (i + 1) & snapshot.mask) {
+			int record = buffer.getInt(snapshot.index + 4 * i);
+			if (record == 0)
+				return NOT_FOUND;
+			if (buffer.getInt(record) == 8 && buffer.getLong(record + 8) == key)
+				return record;
+		}
+	}
+
+	/**
+	 * @param	key The serialized argument (its remaining bytes)
+	 * @return	Offset of the argument's record in the snapshot, or -1 if the argument is not in the snapshot
+	 */
+	private int findSerialized(Snapshot snapshot, ByteBuffer key) {
+		ByteBuffer buffer = snapshot.buffer;
+		int keyLength = key.remaining();
+		for (int i = hashOf(key) & snapshot.mask; ; i = (i + 1) & snapshot.mask) {
+			int record = buffer.getInt(snapshot.index + 4 * i);
+			if (record == 0)
+				return NOT_FOUND;
+			if (buffer.getInt(record) == keyLength && slice(buffer, record + 8, keyLength).equals(key))
+				return record;
+		}
+	}
+
+	static boolean isFound(int record) {
+		return record >= 0;
+	}
+
+	/**
+	 * @return	The result of the snapshot's record (deserialized from the mapped snapshot)
+	 */
+	@SuppressWarnings("unused")
+	private Object valueAt(int record, Snapshot snapshot) {
+		int keyLength = snapshot.buffer.getInt(record);
+		return decode(snapshot.buffer, record + 8 + keyLength, snapshot.buffer.getInt(record + 4), valueCodec);
+	}
+
+	/**
+	 * @return	The result (serialized by the {@link Codec#LONG}) of the snapshot's record, read directly from the mapped snapshot
+	 */
+	static long longAt(int record, Snapshot snapshot) {
+		return snapshot.buffer.getLong(record + 8 + snapshot.buffer.getInt(record));
+	}
+
+	/**
+	 * Remembers the result (unless a racing thread has already remembered one for the key) and appends it to the log.
+	 *
+	 * @return	The remembered result
+	 */
+	@SuppressWarnings("unused")
+	private Object update(Object result, Object key) {
+		if (result == null)
+			return null;
+		Object previous = recent.putIfAbsent(key, result);
+		if (previous != null)
+			return previous;
+		try {
+			append(keyCodec.encode(key), valueCodec.encode(result));
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot append to the memo log: " + logFile(generation), e);
+		}
+		return result;
+	}
+
+	private synchronized void append(byte[] key, byte[] value) throws IOException {
+		int length = 4 + key.length + value.length;
+		ByteBuffer record = ByteBuffer.allocate(8 + length);
+		record.putInt(length).putInt(0).putInt(key.length).put(key).put(value);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 8, length);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		logSize += writeFully(log, record, logSize);
+
+		if (!compactionScheduled && compactionFailure == null && logSize - header.length >= Math.max(MIN_LOG_SIZE_TO_COMPACT, snapshotSize))
+			compactInBackground();
+	}
+
+	/**
+	 * Compacts the snapshot and the log in the background (see: {@link #compact}). After a failed compaction (see: {@link #getCompactionFailure}),
+	 * the log is not compacted again automatically, only by this method.
+	 *
+	 * @return	Future of the compaction
+	 */
+	public synchronized Future<Void> compactInBackground() {
+		compactionScheduled = true;
+		return compactor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				try {
+					compact();
+					compactionFailure = null;
+					return null;
+				} catch (IOException | RuntimeException e) {
+					compactionFailure = e;
+					throw e;
+				} finally {
+					synchronized (PersistentMemoTable.this) {
+						compactionScheduled = false;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return	The failure of the last compaction in the background, or null
+	 */
+	public Exception getCompactionFailure() {
+		return compactionFailure;
+	}
+
+	/**
+	 * Writes the results of the snapshot and of the log (each argument once) into the snapshot of the next generation, without the table's lock
+	 * (only the size of the log is read under it). Then, under the lock, copies the records appended meanwhile into the log of the next generation
+	 * and publishes the generation. The new snapshot is mapped and the results of the log, now in the snapshot, are not kept on the heap any more.
+	 */
+	public void compact() throws IOException {
+		synchronized (generationLock) {
+			Snapshot source;
+			FileChannel sourceLog;
+			long sourceLogSize;
+			long next;
+			synchronized (this) {
+				source = snapshot;
+				sourceLog = log;
+				sourceLogSize = logSize;
+				next = generation + 1;
+			}
+			//the log is only appended to meanwhile (it is replaced under the generation's lock only)
+			writeSnapshot(next, source, read(sourceLog, 0, sourceLogSize));
+
+			long previous;
+			synchronized (this) {
+				previous = generation;
+				publish(next, read(log, sourceLogSize, logSize));
+			}
+			deleteGeneration(previous);
+
+			Snapshot compacted = snapshot;
+			for (Object key : recent.keySet()) {
+				if (find(compacted, key) != NOT_FOUND)
+					recent.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Writes the snapshot of the generation to its temporary file: the records of the source snapshot and of the log (each argument once)
+	 * and their index.
+	 *
+	 * @param	source The snapshot, or null
+	 * @param	logRecords The log (from its header), or null
+	 */
+	private void writeSnapshot(long generation, Snapshot source, ByteBuffer logRecords) throws IOException {
+		Path temporary = temporaryOf(snapshotFile(generation));
+		try (SnapshotWriter writer = new SnapshotWriter(temporary)) {
+			if (source != null) {
+				ByteBuffer buffer = source.buffer;
+				for (int record = header.length; record < source.index; ) {
+					int keyLength = buffer.getInt(record);
+					int valueLength = buffer.getInt(record + 4);
+					writer.add(buffer, record + 8, keyLength, record + 8 + keyLength, valueLength);
+					record += 8 + keyLength + valueLength;
+				}
+			}
+			if (logRecords != null) {
+				Set<ByteBuffer> keys = new HashSet<ByteBuffer>();
+				CRC32 crc = new CRC32();
+				for (int offset = header.length, next; (next = nextRecord(logRecords, offset, crc)) > 0; offset = next) {
+					int keyLength = logRecords.getInt(offset + 8);
+					ByteBuffer key = slice(logRecords, offset + 12, keyLength);
+					if ((source == null || findSerialized(source, key) == NOT_FOUND) && keys.add(key))
+						writer.add(logRecords, offset + 12, keyLength, offset + 12 + keyLength, next - offset - 12 - keyLength);
+				}
+			}
+			writer.finish();
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+	}
+
+	/**
+	 * Publishes the generation: writes its log (the header and the records), then moves its snapshot (written to the temporary file) to its name,
+	 * and maps it. The table's lock must be held (or the table must not be used yet).
+	 */
+	private void publish(long next, ByteBuffer logRecords) throws IOException {
+		int logRecordsSize = logRecords.remaining();
+		writeFile(logFile(next), ByteBuffer.wrap(header), logRecords);
+		Files.move(temporaryOf(snapshotFile(next)), snapshotFile(next), StandardCopyOption.ATOMIC_MOVE);
+		Snapshot published = map(snapshotFile(next));
+		FileChannel publishedLog = FileChannel.open(logFile(next), READ, WRITE);
+
+		if (log != null)
+			log.close();
+		log = publishedLog;
+		logSize = header.length + logRecordsSize;
+		snapshot = published;
+		snapshotSize = published.buffer.limit();
+		generation = next;
+	}
+
+	/**
+	 * Writer of the snapshot: the header, the records (the length of the serialized argument, the length of the serialized result, then both),
+	 * the index (the offsets of the records in an open addressing table with the linear probing, at most half full) and the directory.
+	 */
+	private final class SnapshotWriter implements Closeable {
+		private final FileChannel out;
+		private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		private long size;
+		private int[] records = new int[64];
+		private int[] hashes = new int[64];
+		private int count;
+
+		SnapshotWriter(Path path) throws IOException {
+			out = FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING);
+			write(ByteBuffer.wrap(header));
+		}
+
+		void add(ByteBuffer source, int keyOffset, int keyLength, int valueOffset, int valueLength) throws IOException {
+			if (size + 8 + keyLength + valueLength > Integer.MAX_VALUE)
+				throw new IOException("Memo snapshot too large: " + snapshotPath);
+			if (count == records.length) {
+				records = Arrays.copyOf(records, 2 * count);
+				hashes = Arrays.copyOf(hashes, 2 * count);
+			}
+			records[count] = (int) size;
+			hashes[count] = hashOf(slice(source, keyOffset, keyLength));
+			count++;
+
+			writeInt(keyLength);
+			writeInt(valueLength);
+			write(slice(source, keyOffset, keyLength));
+			write(slice(source, valueOffset, valueLength));
+		}
+
+		/**
+		 * Writes the index and the directory, and forces the snapshot to the disk.
+		 */
+		void finish() throws IOException {
+			int slots = 2;
+			while (slots < 2 * count)
+				slots <<= 1;
+			if (size + 4L * slots + DIRECTORY_SIZE > Integer.MAX_VALUE)
+				throw new IOException("Memo snapshot too large: " + snapshotPath);
+
+			int[] index = new int[slots];
+			for (int i = 0; i < count; i++) {
+				int slot = hashes[i] & (slots - 1);
+				while (index[slot] != 0)
+					slot = (slot + 1) & (slots - 1);
+				index[slot] = records[i];
+			}
+			int indexOffset = (int) size;
+			for (int record : index)
+				writeInt(record);
+			writeInt(count);
+			writeInt(slots);
+			writeInt(indexOffset);
+			flush();
+			out.force(true);
+		}
+
+		private void writeInt(int value) throws IOException {
+			if (buffer.remaining() < 4)
+				flush();
+			buffer.putInt(value);
+			size += 4;
+		}
+
+		private void write(ByteBuffer bytes) throws IOException {
+			size += bytes.remaining();
+			while (bytes.hasRemaining()) {
+				if (!buffer.hasRemaining())
+					flush();
+				ByteBuffer part = bytes.duplicate();
+				part.limit(part.position() + Math.min(buffer.remaining(), bytes.remaining()));
+				buffer.put(part);
+				bytes.position(part.position());
+			}
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				out.write(buffer);
+			buffer.clear();
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads the log (its results are remembered on the heap, unless they are in the snapshot already) and truncates it after the last valid record.
+	 *
+	 * @return	Size of the log
+	 */
+	private long loadLog() throws IOException {
+		ByteBuffer buffer = read(log, 0, log.size());
+		checkHeader(buffer, logFile(generation));
+
+		CRC32 crc = new CRC32();
+		int offset = header.length;
+		for (int next; (next = nextRecord(buffer, offset, crc)) > 0; offset = next) {
+			int keyLength = buffer.getInt(offset + 8);
+			if (findSerialized(snapshot, slice(buffer, offset + 12, keyLength)) == NOT_FOUND)
+				recent.putIfAbsent(decode(buffer, offset + 12, keyLength, keyCodec), decode(buffer, offset + 12 + keyLength, next - offset - 12 - keyLength, valueCodec));
+		}
+		if (offset < buffer.limit())
+			log.truncate(offset);
+		return offset;
+	}
+
+	private void checkHeader(ByteBuffer buffer, Path path) {
+		byte[] fileHeader = new byte[Math.min(header.length, buffer.limit())];
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(0);
+		duplicate.get(fileHeader);
+		if (!Arrays.equals(fileHeader, header))
+			throw new IllegalStateException("Not a memo snapshot of the memoized method: " + path);
+	}
+
+	/**
+	 * @return	Offset of the next record of the log, or -1 if the record at the offset is not valid (e.g. written partly)
+	 */
+	private static int nextRecord(ByteBuffer buffer, int offset, CRC32 crc) {
+		if (offset + 12 > buffer.limit())
+			return -1;
+		int length = buffer.getInt(offset);
+		if (length < 4 || length > buffer.limit() - offset - 8)
+			return -1;
+		int keyLength = buffer.getInt(offset + 8);
+		if (keyLength < 0 || keyLength > length - 4)
+			return -1;
+
+		byte[] data = new byte[length];
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(offset + 8);
+		duplicate.get(data);
+		crc.reset();
+		crc.update(data, 0, length);
+		return (buffer.getInt(offset + 4) == (int) crc.getValue()) ? offset + 8 + length : -1;
+	}
+
+	/**
+	 * The hash of the serialized argument (persisted in the index of the snapshot, so it must never change).
+	 */
+	private int hashOf(ByteBuffer key) {
+		if (keyCodec == Codec.LONG && key.remaining() == 8)
+			return hashOf(key.getLong(key.position()));
+		int hash = 1;
+		for (int i = key.position(); i < key.limit(); i++)
+			hash = 31 * hash + key.get(i);
+		return mix(hash);
+	}
+
+	/**
+	 * The hash of the argument serialized by the {@link Codec#LONG}.
+	 */
+	private static int hashOf(long key) {
+		return mix((int) (key ^ (key >>> 32)));
+	}
+
+	private static int mix(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		return hash ^ (hash >>> 13);
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer duplicate = buffer.duplicate();
+		duplicate.limit(offset + length);
+		duplicate.position(offset);
+		return duplicate;
+	}
+
+	private static Object decode(ByteBuffer buffer, int offset, int length, Codec codec) {
+		byte[] bytes = new byte[length];
+		slice(buffer, offset, length).get(bytes);
+		return codec.decode(bytes);
+	}
+
+	/**
+	 * Maps the snapshot (its header and its directory are checked, its records are not).
+	 */
+	private Snapshot map(Path path) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(path, READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Memo snapshot too large: " + path);
+			buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+		}
+		checkHeader(buffer, path);
+		int directory = buffer.limit() - DIRECTORY_SIZE;
+		if (directory < header.length)
+			throw new IllegalStateException("Not a memo snapshot of the memoized method: " + path);
+		int count = buffer.getInt(directory);
+		int slots = buffer.getInt(directory + 4);
+		int index = buffer.getInt(directory + 8);
+		if (slots <= 0 || Integer.bitCount(slots) != 1 || count < 0 || count > slots / 2 || index < header.length || index + 4L * slots != directory)
+			throw new IllegalStateException("Not a memo snapshot of the memoized method: " + path);
+		return new Snapshot(buffer, count, slots, index);
+	}
+
+	/**
+	 * @return	The bytes of the file (from the position till the end)
+	 */
+	private static ByteBuffer read(FileChannel channel, long position, long end) throws IOException {
+		if (end - position > Integer.MAX_VALUE)
+			throw new IOException("Memo log too large");
+		ByteBuffer buffer = ByteBuffer.allocate((int) (end - position));
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0)
+				throw new IOException("Memo log shorter than expected");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * @return	Number of the written bytes
+	 */
+	private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int length = buffer.remaining();
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+		return length;
+	}
+
+	/**
+	 * Writes the file (to a temporary file first, forced to the disk, then moved, so the file is never partly written).
+	 * The file is one of a new generation, so it is never a mapped file.
+	 */
+	private static void writeFile(Path path, ByteBuffer... contents) throws IOException {
+		Path temporary = temporaryOf(path);
+		try (FileChannel out = FileChannel.open(temporary, CREATE, WRITE, TRUNCATE_EXISTING)) {
+			long size = 0;
+			for (ByteBuffer content : contents)
+				size += writeFully(out, content, size);
+			out.force(true);
+		}
+		Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private Path snapshotFile(long generation) {
+		return snapshotPath.resolveSibling(snapshotPath.getFileName() + "." + generation);
+	}
+
+	private Path logFile(long generation) {
+		return snapshotPath.resolveSibling(snapshotPath.getFileName() + "." + generation + LOG_SUFFIX);
+	}
+
+	private static Path temporaryOf(Path path) {
+		return path.resolveSibling(path.getFileName() + TEMPORARY_SUFFIX);
+	}
+
+	/**
+	 * @return	The generation of the file (a snapshot, a log or a temporary file of this table), or -1 if it is not a file of this table
+	 */
+	private long generationOf(Path file) {
+		String prefix = snapshotPath.getFileName() + ".";
+		String name = file.getFileName().toString();
+		if (!name.startsWith(prefix))
+			return -1;
+		name = name.substring(prefix.length());
+		if (name.endsWith(TEMPORARY_SUFFIX))
+			name = name.substring(0, name.length() - TEMPORARY_SUFFIX.length());
+		if (name.endsWith(LOG_SUFFIX))
+			name = name.substring(0, name.length() - LOG_SUFFIX.length());
+		if (name.isEmpty() || name.length() > 18)
+			return -1;
+		for (int i = 0; i < name.length(); i++) {
+			if (!Character.isDigit(name.charAt(i)))
+				return -1;
+		}
+		return Long.parseLong(name);
+	}
+
+	/**
+	 * @return	The generation of the latest (published) snapshot, or -1 if there is none
+	 */
+	private long latestGeneration() throws IOException {
+		long latest = -1;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(snapshotPath.getParent())) {
+			for (Path file : files) {
+				long fileGeneration = generationOf(file);
+				if (fileGeneration > latest && file.equals(snapshotFile(fileGeneration)))
+					latest = fileGeneration;
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * Deletes the files of the other generations and the temporary files (left by the JVMs which crashed, or which could not delete them).
+	 */
+	private void deleteOtherGenerations() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(snapshotPath.getParent())) {
+			for (Path file : files) {
+				long fileGeneration = generationOf(file);
+				if (fileGeneration >= 0 && (fileGeneration != generation || file.getFileName().toString().endsWith(TEMPORARY_SUFFIX)))
+					deleteIfPossible(file);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the files of the generation, if possible (a mapped file cannot be deleted on some systems, e.g. on Windows,
+	 * so it is deleted by the next JVM).
+	 */
+	private void deleteGeneration(long generation) {
+		deleteIfPossible(snapshotFile(generation));
+		deleteIfPossible(logFile(generation));
+	}
+
+	private static void deleteIfPossible(Path file) {
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			//still mapped, deleted by the next JVM
+		}
+	}
+
+	/**
+	 * @return	The snapshot's file of the current generation
+	 */
+	public synchronized Path getSnapshotFile() {
+		return snapshotFile(generation);
+	}
+
+	/**
+	 * @return	The log's file of the current generation
+	 */
+	public synchronized Path getLogFile() {
+		return logFile(generation);
+	}
+
+	/**
+	 * @return	Number of the results in the mapped snapshot
+	 */
+	public int mappedSize() {
+		return snapshot.count;
+	}
+
+	@Override
+	public int size() {
+		return snapshot.count + recent.size();
+	}
+
+	/**
+	 * Forgets all the remembered results: publishes the next generation with the empty files.
+	 */
+	@Override
+	public void clear() {
+		synchronized (generationLock) {
+			long previous;
+			synchronized (this) {
+				previous = generation;
+				try {
+					writeSnapshot(generation + 1, null, null);
+					publish(generation + 1, ByteBuffer.allocate(0));
+				} catch (IOException e) {
+					throw new IllegalStateException("Cannot clear the memo snapshot: " + snapshotPath, e);
+				}
+				recent.clear();
+			}
+			deleteGeneration(previous);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package pl.confitura2012.speedrecurence;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+
+/**
+ * Allocation and throughput benchmark of the memo tables specialized for the primitive arguments and results (see: {@link MemoTable})
+ * against the original memo table of the JSR292 Cookbook (a <code>HashMap</code> of the boxed arguments and results, kept here as <code>hashMapBSM</code>),
+ * for the memoized methods of the types: <code>long(long)</code>, <code>int(int)</code> and <code>double(double)</code>.
+ * For each of them, the time and the allocated bytes per call are reported for: <ul>
+ * <li> MISSES - the first call for each argument (the method is invoked and its result is remembered) </li>
+ * <li> HITS - the next calls (the result is taken from the memo table) </li></ul>
+ * The allocated bytes are taken from the current thread's allocation counter (<code>com.sun.management.ThreadMXBean</code>).
+ * The hits of the specialized tables must not allocate (i.e. must not box), otherwise the benchmark fails with an AssertionError.
+ * Neither must their misses after the first run: a cleared table keeps its capacity, so it is not resized again while being refilled.
+ * The specialized tables are run twice: with the default capacity and presized (see: {@link MemoTable#PRESIZED}) for the number of arguments.
+ * <p/>
+ * Usage: <code>PrimitiveMemoBenchmark [number of arguments]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class PrimitiveMemoBenchmark {
+	public interface ILongFunction {
+		public long apply(long n);
+	}
+
+	public interface IIntFunction {
+		public int apply(int n);
+	}
+
+	public interface IDoubleFunction {
+		public double apply(double x);
+	}
+
+	public static long mixLong(long n) {
+		long h = n * 0x9e3779b97f4a7c15L;
+		return h ^ (h >>> 29);
+	}
+
+	public static int mixInt(int n) {
+		int h = n * 0x9e3779b9;
+		return h ^ (h >>> 15);
+	}
+
+	public static double mixDouble(double x) {
+		return x * 1.5 + 0.25;
+	}
+
+	//the original memo table (of the JSR292 Cookbook): HashMap of the boxed arguments and results
+	private static HashMap<String, HashMap<Object, Object>> hashMapTables = new HashMap<String, HashMap<Object, Object>>();
+
+	public static boolean notNull(Object receiver) {
+		return receiver != null;
+	}
+
+	public static Object update(HashMap<Object, Object> cache, Object result, Object arg) {
+		cache.put(arg, result);
+		return result;
+	}
+
+	private static final MethodHandle NOT_NULL;
+	private static final MethodHandle MAP_GET;
+	private static final MethodHandle UPDATE;
+	static {
+		Lookup lookup = MethodHandles.lookup();
+		try {
+			NOT_NULL = lookup.findStatic(PrimitiveMemoBenchmark.class, "notNull", MethodType.methodType(boolean.class, Object.class));
+			MAP_GET = lookup.findVirtual(HashMap.class, "get", MethodType.methodType(Object.class, Object.class));
+			UPDATE = lookup.findStatic(PrimitiveMemoBenchmark.class, "update",
+					MethodType.methodType(Object.class, HashMap.class, Object.class, Object.class));
+		} catch (ReflectiveOperationException e) {
+			throw (AssertionError) new AssertionError().initCause(e);
+		}
+	}
+
+	/**
+	 * BSM - bootstrap method, the original memoizing bootstrap method (with the HashMap memo table), for reference
+	 */
+	public static CallSite hashMapBSM(Lookup lookup, String name, MethodType type, Class<?> staticType) throws ReflectiveOperationException {
+		MethodHandle target = lookup.findStatic(staticType, name, type);
+
+		String selector = name + type.toMethodDescriptorString();
+		HashMap<Object, Object> cache = hashMapTables.get(selector);
+		if (cache == null) {
+			cache = new HashMap<Object, Object>();
+			hashMapTables.put(selector, cache);
+		}
+
+		MethodHandle identity = MethodHandles.identity(type.returnType());
+		identity = identity.asType(identity.type().changeParameterType(0, Object.class));
+		identity = MethodHandles.dropArguments(identity, 1, type.parameterType(0));
+
+		MethodHandle update = UPDATE.bindTo(cache);
+		update = update.asType(type.insertParameterTypes(0, type.returnType()));
+
+		MethodHandle fallback = MethodHandles.foldArguments(update, target);
+		fallback = MethodHandles.dropArguments(fallback, 0, Object.class);
+
+		MethodHandle combiner = MethodHandles.guardWithTest(NOT_NULL, identity, fallback);
+
+		MethodHandle cacheQuerier = MAP_GET.bindTo(cache);
+		cacheQuerier = cacheQuerier.asType(MethodType.methodType(Object.class, type.parameterType(0)));
+
+		return new ConstantCallSite(MethodHandles.foldArguments(combiner, cacheQuerier));
+	}
+
+	/**
+	 * Calls of the memoized method, for all the arguments.
+	 */
+	private interface Workload {
+		long run(int numberOfArguments);
+	}
+
+	private static final int DEFAULT_NUMBER_OF_ARGUMENTS = 100_000;
+	private static final int NUMBER_OF_HIT_ROUNDS = 50;
+	private static final int NUMBER_OF_REPEATS = 5;
+	private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private static final MethodType BSM_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Class.class);
+	private static final MethodType OPTIONS_BSM_TYPE = BSM_TYPE.appendParameterTypes(Object[].class);
+
+	public static void main(String args[]) throws Throwable {
+		int numberOfArguments = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUMBER_OF_ARGUMENTS;
+
+		for (String tableName : new String[] { "HASH MAP", "SPECIALIZED", "SPECIALIZED PRESIZED" }) {
+			String bsmName = tableName.startsWith("SPECIALIZED") ? "memoize" : "hashMapBSM";
+			Class<?> bsmClass = tableName.startsWith("SPECIALIZED") ? Memoizer.class : PrimitiveMemoBenchmark.class;
+			boolean presized = tableName.endsWith("PRESIZED");
+			MethodType bsmType = presized ? OPTIONS_BSM_TYPE : BSM_TYPE;
+			Object[] bsmArgs = presized ? new Object[] { PrimitiveMemoBenchmark.class, MemoTable.PRESIZED, numberOfArguments } 
+										: new Object[] { PrimitiveMemoBenchmark.class };
+
+			final ILongFunction longFunction = InvokeDynamic.prepareInvoker(ILongFunction.class, "mixLong", bsmName, bsmClass, bsmType, bsmArgs);
+			BenchmarkMemo("long(long), " + tableName, numberOfArguments, new Workload() {
+				@Override
+				public long run(int numberOfArguments) {
+					long sum = 0;
+					for (int n = 0; n < numberOfArguments; n++)
+						sum += longFunction.apply(n);
+					return sum;
+				}
+			});
+
+			final IIntFunction intFunction = InvokeDynamic.prepareInvoker(IIntFunction.class, "mixInt", bsmName, bsmClass, bsmType, bsmArgs);
+			BenchmarkMemo("int(int), " + tableName, numberOfArguments, new Workload() {
+				@Override
+				public long run(int numberOfArguments) {
+					long sum = 0;
+					for (int n = 0; n < numberOfArguments; n++)
+						sum += intFunction.apply(n);
+					return sum;
+				}
+			});
+
+			final IDoubleFunction doubleFunction = InvokeDynamic.prepareInvoker(IDoubleFunction.class, "mixDouble", bsmName, bsmClass, bsmType, bsmArgs);
+			BenchmarkMemo("double(double), " + tableName, numberOfArguments, new Workload() {
+				@Override
+				public long run(int numberOfArguments) {
+					double sum = 0;
+					for (int n = 0; n < numberOfArguments; n++)
+						sum += doubleFunction.apply(n * 0.5);
+					return (long) sum;
+				}
+			});
+		}
+	}
+
+	public static void BenchmarkMemo(String name, int numberOfArguments, Workload workload) {
+		System.out.println("\nBenchmark " + name);
+		boolean specialized = name.contains("SPECIALIZED");
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			Memoizer.clear(PrimitiveMemoBenchmark.class);
+			for (HashMap<Object, Object> cache : hashMapTables.values())
+				cache.clear();
+
+			long allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			long start = System.nanoTime();
+			long sum = workload.run(numberOfArguments);
+			long missTime = System.nanoTime() - start;
+			long missAllocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+
+			allocatedBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			start = System.nanoTime();
+			for (int round = 0; round < NUMBER_OF_HIT_ROUNDS; round++)
+				sum += workload.run(numberOfArguments);
+			long hitTime = System.nanoTime() - start;
+			long hitAllocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+
+			long hits = (long) NUMBER_OF_HIT_ROUNDS * numberOfArguments;
+			System.out.println(sum + ", MISSES: " + (missTime / numberOfArguments) + " ns/call, " + (missAllocated / numberOfArguments) + " bytes/call"
+								+ ", HITS: " + (hitTime / hits) + " ns/call, " + (hitAllocated / hits) + " bytes/call");
+			//after the warm-up, neither the hits nor the misses of the specialized tables must allocate at all
+			if (specialized && i > 0 && hitAllocated / hits > 0)
+				throw new AssertionError(name + " allocates " + (hitAllocated / hits) + " bytes per hit");
+			if (specialized && i > 0 && missAllocated / numberOfArguments > 0)
+				throw new AssertionError(name + " allocates " + (missAllocated / numberOfArguments) + " bytes per miss");
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package pl.confitura2012.lazyconstants;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Bytecode generator using the <a href='http://asm.ow2.org'>ASM</a> bytecode generator.
+ * <p/>
+ * The class structure and the constructor are copied from a pre-built template (see: {@link ClassTemplate}),
+ * only the class name (and the implemented interface) is changed. No frames nor maxs are computed by ASM,
+ * unless the former way is selected (<code>-Dinvokedynamic.computeFrames=true</code>, kept for comparison).
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+final class AsmBytecodeGenerator implements BytecodeGenerator {
+	private ClassWriter cw;
+	private MethodVisitor mv;
+	private boolean constructorCopied;
+	private String className;
+	private boolean staticMethod;
+	private final List<Label> labels = new ArrayList<Label>();
+
+	/**
+	 * Pre-built template of the generated classes: the class structure with the default, public constructor.
+	 * Copying the template (its constant pool and the constructor's bytecode) is cheaper than generating it.
+	 */
+	private static final class ClassTemplate {
+		static final ClassReader TEMPLATE;
+		static {
+			ClassWriter cw = new ClassWriter(0);
+			cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC + Opcodes.ACC_SUPER, "ClassWithIndyTemplate", null, "java/lang/Object", null);
+			generateParameterlessConstructor(cw);
+			cw.visitEnd();
+			TEMPLATE = new ClassReader(cw.toByteArray());
+		}
+	}
+
+	@Override
+	public void generateClass(final String className, Class<?> executableInterface) {
+		final String[] namesOfInterfaces = (executableInterface == null) ? null : new String[] { executableInterface.getName().replace('.', '/') };
+		this.className = className;
+
+		if (InvokeDynamic.computeFrames) {
+			cw = new ClassWriter(ClassWriter.COMPUTE_MAXS + ClassWriter.COMPUTE_FRAMES);
+			cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC + Opcodes.ACC_SUPER, className, null, "java/lang/Object", namesOfInterfaces);
+			return;
+		}
+
+		cw = new ClassWriter(ClassTemplate.TEMPLATE, 0);
+		ClassTemplate.TEMPLATE.accept(new ClassVisitor(Opcodes.ASM4, cw) {
+			@Override
+			public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+				super.visit(version, access, className, signature, superName, namesOfInterfaces);
+			}
+
+			@Override
+			public void visitEnd() {
+				//the class is ended in toByteArray (after adding the methods)
+			}
+		}, 0);
+		constructorCopied = true;
+	}
+
+	@Override
+	public void generateParameterlessConstructor() {
+		if (!constructorCopied)
+			generateParameterlessConstructor(cw);
+	}
+
+	private static void generateParameterlessConstructor(ClassWriter cw) {
+		MethodVisitor mv;
+
+		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(1, 1);
+		mv.visitEnd();
+	}
+
+	@Override
+	public void beginMethod(int access, String name, MethodType type) {
+		mv = cw.visitMethod(access, name, type.toMethodDescriptorString(), null, null);
+		mv.visitCode();
+		staticMethod = Modifier.isStatic(access);
+		labels.clear();
+	}
+
+	@Override
+	public void loadArgument(Class<?> type, int slot) {
+		mv.visitVarInsn(Type.getType(type).getOpcode(Opcodes.ILOAD), slot);
+	}
+
+	@Override
+	public void generateInvokeDynamicInstruction(String methodName, MethodType methodType, String bsmName, Class<?> bsmClass, MethodType bsmType, Object... bsmArgs) {
+		Object[] asmBsmArgs = manageBSMArguments(bsmArgs);
+
+		Handle bootstrap = new Handle(Opcodes.H_INVOKESTATIC, bsmClass.getName().replace('.', '/'), bsmName, bsmType.toMethodDescriptorString());
+		mv.visitInvokeDynamicInsn(methodName, methodType.toMethodDescriptorString(), bootstrap, asmBsmArgs);
+	}
+
+	/**
+	 * Manages types of the bootstrap methods arguments (the BSM can have many legal declarations).
+	 *
+	 * @param	bsmArgs Optional parameters to the bootstrap method
+	 * @return	The parameters converted to the ASM types
+	 */
+	private static Object[] manageBSMArguments(Object... bsmArgs) {
+		if (bsmArgs == null)
+			return new Object[0];
+
+		Object[] asmBsmArgs = bsmArgs.clone();
+		for (int i = 0; i < asmBsmArgs.length; i++) {
+			Object bsmArg = asmBsmArgs[i];
+			if (bsmArg instanceof Class<?>) {
+				asmBsmArgs[i] = Type.getType((Class<?>) bsmArg);
+				continue;
+			}
+	        if (bsmArg instanceof MethodType) {
+	        	asmBsmArgs[i] = Type.getType(((MethodType) bsmArg).toMethodDescriptorString());
+	            continue;
+	        }
+	        if (bsmArg instanceof MethodHandle) {
+	        	continue;
+	        }
+		}
+		return asmBsmArgs;
+	}
+
+	@Override
+	public void checkCast(Class<?> type) {
+		mv.visitTypeInsn(Opcodes.CHECKCAST, Type.getInternalName(type));
+	}
+
+	@Override
+	public void convertPrimitive(Class<?> from, Class<?> to) {
+		int fromSort = Type.getType(from).getOpcode(Opcodes.IRETURN);
+		int toSort = Type.getType(to).getOpcode(Opcodes.IRETURN);
+		if (fromSort == toSort)
+			return;
+
+		if (fromSort == Opcodes.IRETURN)
+			mv.visitInsn((toSort == Opcodes.LRETURN) ? Opcodes.I2L : (toSort == Opcodes.FRETURN) ? Opcodes.I2F : Opcodes.I2D);
+		else if (fromSort == Opcodes.LRETURN)
+			mv.visitInsn((toSort == Opcodes.FRETURN) ? Opcodes.L2F : Opcodes.L2D);
+		else
+			mv.visitInsn(Opcodes.F2D);
+	}
+
+	@Override
+	public void invokeMethod(boolean isStatic, Class<?> owner, String name, MethodType type) {
+		mv.visitMethodInsn(isStatic ? Opcodes.INVOKESTATIC : Opcodes.INVOKEVIRTUAL, Type.getInternalName(owner), name, type.toMethodDescriptorString());
+	}
+
+	@Override
+	public void pop(Class<?> type) {
+		mv.visitInsn((Type.getType(type).getSize() == 2) ? Opcodes.POP2 : Opcodes.POP);
+	}
+
+	@Override
+	public void storeLocal(Class<?> type, int slot) {
+		mv.visitVarInsn(Type.getType(type).getOpcode(Opcodes.ISTORE), slot);
+	}
+
+	@Override
+	public void pushInt(int value) {
+		if (value >= -1 && value <= 5)
+			mv.visitInsn(Opcodes.ICONST_0 + value);
+		else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+			mv.visitIntInsn(Opcodes.BIPUSH, value);
+		else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+			mv.visitIntInsn(Opcodes.SIPUSH, value);
+		else
+			mv.visitLdcInsn(value);
+	}
+
+	@Override
+	public void incrementLocal(int slot, int increment) {
+		mv.visitIincInsn(slot, increment);
+	}
+
+	@Override
+	public void arrayLength() {
+		mv.visitInsn(Opcodes.ARRAYLENGTH);
+	}
+
+	@Override
+	public void newArray(Class<?> componentType) {
+		switch (Type.getType(componentType).getSort()) {
+		case Type.BOOLEAN:	mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_BOOLEAN); break;
+		case Type.CHAR:		mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_CHAR); break;
+		case Type.BYTE:		mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_BYTE); break;
+		case Type.SHORT:	mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_SHORT); break;
+		case Type.INT:		mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT); break;
+		case Type.FLOAT:	mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_FLOAT); break;
+		case Type.LONG:		mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_LONG); break;
+		case Type.DOUBLE:	mv.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_DOUBLE); break;
+		default:			mv.visitTypeInsn(Opcodes.ANEWARRAY, Type.getInternalName(componentType));
+		}
+	}
+
+	@Override
+	public void loadArrayElement(Class<?> componentType) {
+		mv.visitInsn(Type.getType(componentType).getOpcode(Opcodes.IALOAD));
+	}
+
+	@Override
+	public void storeArrayElement(Class<?> componentType) {
+		mv.visitInsn(Type.getType(componentType).getOpcode(Opcodes.IASTORE));
+	}
+
+	@Override
+	public int newLabel() {
+		labels.add(new Label());
+		return labels.size() - 1;
+	}
+
+	@Override
+	public void placeLabel(int label, Class<?>... frameLocals) {
+		mv.visitLabel(labels.get(label));
+
+		List<Object> locals = new ArrayList<Object>(frameLocals.length + 1);
+		if (!staticMethod)
+			locals.add(className);
+		for (Class<?> local : frameLocals) {
+			switch (Type.getType(local).getSort()) {
+			case Type.LONG:		locals.add(Opcodes.LONG); break;
+			case Type.FLOAT:	locals.add(Opcodes.FLOAT); break;
+			case Type.DOUBLE:	locals.add(Opcodes.DOUBLE); break;
+			case Type.ARRAY:
+			case Type.OBJECT:	locals.add(Type.getInternalName(local)); break;
+			default:			locals.add(Opcodes.INTEGER);
+			}
+		}
+		mv.visitFrame(Opcodes.F_FULL, locals.size(), locals.toArray(), 0, new Object[0]);
+	}
+
+	@Override
+	public void jump(int label) {
+		mv.visitJumpInsn(Opcodes.GOTO, labels.get(label));
+	}
+
+	@Override
+	public void jumpIfGreaterOrEqual(int label) {
+		mv.visitJumpInsn(Opcodes.IF_ICMPGE, labels.get(label));
+	}
+
+	@Override
+	public void manageMethodResult(Class<?> returnType) {
+		if (void.class.equals(returnType)) {
+			mv.visitInsn(Opcodes.RETURN);
+		} else if (double.class.equals(returnType)) {
+			mv.visitInsn(Opcodes.DRETURN);
+		} else if (float.class.equals(returnType)) {
+			mv.visitInsn(Opcodes.FRETURN);
+		} else if ((int.class.equals(returnType) || (boolean.class.equals(returnType)) || (char.class.equals(returnType))
+				|| (short.class.equals(returnType)) || (byte.class.equals(returnType)))) {
+			mv.visitInsn(Opcodes.IRETURN);
+		} else if (long.class.equals(returnType)) {
+			mv.visitInsn(Opcodes.LRETURN);
+		} else {
+			mv.visitInsn(Opcodes.ARETURN);
+		}
+	}
+
+	@Override
+	public void endMethod(int maxStack, int maxLocals) {
+		mv.visitMaxs(maxStack, maxLocals);
+		mv.visitEnd();
+		mv = null;
+	}
+
+	@Override
+	public byte[] toByteArray() {
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+}
@@ -38,7 +38,7 @@ public class ConstantResourceImplWithIndy implements ConstantResource {
 		//I will be using the 'xml' constant here !
 		System.out.println("Called 'notNeedingTheXMLHere'");
 		try {
-			System.out.println("XML: " + mh.invoke());
+			System.out.println("XML: " + (String) mh.invokeExact());
 		} catch (Throwable e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,108 @@
+package pl.confitura2012.lazyconstants;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Benchmark of the two ways of implementing the whole {@link ConstantResource} interface at runtime: <ul>
+ * <li> <code>InvokeDynamic.prepareAs(ConstantResource.class, ...)</code> - a generated class with an InvokeDynamic instruction in each method, 
+ * all the methods bootstrapped by the same bootstrap method (keyed by the method name) </li>
+ * <li> <code>java.lang.reflect.Proxy</code> with an InvocationHandler dispatching on the method name </li></ul>
+ * Both implementations do the same: count the calls, and (in 'badlyNeedingTheXMLHere') add the length of the lazily parsed XML.
+ * <p/>
+ * Usage: <code>ConstantResourceProxyBenchmark [resource name]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class ConstantResourceProxyBenchmark {
+	private static final long NUMBER_OF_LOOPS = 100_000_000;
+	private static final int NUMBER_OF_REPEATS = 7;
+
+	private static long counter;
+
+	public static void count() {
+		counter++;
+	}
+
+	public static void countXML(String xml) {
+		counter += xml.length();
+	}
+
+	/**
+	 * BSM - bootstrap method of all the methods of the ConstantResource (the XML is parsed when the method needing it is called for the first time)
+	 */
+	public static CallSite bootstrapForConstantResource(MethodHandles.Lookup caller, String methodName, MethodType methodType, String resourceName) throws ReflectiveOperationException {
+		switch (methodName) {
+			case "notNeedingTheXMLHere":
+				return new ConstantCallSite(caller.findStatic(ConstantResourceProxyBenchmark.class, "count", methodType));
+			case "badlyNeedingTheXMLHere":
+				MethodHandle countXML = caller.findStatic(ConstantResourceProxyBenchmark.class, "countXML", MethodType.methodType(void.class, String.class));
+				return new ConstantCallSite(MethodHandles.insertArguments(countXML, 0, ParseHelper.doSomeHeavyParsing(resourceName)));
+			default:
+				throw new IllegalArgumentException("Unknown method: " + methodName);
+		}
+	}
+
+	/**
+	 * InvocationHandler doing the same as the targets linked by {@link #bootstrapForConstantResource}.
+	 */
+	public static class ConstantResourceHandler implements InvocationHandler {
+		private final String resourceName;
+		private String xml;
+
+		public ConstantResourceHandler(String resourceName) {
+			this.resourceName = resourceName;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			switch (method.getName()) {
+				case "notNeedingTheXMLHere":
+					count();
+					return null;
+				case "badlyNeedingTheXMLHere":
+					if (xml == null)
+						xml = ParseHelper.doSomeHeavyParsing(resourceName);
+					countXML(xml);
+					return null;
+				default:
+					return method.invoke(this, args);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Throwable {
+		String resourceName = (args.length > 0) ? args[0] : "test.xml";
+
+		ConstantResource indyResource = InvokeDynamic.prepareAs(ConstantResource.class, 
+										"bootstrapForConstantResource", ConstantResourceProxyBenchmark.class, 
+										MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, String.class), 
+										resourceName);
+		ConstantResource proxyResource = (ConstantResource) Proxy.newProxyInstance(ConstantResource.class.getClassLoader(), 
+										new Class<?>[] { ConstantResource.class }, new ConstantResourceHandler(resourceName));
+
+		BenchmarkConstantResource("INVOKE DYNAMIC (prepareAs)", indyResource);
+		BenchmarkConstantResource("PROXY", proxyResource);
+	}
+
+	public static void BenchmarkConstantResource(String name, ConstantResource resource) {
+		System.out.println("\nBenchmark CONSTANT RESOURCE " + name);
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			counter = 0;
+			long start = System.currentTimeMillis();
+			for (long x = 0; x < NUMBER_OF_LOOPS; x++) {
+				resource.notNeedingTheXMLHere();
+				resource.badlyNeedingTheXMLHere();
+			}
+			System.out.println(counter + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package pl.confitura2012.indyprocessor;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+
+/**
+ * Declares a call site, which is fully known at compile time, so the class with its InvokeDynamic instruction
+ * can be generated during the build (by the {@link IndyCallSiteProcessor} annotation processor) instead of at runtime.
+ * <p/>
+ * The annotation is put on the static field (or factory method) holding the result of <code>InvokeDynamic.prepare</code>
+ * (or <code>InvokeDynamic.prepareAs</code>, see: {@link #as}). Its attributes must describe exactly the same call site
+ * as the parameters of the prepare/prepareAs call. At runtime, InvokeDynamic then just loads the class generated at build time.
+ * The class is generated only when the project is compiled by javac with the processor on the processor path (see: {@link IndyCallSiteProcessor}
+ * for the build step), not by the Eclipse build: then the class is generated at runtime (with ASM on the classpath), as if not annotated.
+ * <p/>
+ * The bootstrap method returns a CallSite. Its arguments (after the lookup, the name and the type) are:
+ * first all of the {@link #classArgs}, then all of the {@link #stringArgs}.
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target({ ElementType.FIELD, ElementType.METHOD })
+public @interface IndyCallSite {
+	/**
+	 * Name of the method being invoked, as defined at the method's use (i.e. at the call site)
+	 */
+	String methodName();
+
+	/**
+	 * Type of the method's return value
+	 */
+	Class<?> returnType();
+
+	/**
+	 * Types of the method's parameters (if any)
+	 */
+	Class<?>[] parameterTypes() default {};
+
+	/**
+	 * Name of the call site's bootstrap method
+	 */
+	String bsmName();
+
+	/**
+	 * Class in which the bootstrap method is located (also the package of the generated class)
+	 */
+	Class<?> bsmClass();
+
+	/**
+	 * Types of the bootstrap method's parameters
+	 */
+	Class<?>[] bsmParameterTypes() default { Lookup.class, String.class, MethodType.class, Object[].class };
+
+	/**
+	 * Class arguments passed from the call site to the bootstrap method
+	 */
+	Class<?>[] classArgs() default {};
+
+	/**
+	 * String arguments passed from the call site to the bootstrap method (after the class arguments)
+	 */
+	String[] stringArgs() default {};
+
+	/**
+	 * Functional interface implemented by the generated class (as for <code>InvokeDynamic.prepareAs</code>),
+	 * or <code>void.class</code> for a static method (as for <code>InvokeDynamic.prepare</code>)
+	 */
+	Class<?> as() default void.class;
+}
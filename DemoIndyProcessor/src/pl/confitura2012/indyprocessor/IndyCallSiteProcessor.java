@@ -0,0 +1,329 @@
+package pl.confitura2012.indyprocessor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.StandardLocation;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Annotation processor generating (at build time) the classes with the InvokeDynamic instructions for the call sites declared with {@link IndyCallSite}.
+ * The generated classes have the same structure as the ones generated at runtime by <code>InvokeDynamic</code>: <ul>
+ * <li> a default, public constructor </li>
+ * <li> a single, public static method (or the implementation of the functional interface's method), containing the InvokeDynamic bytecode instruction</li></ul>
+ * Each class is put in the package of the bootstrap method's class and is named after the hash of the call site's signature
+ * (exactly the same way as <code>InvokeDynamic.SiteDescriptor.pregeneratedClassName</code> does),
+ * so <code>InvokeDynamic.prepare/prepareAs</code> find and load it instead of generating the class at runtime.
+ * The interface's method is implemented without any conversions of the arguments and the result (unlike at runtime, see: <code>InvokeDynamic.manageConversion</code>),
+ * nor as a bulk method, so a call site declared with <code>as</code> must have exactly the signature of the interface's (single abstract) method, 
+ * otherwise the processor reports an error.
+ * The names of the generated classes of each package are listed in the resource <code>ClassWithIndy.index</code> of the package,
+ * so <code>InvokeDynamic.prepareAll/warmUp</code> know which call sites have their classes generated at build time without looking each class up.
+ * <p/>
+ * The processor must be run by javac: it writes class files (not sources), which the annotation processing of the Eclipse build does not support,
+ * so the Eclipse build of the projects with DemoIndyProcessor on their build path (DemoIndyThird, DemoFifth) only compiles the annotations,
+ * and their call sites are generated at runtime (as if they were not annotated). The build step, e.g. of DemoFifth
+ * (ASM is needed only on the processor path, not at runtime):
+ * <pre>
+ * javac -cp C:/java/asm-4.0/lib/all/asm-all-4.0.jar -d DemoIndyProcessor/bin DemoIndyProcessor/src/pl/confitura2012/indyprocessor/*.java
+ * javac -cp DemoIndyProcessor/bin;C:/java/asm-4.0/lib/all/asm-all-4.0.jar
+ *       -processorpath DemoIndyProcessor/bin;C:/java/asm-4.0/lib/all/asm-all-4.0.jar
+ *       -processor pl.confitura2012.indyprocessor.IndyCallSiteProcessor
+ *       -d DemoFifth/bin DemoFifth/src/pl/confitura2012/speedrecurence/*.java
+ * </pre>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+@SupportedAnnotationTypes("pl.confitura2012.indyprocessor.IndyCallSite")
+public class IndyCallSiteProcessor extends AbstractProcessor {
+	private static final String NAME_OF_CLASS_WITH_INVOKEDYNAMIC = "ClassWithIndy";
+	private static final String NAME_OF_METHOD_WITH_INVOKEDYNAMIC = "MethodWithInvokeDynamic";
+	private static final String CALL_SITE_DESCRIPTOR = "Ljava/lang/invoke/CallSite;";
+	private static final String NAME_OF_PREGENERATED_CLASSES_INDEX = NAME_OF_CLASS_WITH_INVOKEDYNAMIC + ".index";
+
+	private final Set<String> generatedClasses = new HashSet<String>();
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+		for (TypeElement annotation : annotations) {
+			for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+				for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+					if (!mirror.getAnnotationType().asElement().equals(annotation))
+						continue;
+					try {
+						generateCallSiteClass(element, mirror);
+					} catch (IOException | RuntimeException e) {
+						processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot generate the call site class: " + e, element, mirror);
+					}
+				}
+			}
+		}
+		if (roundEnv.processingOver())
+			writeIndexes();
+		return true;
+	}
+
+	/**
+	 * Writes the index of the generated classes (their names, without the package, one per line) in each package with the generated classes.
+	 */
+	private void writeIndexes() {
+		Map<String, Set<String>> classNamesByPackage = new TreeMap<String, Set<String>>();
+		for (String className : generatedClasses) {
+			int lastDot = className.lastIndexOf('.');
+			String packageName = (lastDot < 0) ? "" : className.substring(0, lastDot);
+			Set<String> classNames = classNamesByPackage.get(packageName);
+			if (classNames == null) {
+				classNames = new TreeSet<String>();
+				classNamesByPackage.put(packageName, classNames);
+			}
+			classNames.add(className.substring(lastDot + 1));
+		}
+
+		for (Map.Entry<String, Set<String>> classNamesOfPackage : classNamesByPackage.entrySet()) {
+			try (Writer out = new OutputStreamWriter(processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, classNamesOfPackage.getKey(), 
+																									NAME_OF_PREGENERATED_CLASSES_INDEX).openOutputStream(), StandardCharsets.UTF_8)) {
+				for (String className : classNamesOfPackage.getValue())
+					out.write(className + "\n");
+			} catch (IOException e) {
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "Cannot write the index of the generated classes of the package " 
+																					+ classNamesOfPackage.getKey() + ": " + e);
+			}
+		}
+	}
+
+	/**
+	 * Generates (and writes as a class file) the class with the call site declared by the given annotation.
+	 *
+	 * @param	element Element annotated with {@link IndyCallSite}
+	 * @param	mirror The annotation
+	 */
+	private void generateCallSiteClass(Element element, AnnotationMirror mirror) throws IOException {
+		Map<? extends ExecutableElement, ? extends AnnotationValue> values = processingEnv.getElementUtils().getElementValuesWithDefaults(mirror);
+
+		String methodName = (String) value(values, "methodName");
+		String methodDescriptor = methodDescriptor(typeValue(values, "returnType"), typeValues(values, "parameterTypes"));
+		String bsmName = (String) value(values, "bsmName");
+		TypeMirror bsmClass = typeValue(values, "bsmClass");
+		String bsmDescriptor = methodDescriptor(null, typeValues(values, "bsmParameterTypes"));
+		TypeMirror interfaceType = typeValue(values, "as");
+		boolean asInterface = interfaceType.getKind() != TypeKind.VOID;
+
+		List<Object> bsmArgs = new ArrayList<Object>();
+		StringBuilder signature = new StringBuilder();
+		signature.append(asInterface ? binaryName(interfaceType) : "").append(';')
+			.append(methodName).append(';').append(methodDescriptor).append(';')
+			.append(binaryName(bsmClass)).append(';').append(bsmName).append(';').append(bsmDescriptor);
+		for (TypeMirror classArg : typeValues(values, "classArgs")) {
+			signature.append(";C").append(descriptor(classArg));
+			bsmArgs.add(Type.getType(descriptor(classArg)));
+		}
+		for (AnnotationValue stringArg : listValue(values, "stringArgs")) {
+			signature.append(";S").append(stringArg.getValue());
+			bsmArgs.add(stringArg.getValue());
+		}
+
+		String packageName = processingEnv.getElementUtils().getPackageOf(processingEnv.getTypeUtils().asElement(bsmClass)).getQualifiedName().toString();
+		String className = (packageName.isEmpty() ? "" : packageName + ".") + NAME_OF_CLASS_WITH_INVOKEDYNAMIC + "_" + Long.toHexString(hash(signature));
+		if (!generatedClasses.add(className))
+			return;
+
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+		String[] namesOfInterfaces = asInterface ? new String[] { binaryName(interfaceType).replace('.', '/') } : null;
+		cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC + Opcodes.ACC_SUPER, className.replace('.', '/'), null, "java/lang/Object", namesOfInterfaces);
+
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(-1, -1);
+		mv.visitEnd();
+
+		int slot;
+		if (asInterface) {
+			ExecutableElement interfaceMethod = interfaceMethod(interfaceType);
+			String interfaceMethodDescriptor = methodDescriptor(interfaceMethod);
+			if (!interfaceMethodDescriptor.equals(methodDescriptor)) {
+				generatedClasses.remove(className);
+				processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "The call site " + methodName + methodDescriptor 
+						+ " does not match the method " + interfaceMethod.getSimpleName() + interfaceMethodDescriptor + " of " + binaryName(interfaceType) 
+						+ ": a pregenerated call site converts neither the arguments nor the result (nor is a bulk method), declare it with the signature of the interface's method", element, mirror);
+				return;
+			}
+
+			mv = cw.visitMethod(Opcodes.ACC_PUBLIC, interfaceMethod.getSimpleName().toString(), interfaceMethodDescriptor, null, null);
+			slot = 1;
+			for (Type parameterType : Type.getArgumentTypes(interfaceMethodDescriptor)) {
+				mv.visitVarInsn(parameterType.getOpcode(Opcodes.ILOAD), slot);
+				slot += parameterType.getSize();
+			}
+		} else {
+			mv = cw.visitMethod(Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC, NAME_OF_METHOD_WITH_INVOKEDYNAMIC, methodDescriptor, null, null);
+			slot = 0;
+			for (Type parameterType : Type.getArgumentTypes(methodDescriptor)) {
+				mv.visitVarInsn(parameterType.getOpcode(Opcodes.ILOAD), slot);
+				slot += parameterType.getSize();
+			}
+		}
+		mv.visitCode();
+		Handle bootstrap = new Handle(Opcodes.H_INVOKESTATIC, binaryName(bsmClass).replace('.', '/'), bsmName, bsmDescriptor);
+		mv.visitInvokeDynamicInsn(methodName, methodDescriptor, bootstrap, bsmArgs.toArray());
+		mv.visitInsn(Type.getReturnType(methodDescriptor).getOpcode(Opcodes.IRETURN));
+		mv.visitMaxs(-1, -1);
+		mv.visitEnd();
+
+		cw.visitEnd();
+
+		try (OutputStream out = processingEnv.getFiler().createClassFile(className, element).openOutputStream()) {
+			out.write(cw.toByteArray());
+		}
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of the call site's signature (the same as computed by <code>InvokeDynamic.SiteDescriptor</code>).
+	 */
+	private static long hash(CharSequence signature) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < signature.length(); i++) {
+			hash ^= signature.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * @return	The only abstract method of the given functional interface, including the inherited ones but not the public methods of the Object class 
+	 * 			(the same as <code>InvokeDynamic.singleAbstractMethodOf</code> finds at runtime)
+	 */
+	private ExecutableElement interfaceMethod(TypeMirror interfaceType) {
+		Set<String> methodsOfObject = new HashSet<String>();
+		for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getElementUtils().getTypeElement("java.lang.Object").getEnclosedElements())) {
+			if (method.getModifiers().contains(Modifier.PUBLIC))
+				methodsOfObject.add(method.getSimpleName() + parameterDescriptor(method));
+		}
+
+		Map<String, ExecutableElement> methods = new TreeMap<String, ExecutableElement>();
+		collectAbstractMethods(interfaceType, methodsOfObject, methods);
+		if (methods.size() != 1)
+			throw new IllegalArgumentException("Not a functional interface (with a single abstract method): " + binaryName(interfaceType));
+		return methods.values().iterator().next();
+	}
+
+	/**
+	 * Collects the abstract methods of the given interface and of its superinterfaces, each signature only once.
+	 */
+	private void collectAbstractMethods(TypeMirror interfaceType, Set<String> methodsOfObject, Map<String, ExecutableElement> methods) {
+		for (ExecutableElement method : ElementFilter.methodsIn(processingEnv.getTypeUtils().asElement(interfaceType).getEnclosedElements())) {
+			if (!method.getModifiers().contains(Modifier.ABSTRACT) || methodsOfObject.contains(method.getSimpleName() + parameterDescriptor(method)))
+				continue;
+			String signature = method.getSimpleName() + methodDescriptor(method);
+			if (!methods.containsKey(signature))
+				methods.put(signature, method);
+		}
+		for (TypeMirror superinterfaceType : processingEnv.getTypeUtils().directSupertypes(interfaceType)) {
+			if (processingEnv.getTypeUtils().asElement(superinterfaceType).getKind().isInterface())
+				collectAbstractMethods(superinterfaceType, methodsOfObject, methods);
+		}
+	}
+
+	private String methodDescriptor(ExecutableElement method) {
+		List<TypeMirror> parameterTypes = new ArrayList<TypeMirror>();
+		for (Element parameter : method.getParameters())
+			parameterTypes.add(parameter.asType());
+		return methodDescriptor(method.getReturnType(), parameterTypes);
+	}
+
+	private String parameterDescriptor(ExecutableElement method) {
+		String descriptor = methodDescriptor(method);
+		return descriptor.substring(0, descriptor.indexOf(')') + 1);
+	}
+
+	private String methodDescriptor(TypeMirror returnType, List<TypeMirror> parameterTypes) {
+		StringBuilder descriptor = new StringBuilder("(");
+		for (TypeMirror parameterType : parameterTypes)
+			descriptor.append(descriptor(parameterType));
+		descriptor.append(')').append((returnType == null) ? CALL_SITE_DESCRIPTOR : descriptor(returnType));
+		return descriptor.toString();
+	}
+
+	private String descriptor(TypeMirror type) {
+		switch (type.getKind()) {
+			case BOOLEAN: return "Z";
+			case BYTE: return "B";
+			case CHAR: return "C";
+			case SHORT: return "S";
+			case INT: return "I";
+			case LONG: return "J";
+			case FLOAT: return "F";
+			case DOUBLE: return "D";
+			case VOID: return "V";
+			case ARRAY: return "[" + descriptor(((ArrayType) type).getComponentType());
+			default: return "L" + binaryName(type).replace('.', '/') + ";";
+		}
+	}
+
+	private String binaryName(TypeMirror type) {
+		TypeElement element = (TypeElement) processingEnv.getTypeUtils().asElement(processingEnv.getTypeUtils().erasure(type));
+		return processingEnv.getElementUtils().getBinaryName(element).toString();
+	}
+
+	private static Object value(Map<? extends ExecutableElement, ? extends AnnotationValue> values, String name) {
+		for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : values.entrySet()) {
+			if (entry.getKey().getSimpleName().contentEquals(name))
+				return entry.getValue().getValue();
+		}
+		throw new IllegalArgumentException("Missing attribute: " + name);
+	}
+
+	private static TypeMirror typeValue(Map<? extends ExecutableElement, ? extends AnnotationValue> values, String name) {
+		return (TypeMirror) value(values, name);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<? extends AnnotationValue> listValue(Map<? extends ExecutableElement, ? extends AnnotationValue> values, String name) {
+		return (List<? extends AnnotationValue>) value(values, name);
+	}
+
+	private static List<TypeMirror> typeValues(Map<? extends ExecutableElement, ? extends AnnotationValue> values, String name) {
+		List<TypeMirror> types = new ArrayList<TypeMirror>();
+		for (AnnotationValue value : listValue(values, name))
+			types.add((TypeMirror) value.getValue());
+		return types;
+	}
+}
@@ -0,0 +1,193 @@
+package pl.confitura2012.helloindyworld;
+
+import java.lang.invoke.MethodType;
+
+/**
+ * Bytecode generator used by {@link InvokeDynamic} to generate a class with the InvokeDynamic instruction(s).
+ * A generator instance generates a single class, by the following steps (in this order): <ol>
+ * <li> {@link #generateClass} and {@link #generateParameterlessConstructor} </li>
+ * <li> for each method: {@link #beginMethod}, {@link #loadArgument} (for each argument),
+ * {@link #generateInvokeDynamicInstruction}, {@link #manageMethodResult} and {@link #endMethod} 
+ * (the arguments and the result can be converted between the types of the method and the call site, e.g. with {@link #convertPrimitive}) </li>
+ * <li> {@link #toByteArray} </li></ol>
+ * Most of the generated methods are straight-line code. The only branches are the ones of the loops over the arrays (see: {@link #placeLabel}), 
+ * with a stack map frame given explicitly at each label, so the generators need neither computing the stack map frames, nor the max stack/locals sizes.
+ * <p/>
+ * The implementations are selected with {@link InvokeDynamic.Generator}.
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+interface BytecodeGenerator {
+	/**
+	 * Generates the basic section of the class structure (class name, modifiers, etc.)
+	 *
+	 * @param	className Internal name of the generated class (including its package)
+	 * @param	executableInterface Interface which the generated class will implement (or null)
+	 */
+	void generateClass(String className, Class<?> executableInterface);
+
+	/**
+	 * Generates the default, public constructor.
+	 */
+	void generateParameterlessConstructor();
+
+	/**
+	 * Starts generating a method.
+	 *
+	 * @param	access Modifiers of the method (see: {@link java.lang.reflect.Modifier})
+	 * @param	name Name of the method
+	 * @param	type Signature of the method
+	 */
+	void beginMethod(int access, String name, MethodType type);
+
+	/**
+	 * Loads (pushes on the operand stack) the method's argument.
+	 *
+	 * @param	type Type of the argument
+	 * @param	slot Local variable slot of the argument
+	 */
+	void loadArgument(Class<?> type, int slot);
+
+	/**
+	 * Generates INVOKEDYNAMIC bytecode instruction.
+	 *
+	 * @param	methodName Name of the callsite
+	 * @param	methodType Signature of the callsite
+	 * @param	bsmName Name of the bootstrap method
+	 * @param	bsmClass Class in which the bootstrap method is located
+	 * @param	bsmType Signature of the bootstrap method
+	 * @param	bsmArgs Optional parameters to the bootstrap method
+	 */
+	void generateInvokeDynamicInstruction(String methodName, MethodType methodType, String bsmName, Class<?> bsmClass, MethodType bsmType, Object... bsmArgs);
+
+	/**
+	 * Casts the reference on top of the operand stack to the given type (CHECKCAST).
+	 *
+	 * @param	type Type of the reference after the cast
+	 */
+	void checkCast(Class<?> type);
+
+	/**
+	 * Converts the primitive value on top of the operand stack (widening primitive conversion, e.g. I2L).
+	 *
+	 * @param	from Type of the value
+	 * @param	to Type of the converted value
+	 */
+	void convertPrimitive(Class<?> from, Class<?> to);
+
+	/**
+	 * Invokes the given method (e.g. boxing with <code>Integer.valueOf</code>, or unboxing with <code>Integer.intValue</code>).
+	 *
+	 * @param	isStatic true, to invoke a static method (INVOKESTATIC), false - to invoke a virtual one (INVOKEVIRTUAL)
+	 * @param	owner Class in which the method is located
+	 * @param	name Name of the method
+	 * @param	type Signature of the method
+	 */
+	void invokeMethod(boolean isStatic, Class<?> owner, String name, MethodType type);
+
+	/**
+	 * Drops the value on top of the operand stack.
+	 *
+	 * @param	type Type of the value
+	 */
+	void pop(Class<?> type);
+
+	/**
+	 * Stores the value on top of the operand stack in the local variable.
+	 *
+	 * @param	type Type of the value
+	 * @param	slot Local variable slot
+	 */
+	void storeLocal(Class<?> type, int slot);
+
+	/**
+	 * Pushes the int constant on the operand stack.
+	 *
+	 * @param	value The constant
+	 */
+	void pushInt(int value);
+
+	/**
+	 * Increments the int local variable (IINC).
+	 *
+	 * @param	slot Local variable slot
+	 * @param	increment Increment (-128..127)
+	 */
+	void incrementLocal(int slot, int increment);
+
+	/**
+	 * Replaces the array on top of the operand stack with its length (ARRAYLENGTH).
+	 */
+	void arrayLength();
+
+	/**
+	 * Replaces the length on top of the operand stack with a new array of that length (NEWARRAY or ANEWARRAY).
+	 *
+	 * @param	componentType Type of the array's elements
+	 */
+	void newArray(Class<?> componentType);
+
+	/**
+	 * Replaces the array and the index on top of the operand stack with the array's element (e.g. LALOAD).
+	 *
+	 * @param	componentType Type of the array's elements
+	 */
+	void loadArrayElement(Class<?> componentType);
+
+	/**
+	 * Stores the value on top of the operand stack in the array's element (the array and the index are below the value, e.g. LASTORE).
+	 *
+	 * @param	componentType Type of the array's elements
+	 */
+	void storeArrayElement(Class<?> componentType);
+
+	/**
+	 * @return	A new label (of the current method), to be placed with {@link #placeLabel} and jumped to
+	 */
+	int newLabel();
+
+	/**
+	 * Places the label at the current position of the method, with the stack map frame (the operand stack must be empty at the label).
+	 *
+	 * @param	label The label
+	 * @param	frameLocals Types of the local variables at the label, without 'this' (which is added for the non-static methods)
+	 */
+	void placeLabel(int label, Class<?>... frameLocals);
+
+	/**
+	 * Jumps to the label (GOTO).
+	 *
+	 * @param	label The label
+	 */
+	void jump(int label);
+
+	/**
+	 * Jumps to the label if the int below the top of the operand stack is greater than or equal to the int on top of it (IF_ICMPGE).
+	 *
+	 * @param	label The label
+	 */
+	void jumpIfGreaterOrEqual(int label);
+
+	/**
+	 * Generates the return (of the method's result, if any).
+	 *
+	 * @param	returnType Type of the method's result
+	 */
+	void manageMethodResult(Class<?> returnType);
+
+	/**
+	 * Ends generating the method.
+	 *
+	 * @param	maxStack Max size of the method's operand stack
+	 * @param	maxLocals Max number of the method's local variable slots
+	 */
+	void endMethod(int maxStack, int maxLocals);
+
+	/**
+	 * Ends generating the class.
+	 *
+	 * @return	bytecode of the generated class
+	 */
+	byte[] toByteArray();
+}
@@ -29,7 +29,7 @@ public class HelloInDyWorld1 {
 	public static void main(String args[]) throws Throwable {
 		MethodHandle mh = InvokeDynamic.prepare("run me", MethodType.methodType(String.class, String.class), 
 												"myBSM", HelloInDyWorld1.class, MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Object[].class));
-		System.out.println(mh.invoke("Confitura"));
+		System.out.println((String) mh.invokeExact("Confitura"));
 
 	}
 }
\ No newline at end of file
@@ -0,0 +1,117 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+
+import pl.confitura2012.invokedynamic.IndyVsStaticVsReflectionBenchmark.IExecutable;
+
+/**
+ * Allocation-per-call benchmark of the dynamic calls of the benchmark method (<code>long sumAndMultiply(long, long, int)</code>): <ul>
+ * <li> exact invoker (see: {@link InvokeDynamic#prepareInvoker}) </li>
+ * <li> object implementing an interface with a different signature (<code>long execute(int, int, int)</code>),
+ * the arguments are widened in the generated method </li>
+ * <li> MethodHandle invoked with <code>invokeExact</code> </li>
+ * <li> MethodHandle invoked with the generic <code>invoke</code> and boxed arguments (goes through <code>asType</code>) </li></ul>
+ * The allocated bytes are taken from the current thread's allocation counter (<code>com.sun.management.ThreadMXBean</code>).
+ * The exact calls must not allocate (i.e. must not box), otherwise the benchmark fails with an AssertionError.
+ * <p/>
+ * Usage: <code>BoxingAllocationBenchmark [number of calls]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class BoxingAllocationBenchmark {
+	public interface IIntExecutable {
+		public long execute(int a, int b, int multiplier);
+	}
+
+	private static final int DEFAULT_NUMBER_OF_CALLS = 1_000_000;
+	private static final int NUMBER_OF_REPEATS = 7;
+	private static final int MULTIPLIER = 2;
+	private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private static final MethodType SITE_TYPE = MethodType.methodType(long.class, long.class, long.class, int.class);
+	private static final MethodType BSM_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Object[].class);
+
+	public static void main(String args[]) throws Throwable {
+		int numberOfCalls = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUMBER_OF_CALLS;
+
+		IExecutable invoker = InvokeDynamic.prepareInvoker(IExecutable.class, "run me", "myBSM", IndyVsStaticVsReflectionBenchmark.class, BSM_TYPE);
+		IIntExecutable adapter = InvokeDynamic.prepareAs(IIntExecutable.class, "run me", SITE_TYPE, "myBSM", IndyVsStaticVsReflectionBenchmark.class, BSM_TYPE);
+		MethodHandle mh = InvokeDynamic.prepare("run me", SITE_TYPE, "myBSM", IndyVsStaticVsReflectionBenchmark.class, BSM_TYPE);
+
+		assertNoAllocation("EXACT INVOKER", BenchmarkExactInvoker(invoker, numberOfCalls));
+		assertNoAllocation("INTERFACE WITH WIDENED ARGUMENTS", BenchmarkWideningAdapter(adapter, numberOfCalls));
+		assertNoAllocation("METHOD HANDLE INVOKE EXACT", BenchmarkInvokeExact(mh, numberOfCalls));
+		BenchmarkGenericInvoke(mh, numberOfCalls);
+	}
+
+	private static void assertNoAllocation(String name, long bytesPerCall) {
+		if (bytesPerCall > 0)
+			throw new AssertionError(name + " allocates " + bytesPerCall + " bytes/call");
+	}
+
+	public static long BenchmarkExactInvoker(IExecutable exec, int numberOfCalls) {
+		System.out.println("\nBenchmark ALLOCATION, EXACT INVOKER");
+		long bytesPerCall = 0;
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			long sum = 0;
+			for (int x = 0; x < numberOfCalls; x++)
+				sum += exec.execute(x, x, MULTIPLIER);
+			bytesPerCall = report(sum, allocated, numberOfCalls);
+		}
+		return bytesPerCall;
+	}
+
+	public static long BenchmarkWideningAdapter(IIntExecutable exec, int numberOfCalls) {
+		System.out.println("\nBenchmark ALLOCATION, INTERFACE WITH WIDENED ARGUMENTS");
+		long bytesPerCall = 0;
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			long sum = 0;
+			for (int x = 0; x < numberOfCalls; x++)
+				sum += exec.execute(x, x, MULTIPLIER);
+			bytesPerCall = report(sum, allocated, numberOfCalls);
+		}
+		return bytesPerCall;
+	}
+
+	public static long BenchmarkInvokeExact(MethodHandle mh, int numberOfCalls) throws Throwable {
+		System.out.println("\nBenchmark ALLOCATION, METHOD HANDLE INVOKE EXACT");
+		long bytesPerCall = 0;
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			long sum = 0;
+			for (long x = 0; x < numberOfCalls; x++)
+				sum += (long) mh.invokeExact(x, x, MULTIPLIER);
+			bytesPerCall = report(sum, allocated, numberOfCalls);
+		}
+		return bytesPerCall;
+	}
+
+	public static long BenchmarkGenericInvoke(MethodHandle mh, int numberOfCalls) throws Throwable {
+		System.out.println("\nBenchmark ALLOCATION, METHOD HANDLE GENERIC INVOKE (BOXED)");
+		long bytesPerCall = 0;
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+			Long sum = 0L;
+			for (long x = 0; x < numberOfCalls; x++) {
+				Object a = x;
+				sum += (Long) mh.invoke(a, a, (Object) MULTIPLIER);
+			}
+			bytesPerCall = report(sum, allocated, numberOfCalls);
+		}
+		return bytesPerCall;
+	}
+
+	private static long report(long sum, long allocatedBefore, int numberOfCalls) {
+		long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - allocatedBefore;
+		long bytesPerCall = allocated / numberOfCalls;
+		System.out.println(sum + ", ALLOCATED: " + allocated + " bytes (" + bytesPerCall + " bytes/call)");
+		return bytesPerCall;
+	}
+}
@@ -0,0 +1,184 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+
+/**
+ * Benchmark of the bulk invokers (see: {@link InvokeDynamic#prepareBulk}) against the per-element calls of the call site.
+ * For each primitive shape (<code>long</code>, <code>int</code>, <code>double</code>) the same number of elements is computed: <ul>
+ * <li> PER ELEMENT - <code>out[i] = exec.execute(a[i], b[i], MULTIPLIER)</code>, the interface and the call site are crossed for each element </li>
+ * <li> BULK, OUTPUT ARRAY - <code>bulk.apply(a, b, MULTIPLIER, out)</code>, the loop is in the generated method, the batch does not allocate </li>
+ * <li> BULK, NEW ARRAY - <code>out = bulk.apply(a, b, MULTIPLIER)</code>, a new array for each batch </li>
+ * <li> STATIC - <code>out[i] = sumAndMultiply(a[i], b[i], MULTIPLIER)</code>, for reference </li></ul>
+ * <p/>
+ * Usage: <code>BulkInvocationBenchmark [length of the arrays]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class BulkInvocationBenchmark {
+	public interface ILongExecutable {
+		public long execute(long a, long b, int multiplier);
+	}
+
+	public interface ILongBulk {
+		public void apply(long[] a, long[] b, int multiplier, long[] result);
+	}
+
+	public interface ILongBulkAllocating {
+		public long[] apply(long[] a, long[] b, int multiplier);
+	}
+
+	public interface IIntBulk {
+		public void apply(int[] a, int[] b, int multiplier, int[] result);
+	}
+
+	public interface IDoubleBulk {
+		public void apply(double[] a, double[] b, int multiplier, double[] result);
+	}
+
+	public static long sumAndMultiply(long a, long b, int multiplier) {
+		return multiplier * (a + b);
+	}
+
+	public static int sumAndMultiply(int a, int b, int multiplier) {
+		return multiplier * (a + b);
+	}
+
+	public static double sumAndMultiply(double a, double b, int multiplier) {
+		return multiplier * (a + b);
+	}
+
+	/**
+	 * BSM - bootstrap method, links the call site to the <code>sumAndMultiply</code> method of the call site's type
+	 */
+	public static CallSite sumAndMultiplyBSM(MethodHandles.Lookup caller, String methodName, MethodType methodType) throws ReflectiveOperationException {
+		return new ConstantCallSite(caller.findStatic(BulkInvocationBenchmark.class, "sumAndMultiply", methodType));
+	}
+
+	private static final int DEFAULT_LENGTH = 10_000;
+	private static final long NUMBER_OF_ELEMENTS = 100_000_000;
+	private static final int NUMBER_OF_REPEATS = 7;
+	private static final int MULTIPLIER = 2;
+
+	private static final MethodType BSM_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class);
+
+	public static void main(String args[]) throws Throwable {
+		int length = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_LENGTH;
+		long[] a = new long[length];
+		long[] b = new long[length];
+		for (int i = 0; i < length; i++) {
+			a[i] = i;
+			b[i] = length - i;
+		}
+
+		MethodType longSite = MethodType.methodType(long.class, long.class, long.class, int.class);
+		BenchmarkPerElement(InvokeDynamic.prepareAs(ILongExecutable.class, "sumAndMultiply", longSite, "sumAndMultiplyBSM", BulkInvocationBenchmark.class, BSM_TYPE), a, b);
+		BenchmarkBulk(InvokeDynamic.prepareBulk(ILongBulk.class, "sumAndMultiply", longSite, "sumAndMultiplyBSM", BulkInvocationBenchmark.class, BSM_TYPE), a, b);
+		BenchmarkBulkAllocating(InvokeDynamic.prepareBulk(ILongBulkAllocating.class, "sumAndMultiply", longSite, "sumAndMultiplyBSM", BulkInvocationBenchmark.class, BSM_TYPE), a, b);
+		BenchmarkStatic(a, b);
+
+		int[] intA = new int[length];
+		int[] intB = new int[length];
+		double[] doubleA = new double[length];
+		double[] doubleB = new double[length];
+		for (int i = 0; i < length; i++) {
+			intA[i] = (int) a[i];
+			intB[i] = (int) b[i];
+			doubleA[i] = a[i];
+			doubleB[i] = b[i];
+		}
+		BenchmarkBulk(InvokeDynamic.prepareBulk(IIntBulk.class, "sumAndMultiply", MethodType.methodType(int.class, int.class, int.class, int.class),
+												"sumAndMultiplyBSM", BulkInvocationBenchmark.class, BSM_TYPE), intA, intB);
+		BenchmarkBulk(InvokeDynamic.prepareBulk(IDoubleBulk.class, "sumAndMultiply", MethodType.methodType(double.class, double.class, double.class, int.class),
+												"sumAndMultiplyBSM", BulkInvocationBenchmark.class, BSM_TYPE), doubleA, doubleB);
+	}
+
+	public static void BenchmarkPerElement(ILongExecutable exec, long[] a, long[] b) {
+		System.out.println("\nBenchmark LONG, PER ELEMENT");
+		long[] result = new long[a.length];
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long n = 0; n < NUMBER_OF_ELEMENTS; n += a.length) {
+				for (int j = 0; j < a.length; j++)
+					result[j] = exec.execute(a[j], b[j], MULTIPLIER);
+				sum += result[(int) (n % a.length)];
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	public static void BenchmarkBulk(ILongBulk bulk, long[] a, long[] b) {
+		System.out.println("\nBenchmark LONG, BULK, OUTPUT ARRAY");
+		long[] result = new long[a.length];
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long n = 0; n < NUMBER_OF_ELEMENTS; n += a.length) {
+				bulk.apply(a, b, MULTIPLIER, result);
+				sum += result[(int) (n % a.length)];
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	public static void BenchmarkBulkAllocating(ILongBulkAllocating bulk, long[] a, long[] b) {
+		System.out.println("\nBenchmark LONG, BULK, NEW ARRAY");
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long n = 0; n < NUMBER_OF_ELEMENTS; n += a.length) {
+				long[] result = bulk.apply(a, b, MULTIPLIER);
+				sum += result[(int) (n % a.length)];
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	public static void BenchmarkStatic(long[] a, long[] b) {
+		System.out.println("\nBenchmark LONG, STATIC");
+		long[] result = new long[a.length];
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long n = 0; n < NUMBER_OF_ELEMENTS; n += a.length) {
+				for (int j = 0; j < a.length; j++)
+					result[j] = sumAndMultiply(a[j], b[j], MULTIPLIER);
+				sum += result[(int) (n % a.length)];
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	public static void BenchmarkBulk(IIntBulk bulk, int[] a, int[] b) {
+		System.out.println("\nBenchmark INT, BULK, OUTPUT ARRAY");
+		int[] result = new int[a.length];
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long n = 0; n < NUMBER_OF_ELEMENTS; n += a.length) {
+				bulk.apply(a, b, MULTIPLIER, result);
+				sum += result[(int) (n % a.length)];
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	public static void BenchmarkBulk(IDoubleBulk bulk, double[] a, double[] b) {
+		System.out.println("\nBenchmark DOUBLE, BULK, OUTPUT ARRAY");
+		double[] result = new double[a.length];
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			double sum = 0;
+			for (long n = 0; n < NUMBER_OF_ELEMENTS; n += a.length) {
+				bulk.apply(a, b, MULTIPLIER, result);
+				sum += result[(int) (n % a.length)];
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Microbenchmark of generating (only, without defining) the classes with the InvokeDynamic instruction.
+ * Compares the cost per call site of: <ul>
+ * <li> the JDK-only class file writer ({@link InvokeDynamic.Generator#CLASS_FILE}) </li>
+ * <li> ASM copying the pre-built class template and giving the max stack/locals sizes computed from the method's type </li>
+ * <li> ASM computing the frames and maxs of the generated methods (<code>COMPUTE_MAXS + COMPUTE_FRAMES</code>) </li></ul>
+ * The first (cold) generation is reported separately, with the number of classes loaded by it 
+ * (the ASM ones are loaded by the first ASM generation only).
+ * <p/>
+ * Usage: <code>ClassGenerationBenchmark [number of call sites]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class ClassGenerationBenchmark {
+	private static final int DEFAULT_NUMBER_OF_CALL_SITES = 100_000;
+	private static final int NUMBER_OF_REPEATS = 7;
+	private static final ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+
+	public static void main(String args[]) throws Exception {
+		int numberOfCallSites = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUMBER_OF_CALL_SITES;
+
+		InvokeDynamic.SiteDescriptor staticSite = new InvokeDynamic.SiteDescriptor(
+				"run me", MethodType.methodType(long.class, long.class, long.class, int.class),
+				"myBSM", IndyVsStaticVsReflectionBenchmark.class, MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Object[].class));
+
+		BenchmarkClassGeneration("CLASS FILE WRITER", InvokeDynamic.Generator.CLASS_FILE, false, staticSite, numberOfCallSites);
+		BenchmarkClassGeneration("ASM TEMPLATE + PRECOMPUTED MAXS", InvokeDynamic.Generator.ASM, false, staticSite, numberOfCallSites);
+		BenchmarkClassGeneration("ASM COMPUTE FRAMES", InvokeDynamic.Generator.ASM, true, staticSite, numberOfCallSites);
+	}
+
+	public static void BenchmarkClassGeneration(String name, InvokeDynamic.Generator generator, boolean computeFrames, InvokeDynamic.SiteDescriptor site, int numberOfCallSites) throws Exception {
+		System.out.println("\nBenchmark CLASS GENERATION " + name);
+		InvokeDynamic.setGenerator(generator);
+		InvokeDynamic.computeFrames = computeFrames;
+
+		long loadedClasses = classLoading.getTotalLoadedClassCount();
+		long start = System.nanoTime();
+		int size = InvokeDynamic.generateClassFile(site, "ClassWithIndyBenchmark").length;
+		long time = System.nanoTime() - start;
+		System.out.println("FIRST SITE: " + size + " bytes, TIME: " + (time / 1_000) + " us, CLASSES LOADED: " + (classLoading.getTotalLoadedClassCount() - loadedClasses));
+
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			start = System.nanoTime();
+			long totalSize = 0;
+			for (int j = 0; j < numberOfCallSites; j++)
+				totalSize += InvokeDynamic.generateClassFile(site, "ClassWithIndyBenchmark").length;
+			time = System.nanoTime() - start;
+			System.out.println(totalSize + " bytes, TIME: " + (time / 1_000_000) + " ms (" + (time / numberOfCallSites) + " ns/site)");
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package pl.confitura2012.invokedynamic;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Restart benchmark of the InvokeDynamic's class store (see: {@link InvokeDynamic#setClassStore}).
+ * Starts a new JVM running the {@link LinkStartupBenchmark} (preparing and calling the given number of call sites)
+ * and measures the time from the JVM's start to its exit: <ul>
+ * <li> without the class store (the classes are generated on every start) </li>
+ * <li> with an empty class store (the classes are generated and stored) </li>
+ * <li> with the filled class store (the classes are read from the store, not generated) </li>
+ * <li> with the filled class store on the class path (the classes are loaded by the application class loader,
+ * which is what lets AppCDS archive them, once the store is packed into a jar)</li></ul>
+ * <p/>
+ * Usage: <code>ClassStoreRestartBenchmark [number of call sites]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class ClassStoreRestartBenchmark {
+	private static final int DEFAULT_NUMBER_OF_CALL_SITES = 1_000;
+	private static final int NUMBER_OF_REPEATS = 3;
+
+	public static void main(String args[]) throws Exception {
+		String numberOfCallSites = (args.length > 0) ? args[0] : String.valueOf(DEFAULT_NUMBER_OF_CALL_SITES);
+		String classPath = System.getProperty("java.class.path");
+		File store = Files.createTempDirectory("indy-class-store").toFile();
+
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++)
+			BenchmarkRestart("NO CLASS STORE", classPath, null, numberOfCallSites);
+
+		BenchmarkRestart("EMPTY CLASS STORE", classPath, store, numberOfCallSites);
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++)
+			BenchmarkRestart("FILLED CLASS STORE", classPath, store, numberOfCallSites);
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++)
+			BenchmarkRestart("CLASS STORE ON CLASS PATH", classPath + File.pathSeparator + store.getPath(), store, numberOfCallSites);
+	}
+
+	public static void BenchmarkRestart(String name, String classPath, File store, String numberOfCallSites) throws Exception {
+		System.out.println("\nBenchmark RESTART, " + name);
+
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-cp");
+		command.add(classPath);
+		if (store != null)
+			command.add("-Dinvokedynamic.classStore=" + store.getPath());
+		command.add(LinkStartupBenchmark.class.getName());
+		command.add("GENERATED");
+		command.add(numberOfCallSites);
+
+		long start = System.nanoTime();
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+			String line;
+			while ((line = output.readLine()) != null) {
+				if (!line.isEmpty())
+					System.out.println("\t" + line);
+			}
+		}
+		int exitCode = process.waitFor();
+		System.out.println("EXIT CODE: " + exitCode + ", RESTART TIME: " + ((System.nanoTime() - start) / 1_000_000) + " ms");
+	}
+}
@@ -0,0 +1,152 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Stress test and benchmark of preparing the call sites (see: {@link InvokeDynamic#prepare}) from many threads at the same time.
+ * <p/>
+ * First, all the threads prepare the same set of call sites (in a different order) and the results are checked:
+ * every thread must get the very same MethodHandle for a given call site and every MethodHandle must invoke the right method.
+ * Then, the throughput (call sites prepared per second) is measured for a growing number of threads.
+ * <p/>
+ * Usage: <code>ConcurrentPrepareBenchmark [number of call sites] [max number of threads]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class ConcurrentPrepareBenchmark {
+	private static final int DEFAULT_NUMBER_OF_CALL_SITES = 10_000;
+	private static final int NUMBER_OF_STRESS_ROUNDS = 5;
+	private static final MethodType METHOD_TYPE = MethodType.methodType(long.class, long.class, long.class, int.class);
+	private static final MethodType BSM_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, int.class);
+
+	public static long sumAndMultiply(long a, long b, int multiplier) {
+		return multiplier * (a + b);
+	}
+
+	/**
+	 * BSM - bootstrap method (the call site's multiplier is given as the BSM argument)
+	 */
+	public static CallSite myBSM(MethodHandles.Lookup caller, String methodName, MethodType methodType, int multiplier) throws ReflectiveOperationException {
+		MethodHandle target = caller.findStatic(ConcurrentPrepareBenchmark.class, "sumAndMultiply", methodType);
+		return new ConstantCallSite(MethodHandles.dropArguments(MethodHandles.insertArguments(target, 2, multiplier), 2, int.class));
+	}
+
+	public static void main(String args[]) throws Throwable {
+		int numberOfCallSites = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUMBER_OF_CALL_SITES;
+		int maxNumberOfThreads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		StressTestConcurrentPrepare(Math.max(maxNumberOfThreads, 2), numberOfCallSites / 10);
+		for (int threads = 1; threads <= maxNumberOfThreads; threads *= 2)
+			BenchmarkConcurrentPrepare(threads, numberOfCallSites);
+	}
+
+	public static void StressTestConcurrentPrepare(int numberOfThreads, final int numberOfCallSites) throws Throwable {
+		System.out.println("\nStress test CONCURRENT PREPARE, THREADS: " + numberOfThreads + ", CALL SITES: " + numberOfCallSites);
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		try {
+			for (int round = 0; round < NUMBER_OF_STRESS_ROUNDS; round++) {
+				InvokeDynamic.clearCache();
+				final CountDownLatch startSignal = new CountDownLatch(1);
+
+				List<Future<MethodHandle[]>> results = new ArrayList<Future<MethodHandle[]>>();
+				for (int t = 0; t < numberOfThreads; t++) {
+					final int threadNumber = t;
+					results.add(executor.submit(new Callable<MethodHandle[]>() {
+						@Override
+						public MethodHandle[] call() throws Exception {
+							List<Integer> order = new ArrayList<Integer>();
+							for (int i = 0; i < numberOfCallSites; i++)
+								order.add(i);
+							Collections.shuffle(order, new java.util.Random(threadNumber));
+
+							MethodHandle[] callSites = new MethodHandle[numberOfCallSites];
+							startSignal.await();
+							for (int i : order) {
+								try {
+									callSites[i] = InvokeDynamic.prepare("site" + i, METHOD_TYPE, "myBSM", ConcurrentPrepareBenchmark.class, BSM_TYPE, i);
+								} catch (Throwable e) {
+									throw new Exception("Preparing call site " + i + " failed", e);
+								}
+							}
+							return callSites;
+						}
+					}));
+				}
+				startSignal.countDown();
+
+				MethodHandle[] expected = results.get(0).get();
+				for (Future<MethodHandle[]> result : results) {
+					MethodHandle[] callSites = result.get();
+					for (int i = 0; i < numberOfCallSites; i++) {
+						if (callSites[i] != expected[i])
+							throw new AssertionError("Threads got different MethodHandles for call site " + i);
+					}
+				}
+				for (int i = 0; i < numberOfCallSites; i++) {
+					long result = (long) expected[i].invokeExact(1L, 2L, 0);
+					if (result != 3L * i)
+						throw new AssertionError("Call site " + i + " returned " + result + " instead of " + (3L * i));
+				}
+				if (InvokeDynamic.getCacheMisses() != numberOfCallSites)
+					throw new AssertionError("Generated " + InvokeDynamic.getCacheMisses() + " classes for " + numberOfCallSites + " call sites");
+			}
+			System.out.println("OK, ROUNDS: " + NUMBER_OF_STRESS_ROUNDS);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public static void BenchmarkConcurrentPrepare(int numberOfThreads, int numberOfCallSites) throws Throwable {
+		System.out.println("\nBenchmark CONCURRENT PREPARE, THREADS: " + numberOfThreads + ", CALL SITES: " + numberOfCallSites);
+		InvokeDynamic.clearCache();
+
+		final int callSitesPerThread = numberOfCallSites / numberOfThreads;
+		final CountDownLatch startSignal = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int t = 0; t < numberOfThreads; t++) {
+				final int firstCallSite = t * callSitesPerThread;
+				results.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						startSignal.await();
+						for (int i = firstCallSite; i < firstCallSite + callSitesPerThread; i++) {
+							try {
+								InvokeDynamic.prepare("benchmark site" + i, METHOD_TYPE, "myBSM", ConcurrentPrepareBenchmark.class, BSM_TYPE, i);
+							} catch (Throwable e) {
+								throw new Exception(e);
+							}
+						}
+						return null;
+					}
+				}));
+			}
+
+			long start = System.nanoTime();
+			startSignal.countDown();
+			for (Future<Void> result : results)
+				result.get();
+			long time = System.nanoTime() - start;
+
+			long preparedCallSites = (long) callSitesPerThread * numberOfThreads;
+			System.out.println("TIME: " + (time / 1_000_000) + " ms, THROUGHPUT: " + (preparedCallSites * 1_000_000_000L / time) + " call sites/s");
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark of the InvokeDynamic's class definition backends (see: {@link InvokeDynamic.Backend}).
+ * Prepares the given number of distinct call sites (so each one generates and defines a new class)
+ * and reports the time spent and the metaspace used (and committed) by the defined classes.
+ * <p/>
+ * Each backend is also measured when all the call sites are prepared together (see: {@link InvokeDynamic#prepareAll}).
+ * <p/>
+ * Usage: <code>DefineBackendBenchmark [CLASS_LOADER|HIDDEN_CLASS|HIDDEN_CLASS_STRONG] [number of call sites]</code>
+ * <p/>
+ * Metaspace is never given back during a single run, so for the most accurate numbers run each backend in a separate JVM.
+ * Without the backend argument, all the backends supported by the JVM are measured one after another.
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class DefineBackendBenchmark {
+	private static final int DEFAULT_NUMBER_OF_CALL_SITES = 10_000;
+
+	public static long sumAndMultiply(long a, long b, int multiplier) {
+		return multiplier * (a + b);
+	}
+
+	/**
+	 * BSM - bootstrap method
+	 */
+	public static CallSite myBSM(MethodHandles.Lookup caller, String methodName, MethodType methodType) throws ReflectiveOperationException {
+		return new ConstantCallSite(caller.findStatic(DefineBackendBenchmark.class, "sumAndMultiply", methodType));
+	}
+
+	public static void main(String args[]) throws Throwable {
+		int numberOfCallSites = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_NUMBER_OF_CALL_SITES;
+
+		if (args.length > 0) {
+			BenchmarkBackend(InvokeDynamic.Backend.valueOf(args[0]), numberOfCallSites);
+			BenchmarkBackendPrepareAll(InvokeDynamic.Backend.valueOf(args[0]), numberOfCallSites);
+			return;
+		}
+
+		BenchmarkBackend(InvokeDynamic.Backend.CLASS_LOADER, numberOfCallSites);
+		BenchmarkBackendPrepareAll(InvokeDynamic.Backend.CLASS_LOADER, numberOfCallSites);
+		if (InvokeDynamic.Backend.isHiddenClassSupported()) {
+			BenchmarkBackend(InvokeDynamic.Backend.HIDDEN_CLASS, numberOfCallSites);
+			BenchmarkBackendPrepareAll(InvokeDynamic.Backend.HIDDEN_CLASS, numberOfCallSites);
+			BenchmarkBackend(InvokeDynamic.Backend.HIDDEN_CLASS_STRONG, numberOfCallSites);
+			BenchmarkBackendPrepareAll(InvokeDynamic.Backend.HIDDEN_CLASS_STRONG, numberOfCallSites);
+		}
+	}
+
+	public static void BenchmarkBackend(InvokeDynamic.Backend backend, int numberOfCallSites) throws Throwable {
+		System.out.println("\nBenchmark DEFINE BACKEND " + backend + ", CALL SITES: " + numberOfCallSites);
+		InvokeDynamic.setBackend(backend);
+		InvokeDynamic.clearCache();
+
+		MethodType methodType = MethodType.methodType(long.class, long.class, long.class, int.class);
+		MethodType bsmType = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class);
+		List<MethodHandle> callSites = new ArrayList<MethodHandle>(numberOfCallSites);
+
+		System.gc();
+		long metaspaceBefore = usedMetaspace();
+		long committedBefore = committedMetaspace();
+		long start = System.nanoTime();
+		for (int i = 0; i < numberOfCallSites; i++)
+			callSites.add(InvokeDynamic.prepare("site" + i, methodType, "myBSM", DefineBackendBenchmark.class, bsmType));
+		long defineTime = System.nanoTime() - start;
+		long metaspaceAfter = usedMetaspace();
+		long committedAfter = committedMetaspace();
+
+		start = System.nanoTime();
+		long sum = 0;
+		for (MethodHandle mh : callSites)
+			sum += (long) mh.invokeExact(1L, 2L, 2);
+		long linkTime = System.nanoTime() - start;
+
+		System.out.println(sum + ", DEFINE TIME: " + (defineTime / 1_000_000) + " ms (" + (defineTime / numberOfCallSites) + " ns/site)"
+							+ ", FIRST CALL (LINK) TIME: " + (linkTime / 1_000_000) + " ms");
+		System.out.println("METASPACE USED: " + ((metaspaceAfter - metaspaceBefore) / 1024) + " KB ("
+							+ ((metaspaceAfter - metaspaceBefore) / numberOfCallSites) + " bytes/site), COMMITTED: " + ((committedAfter - committedBefore) / 1024) + " KB ("
+							+ ((committedAfter - committedBefore) / numberOfCallSites) + " bytes/site)");
+	}
+
+	public static void BenchmarkBackendPrepareAll(InvokeDynamic.Backend backend, int numberOfCallSites) throws Throwable {
+		System.out.println("\nBenchmark DEFINE BACKEND " + backend + " (PREPARE ALL), CALL SITES: " + numberOfCallSites);
+		InvokeDynamic.setBackend(backend);
+		InvokeDynamic.clearCache();
+
+		MethodType methodType = MethodType.methodType(long.class, long.class, long.class, int.class);
+		MethodType bsmType = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class);
+		List<InvokeDynamic.SiteDescriptor> sites = new ArrayList<InvokeDynamic.SiteDescriptor>(numberOfCallSites);
+		for (int i = 0; i < numberOfCallSites; i++)
+			sites.add(new InvokeDynamic.SiteDescriptor("batched site" + i, methodType, "myBSM", DefineBackendBenchmark.class, bsmType));
+
+		System.gc();
+		long metaspaceBefore = usedMetaspace();
+		long committedBefore = committedMetaspace();
+		long start = System.nanoTime();
+		List<MethodHandle> callSites = InvokeDynamic.prepareAll(sites);
+		long defineTime = System.nanoTime() - start;
+		long metaspaceAfter = usedMetaspace();
+		long committedAfter = committedMetaspace();
+
+		start = System.nanoTime();
+		long sum = 0;
+		for (MethodHandle mh : callSites)
+			sum += (long) mh.invokeExact(1L, 2L, 2);
+		long linkTime = System.nanoTime() - start;
+
+		System.out.println(sum + ", DEFINE TIME: " + (defineTime / 1_000_000) + " ms (" + (defineTime / numberOfCallSites) + " ns/site)"
+							+ ", FIRST CALL (LINK) TIME: " + (linkTime / 1_000_000) + " ms");
+		System.out.println("METASPACE USED: " + ((metaspaceAfter - metaspaceBefore) / 1024) + " KB ("
+							+ ((metaspaceAfter - metaspaceBefore) / numberOfCallSites) + " bytes/site), COMMITTED: " + ((committedAfter - committedBefore) / 1024) + " KB ("
+							+ ((committedAfter - committedBefore) / numberOfCallSites) + " bytes/site)");
+	}
+
+	/**
+	 * @return	Metaspace committed by the JVM (with the free parts of the chunks of the class loaders, unlike the used metaspace)
+	 */
+	private static long committedMetaspace() {
+		long committed = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if ("Metaspace".equals(pool.getName()))
+				committed += pool.getUsage().getCommitted();
+		}
+		return committed;
+	}
+
+	private static long usedMetaspace() {
+		long used = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if ("Metaspace".equals(pool.getName()))
+				used += pool.getUsage().getUsed();
+		}
+		return used;
+	}
+}
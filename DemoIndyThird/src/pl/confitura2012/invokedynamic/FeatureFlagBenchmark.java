@@ -0,0 +1,115 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark of the feature flag call sites (see: {@link FeatureFlags}): <ul>
+ * <li> STEADY STATE - the cost of the call while the flag is unchanged, of: <ul>
+ * 		<li> FEATURE FLAG CALL SITE - the variant's target guarded by the flag's <code>SwitchPoint</code> </li>
+ * 		<li> CONSTANT CALL SITE - the variant chosen once, in the bootstrap method (as in <code>HelloInDyWorld3</code>) </li>
+ * 		<li> VOLATILE FLAG CHECK - the variant chosen on each call, by reading a volatile field (the usual feature flag code) </li></ul></li>
+ * <li> FLIP STORM - the flag of thousands of call sites flipped many times: the time of flipping the flag (invalidating the <code>SwitchPoint</code>)
+ * and the time of the first calls of all the call sites after the flip (each relinks to the new variant) </li></ul>
+ * <p/>
+ * Usage: <code>FeatureFlagBenchmark [number of call sites]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class FeatureFlagBenchmark {
+	public interface IVariant {
+		public long apply(long x);
+	}
+
+	public static long variantA(long x) {
+		return x + 1;
+	}
+
+	public static long variantB(long x) {
+		return x + 2;
+	}
+
+	private static volatile boolean variantBEnabled;
+
+	public static long checkedVariant(long x) {
+		return variantBEnabled ? variantB(x) : variantA(x);
+	}
+
+	/**
+	 * BSM - bootstrap method, links the call site to the variant A once and for all
+	 */
+	public static CallSite constantBSM(MethodHandles.Lookup caller, String methodName, MethodType methodType) throws ReflectiveOperationException {
+		return new ConstantCallSite(caller.findStatic(FeatureFlagBenchmark.class, "variantA", methodType));
+	}
+
+	private static final String FLAG = "benchmark.variant";
+	private static final Object[] FLAG_BSM_ARGS = { FLAG, FeatureFlagBenchmark.class, "A", "variantA", "B", "variantB" };
+	private static final MethodType CONSTANT_BSM_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class);
+	private static final MethodType SITE_TYPE = MethodType.methodType(long.class, long.class);
+
+	private static final int DEFAULT_NUMBER_OF_SITES = 5_000;
+	private static final long NUMBER_OF_CALLS = 100_000_000;
+	private static final int NUMBER_OF_FLIPS = 20;
+	private static final int NUMBER_OF_REPEATS = 7;
+
+	public static void main(String args[]) throws Throwable {
+		int numberOfSites = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUMBER_OF_SITES;
+		FeatureFlags.setVariant(FLAG, "A");
+
+		BenchmarkSteadyState("FEATURE FLAG CALL SITE", InvokeDynamic.prepareInvoker(IVariant.class, "apply", "bootstrap", FeatureFlags.class, FeatureFlags.BOOTSTRAP_TYPE, FLAG_BSM_ARGS));
+		BenchmarkSteadyState("CONSTANT CALL SITE", InvokeDynamic.prepareInvoker(IVariant.class, "apply", "constantBSM", FeatureFlagBenchmark.class, CONSTANT_BSM_TYPE));
+		BenchmarkSteadyState("VOLATILE FLAG CHECK", new IVariant() {
+			@Override
+			public long apply(long x) {
+				return checkedVariant(x);
+			}
+		});
+		BenchmarkFlipStorm(numberOfSites);
+	}
+
+	public static void BenchmarkSteadyState(String name, IVariant variant) {
+		System.out.println("\nBenchmark STEADY STATE, " + name);
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long n = 0; n < NUMBER_OF_CALLS; n++)
+				sum += variant.apply(n);
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	public static void BenchmarkFlipStorm(int numberOfSites) throws Throwable {
+		System.out.println("\nBenchmark FLIP STORM, " + numberOfSites + " CALL SITES");
+		List<InvokeDynamic.SiteDescriptor> sites = new ArrayList<InvokeDynamic.SiteDescriptor>(numberOfSites);
+		for (int i = 0; i < numberOfSites; i++)
+			sites.add(new InvokeDynamic.SiteDescriptor("site" + i, SITE_TYPE, "bootstrap", FeatureFlags.class, FeatureFlags.BOOTSTRAP_TYPE, FLAG_BSM_ARGS));
+		List<MethodHandle> handles = InvokeDynamic.prepareAll(sites);
+		long sum = callAll(handles);
+
+		for (int flip = 0; flip < NUMBER_OF_FLIPS; flip++) {
+			FeatureFlags.resetRelinks();
+			long start = System.nanoTime();
+			FeatureFlags.setVariant(FLAG, (flip % 2 == 0) ? "B" : "A");
+			long flipped = System.nanoTime();
+			sum += callAll(handles);
+			long relinked = System.nanoTime();
+			System.out.println("FLIP TO " + FeatureFlags.getVariant(FLAG) + ", FLIP: " + ((flipped - start) / 1_000) + " us, FIRST CALLS: "
+								+ ((relinked - flipped) / 1_000) + " us (" + ((relinked - flipped) / numberOfSites) + " ns/site), RELINKS: " + FeatureFlags.getRelinks());
+		}
+		System.out.println(sum);
+	}
+
+	private static long callAll(List<MethodHandle> handles) throws Throwable {
+		long sum = 0;
+		for (MethodHandle handle : handles)
+			sum += (long) handle.invokeExact(1L);
+		return sum;
+	}
+}
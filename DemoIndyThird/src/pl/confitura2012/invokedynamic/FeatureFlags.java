@@ -0,0 +1,201 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable bootstrap method of the feature flag call sites: the call site is linked to the variant (a public static method)
+ * selected by the current value of the named flag, instead of choosing the variant once, in the bootstrap method (as e.g. <code>HelloInDyWorld3</code> does).
+ * <p/>
+ * The call site's target is guarded by the flag's <code>SwitchPoint</code>, so while the flag is unchanged there is no check on the call
+ * (the JIT compiler compiles the guard away). Changing the flag ({@link #setVariant}, or {@link #setVariants} for many flags at once)
+ * invalidates the flag's <code>SwitchPoint</code> (with a single <code>SwitchPoint.invalidateAll</code>), which sends every call site of the flag to its fallback:
+ * on its next call each call site relinks to the new variant (guarded by the flag's new <code>SwitchPoint</code>).
+ * <p/>
+ * Usage (e.g. with <code>InvokeDynamic.prepare</code>): bootstrap method <code>bootstrap</code> in this class, bootstrap arguments:
+ * the name of the flag, the class of the variants' methods and the pairs: the value of the flag (the name of the variant) and the name of the variant's method.
+ * E.g. <code>"greeting", HelloInDyWorld3.class, "2012", "myConfituraMethod", "2013", "myConfituraMethodNext"</code>.
+ * The call site is linked to the first variant, when the flag's value is not one of the given ones (e.g. the flag has not been set).
+ * The initial value of a flag can also be given with the <code>invokedynamic.featureFlag.&lt;name of the flag&gt;</code> system property.
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public final class FeatureFlags {
+	public static final MethodType BOOTSTRAP_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Object[].class);
+
+	private static final ConcurrentMap<String, Flag> flags = new ConcurrentHashMap<String, Flag>();
+	private static final AtomicLong relinks = new AtomicLong();
+
+	private static final MethodHandle RELINK;
+	static {
+		try {
+			RELINK = MethodHandles.lookup().findVirtual(FeatureFlagCallSite.class, "relink", MethodType.methodType(Object.class, Object[].class));
+		} catch (ReflectiveOperationException e) {
+			throw (AssertionError) new AssertionError().initCause(e);
+		}
+	}
+
+	private FeatureFlags() {
+	}
+
+	/**
+	 * The value of a flag with the <code>SwitchPoint</code> guarding the call sites linked to it (replaced as a whole, when the flag changes).
+	 */
+	private static final class FlagState {
+		final String variant;
+		final SwitchPoint switchPoint = new SwitchPoint();
+
+		FlagState(String variant) {
+			this.variant = variant;
+		}
+	}
+
+	private static final class Flag {
+		volatile FlagState state;
+
+		Flag(String name) {
+			state = new FlagState(System.getProperty("invokedynamic.featureFlag." + name));
+		}
+	}
+
+	private static Flag flagOf(String flagName) {
+		Flag flag = flags.get(flagName);
+		if (flag == null) {
+			Flag newFlag = new Flag(flagName);
+			flag = flags.putIfAbsent(flagName, newFlag);
+			if (flag == null)
+				flag = newFlag;
+		}
+		return flag;
+	}
+
+	/**
+	 * BSM - bootstrap method, returns the call site linked to the variant selected by the flag.
+	 *
+	 * @param	caller Lookup of the caller
+	 * @param	methodName Name of the call site
+	 * @param	methodType Type of the call site (and of the variants' methods)
+	 * @param	bsmArgs The name of the flag, the class of the variants' methods, and the pairs: the name of the variant, the name of its method
+	 * @return	The call site
+	 */
+	public static CallSite bootstrap(Lookup caller, String methodName, MethodType methodType, Object... bsmArgs) {
+		if (bsmArgs.length < 4 || bsmArgs.length % 2 != 0 || !(bsmArgs[0] instanceof String) || !(bsmArgs[1] instanceof Class<?>))
+			throw new IllegalArgumentException("No flag, class and variants in the bootstrap arguments of: " + methodName);
+		Map<String, String> variantMethods = new LinkedHashMap<String, String>();
+		for (int i = 2; i < bsmArgs.length; i += 2)
+			variantMethods.put((String) bsmArgs[i], (String) bsmArgs[i + 1]);
+		return new FeatureFlagCallSite(caller, methodType, flagOf((String) bsmArgs[0]), (Class<?>) bsmArgs[1], variantMethods);
+	}
+
+	/**
+	 * The feature flag call site: the target of the current variant, guarded by the flag's <code>SwitchPoint</code>,
+	 * or (initially, and after the flag has changed) the fallback relinking the call site.
+	 */
+	public static final class FeatureFlagCallSite extends MutableCallSite {
+		private final Lookup caller;
+		private final Flag flag;
+		private final Class<?> variantsClass;
+		private final Map<String, String> variantMethods;
+		private final String defaultVariant;
+		private final Map<String, MethodHandle> targets = new HashMap<String, MethodHandle>();
+		private final MethodHandle fallback;
+
+		FeatureFlagCallSite(Lookup caller, MethodType methodType, Flag flag, Class<?> variantsClass, Map<String, String> variantMethods) {
+			super(methodType);
+			this.caller = caller;
+			this.flag = flag;
+			this.variantsClass = variantsClass;
+			this.variantMethods = variantMethods;
+			this.defaultVariant = variantMethods.keySet().iterator().next();
+			this.fallback = RELINK.bindTo(this).asCollector(Object[].class, methodType.parameterCount()).asType(methodType);
+			setTarget(fallback);
+		}
+
+		@SuppressWarnings("unused")
+		private Object relink(Object[] args) throws Throwable {
+			MethodHandle target;
+			synchronized (this) {
+				FlagState state = flag.state;
+				String variant = variantMethods.containsKey(state.variant) ? state.variant : defaultVariant;
+				target = targets.get(variant);
+				if (target == null) {
+					target = caller.findStatic(variantsClass, variantMethods.get(variant), type());
+					targets.put(variant, target);
+				}
+				//if the flag has changed in the meantime, the SwitchPoint is already invalidated and the next call relinks again
+				setTarget(state.switchPoint.guardWithTest(target, fallback));
+				relinks.incrementAndGet();
+			}
+			return target.invokeWithArguments(args);
+		}
+	}
+
+	/**
+	 * @param	flagName Name of the flag
+	 * @return	The current value of the flag (the name of the variant), or null if it has not been set
+	 */
+	public static String getVariant(String flagName) {
+		return flagOf(flagName).state.variant;
+	}
+
+	/**
+	 * Changes the value of the flag: all its call sites relink to the new variant (each on its next call).
+	 *
+	 * @param	flagName Name of the flag
+	 * @param	variant The new value of the flag (the name of the variant)
+	 */
+	public static void setVariant(String flagName, String variant) {
+		setVariants(Collections.singletonMap(flagName, variant));
+	}
+
+	/**
+	 * Changes the values of many flags at once: the <code>SwitchPoint</code>s of all the changed flags are invalidated together
+	 * (a single <code>SwitchPoint.invalidateAll</code>, so a single deoptimization of the code depending on them).
+	 *
+	 * @param	variants The new values of the flags (the names of the variants), by the names of the flags
+	 */
+	public static void setVariants(Map<String, String> variants) {
+		List<SwitchPoint> invalidated = new ArrayList<SwitchPoint>(variants.size());
+		synchronized (FeatureFlags.class) {
+			for (Map.Entry<String, String> entry : variants.entrySet()) {
+				Flag flag = flagOf(entry.getKey());
+				FlagState oldState = flag.state;
+				if ((oldState.variant == null) ? entry.getValue() == null : oldState.variant.equals(entry.getValue()))
+					continue;
+				flag.state = new FlagState(entry.getValue());
+				invalidated.add(oldState.switchPoint);
+			}
+			if (!invalidated.isEmpty())
+				SwitchPoint.invalidateAll(invalidated.toArray(new SwitchPoint[invalidated.size()]));
+		}
+	}
+
+	/**
+	 * @return	Number of the relinks of all the feature flag call sites (including their first linking)
+	 */
+	public static long getRelinks() {
+		return relinks.get();
+	}
+
+	/**
+	 * Resets the number of the relinks of all the feature flag call sites.
+	 */
+	public static void resetRelinks() {
+		relinks.set(0);
+	}
+}
@@ -2,11 +2,14 @@ package pl.confitura2012.invokedynamic;
 
 import java.lang.invoke.CallSite;
 import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodHandles.Lookup;
 import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 
+import pl.confitura2012.indyprocessor.IndyCallSite;
+
 /**
  * InvokeDynamic class allows to use the JSR-292's (aka 'InvokeDynamic') dynamic method invocations mechanism from a regular Java code.
  * The public methods in the class generate (using ASM bytecode generator) a new class with a single method which contains 
@@ -27,6 +30,29 @@ public class IndyVsStaticVsReflectionBenchmark {
 	public interface IExecutable {
 		public long execute(long a, long b, int multiplier);
 	}
+
+	public interface IHiddenExecutable {
+		public long execute(Object hidden, long a, long b, int multiplier);
+	}
+
+	/**
+	 * Non-public class with non-public methods (for the check of the invokers of the non-public methods).
+	 */
+	static class Hidden {
+		private final long offset;
+
+		Hidden(long offset) {
+			this.offset = offset;
+		}
+
+		private long sumAndMultiply(long a, long b, int multiplier) {
+			return multiplier * (a + b) + offset;
+		}
+
+		private static Hidden shifted(Hidden hidden, long offset) {
+			return new Hidden(hidden.offset + offset);
+		}
+	}
 	
 	/**
 	 * The (timeconsuming) method used during the benchmarks. 
@@ -57,15 +83,28 @@ public class IndyVsStaticVsReflectionBenchmark {
 		return null;
 	}
 	
+	/**
+	 * Prepares the dynamic call of the benchmark method (the class with this call site is generated at build time by the IndyCallSiteProcessor,
+	 * when the project is compiled by javac with the processor on the processor path, see: {@link pl.confitura2012.indyprocessor.IndyCallSiteProcessor}
+	 * for the build step; built by Eclipse, the class is generated at runtime).
+	 */	
+	@IndyCallSite(methodName = "run me", returnType = long.class, parameterTypes = { long.class, long.class, int.class }, 
+					bsmName = "myBSM", bsmClass = IndyVsStaticVsReflectionBenchmark.class, as = IExecutable.class)
+	public static IExecutable createExecutable() throws Throwable {
+		return InvokeDynamic.prepareAs(	IExecutable.class,
+										"run me", MethodType.methodType(long.class, long.class, long.class, int.class), 
+										"myBSM", IndyVsStaticVsReflectionBenchmark.class, MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Object[].class));
+	}
+
 	public static void main(String args[]) throws Throwable {
-		IExecutable obj = InvokeDynamic.prepareAs(	IExecutable.class,
-													"run me", MethodType.methodType(long.class, long.class, long.class, int.class), 
-													"myBSM", IndyVsStaticVsReflectionBenchmark.class, MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Object[].class));
+		IExecutable obj = createExecutable();
 
+		CheckInvokersOfNonPublicMethods();
 		BenchmarkInvokeDynamic(obj);
 		BenchmarkInvokeStatic();
 		BenchmarkInvokeReflective();
 		BenchmarkInvokeReflectiveNoBoxing();
+		BenchmarkInvokeReflectiveAccelerated();
 	}
 	
 	
@@ -73,6 +112,44 @@ public class IndyVsStaticVsReflectionBenchmark {
 	final static long NUMBER_OF_REPEATS = 7;
 	final static int MULTIPLIER = 2;
 
+	/**
+	 * Checks the invokers (see: {@link ReflectiveInvokers}) of the non-public methods of a non-public class (made accessible, as for Method.invoke)
+	 * against Method.invoke, and that the invoker is not given for the same method not made accessible (although its invoker is already cached).
+	 */
+	public static void CheckInvokersOfNonPublicMethods() throws Throwable
+	{
+		System.out.println("\nCheck INVOKERS OF NON-PUBLIC METHODS");
+		Method sumAndMultiplyMethod = Hidden.class.getDeclaredMethod("sumAndMultiply", new Class<?>[] { long.class, long.class, int.class });
+		Method shiftedMethod = Hidden.class.getDeclaredMethod("shifted", new Class<?>[] { Hidden.class, long.class });
+		sumAndMultiplyMethod.setAccessible(true);
+		shiftedMethod.setAccessible(true);
+
+		MethodHandle sumAndMultiplyInvoker = ReflectiveInvokers.invokerOf(sumAndMultiplyMethod);
+		IHiddenExecutable exec = ReflectiveInvokers.invokerOf(sumAndMultiplyMethod, IHiddenExecutable.class);
+		MethodHandle shiftedInvoker = ReflectiveInvokers.invokerOf(shiftedMethod);
+
+		Hidden hidden = new Hidden(1);
+		for (long x = 0; x < 100; x++) {
+			long expected = (long) sumAndMultiplyMethod.invoke(hidden, x, x + 1, MULTIPLIER);
+			long result = (long) sumAndMultiplyInvoker.invokeExact(hidden, x, x + 1, MULTIPLIER);
+			if (result != expected || exec.execute(hidden, x, x + 1, MULTIPLIER) != expected)
+				throw new AssertionError("The invoker of " + sumAndMultiplyMethod + " returned " + result + " instead of " + expected);
+
+			Hidden shifted = (Hidden) shiftedInvoker.invokeExact(hidden, x);
+			if (shifted.offset != ((Hidden) shiftedMethod.invoke(null, hidden, x)).offset)
+				throw new AssertionError("The invoker of " + shiftedMethod + " returned a wrong result: " + shifted.offset);
+		}
+
+		Method notAccessibleMethod = Hidden.class.getDeclaredMethod("sumAndMultiply", new Class<?>[] { long.class, long.class, int.class });
+		try {
+			ReflectiveInvokers.invokerOf(notAccessibleMethod);
+			throw new AssertionError("The invoker of " + notAccessibleMethod + " (not made accessible) was given");
+		} catch (IllegalAccessException e) {
+			//expected, as for Method.invoke
+		}
+		System.out.println("OK");
+	}
+
 	public static void BenchmarkInvokeDynamic(IExecutable exec)
 	{
 		System.out.println("\nBenchmark INVOKE DYNAMIC");
@@ -145,5 +222,24 @@ public class IndyVsStaticVsReflectionBenchmark {
 			}
 			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
 		}
-	}				
+	}
+
+	public static void BenchmarkInvokeReflectiveAccelerated() throws Throwable
+	{
+		System.out.println("\nBenchmark REFLECTIVE ACCELERATED (INVOKER OF THE METHOD)");
+		
+		Method sumAndMultiplyMethod = IndyVsStaticVsReflectionBenchmark.class.getDeclaredMethod("sumAndMultiply", new Class<?>[] { long.class, long.class, int.class });
+		IExecutable exec = ReflectiveInvokers.invokerOf(sumAndMultiplyMethod, IExecutable.class);
+		
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long x = 0; x < NUMBER_OF_LOOPS; x++) {
+				for (long y = 0; y < NUMBER_OF_LOOPS; y++) {
+					sum += exec.execute(x, y, MULTIPLIER);
+				}
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
 }
\ No newline at end of file
@@ -1,26 +1,87 @@
 package pl.confitura2012.invokedynamic;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
 import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.net.URLClassLoader;
-
-import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.Handle;
-import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.Opcodes;
-import org.objectweb.asm.Type;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * InvokeDynamic class allows to use the JSR-292's (aka 'InvokeDynamic') dynamic method invocations mechanism from a regular Java code.
- * The public methods in the class generate (using ASM bytecode generator) a new class with a single method which contains 
+ * The public methods in the class generate (using a bytecode generator, see: {@link InvokeDynamic.Generator}) a new class with a single method which contains 
  * InvokeDynamic bytecode instruction. The InvokeDynamic instruction is configured (e.g. its BSM) with the given parameters.
  * Regular Java code can then call the generated method and in the end the dynamic method invocation is performed.
  * <p/>
  * Access to the dynamic call is given in two forms as: <ol> 
  * <li> MethodHandle (using the method: {@link InvokeDynamic#prepare}) </li>  
- * <li> instance of given functional interface (using the method: {@link InvokeDynamic#prepareAs}) </li></ol>
+ * <li> instance of given functional interface (using the method: {@link InvokeDynamic#prepareAs}), 
+ * or of any interface, with a separate InvokeDynamic instruction for each of its methods </li></ol>
+ * The interface's method can differ from the call site's type: the arguments and the result are converted (widened, boxed, unboxed or cast)
+ * with explicit bytecode instructions in the generated method. An interface with exactly the call site's type 
+ * is a typed, exact invoker of the call site (using the method: {@link InvokeDynamic#prepareInvoker}), which never boxes.
+ * An interface with arrays in place of the call site's parameters is a bulk invoker (using the method: {@link InvokeDynamic#prepareBulk}),
+ * which loops over the arrays in the generated method.
+ * Many call sites can also be run back to back as a pipeline compiled into a single generated method (using the method: {@link InvokeDynamic#preparePipeline}),
+ * optionally inside a loop over the arrays.
+ * Many call sites can also be prepared at once (using the method: {@link InvokeDynamic#prepareAll}), in a single generated class,
+ * or warmed up in parallel on a fork-join pool (using the method: {@link InvokeDynamic#warmUp}). 
+ * <p/>
+ * Prepared call sites are cached by their signature (method name and type, bootstrap method and its arguments), 
+ * so preparing the same call site again returns the already linked MethodHandle (or object) instead of generating a new class.
+ * The methods are thread-safe and can be called concurrently (e.g. to warm up the call sites from many threads):
+ * different call sites are prepared in parallel, while the threads preparing the same call site wait for a single preparation.
+ * <p/>
+ * The generated classes are defined by the selected {@link InvokeDynamic.Backend}: either each one in its own class loader,
+ * or (on Java 15+) as a hidden class in the package of the bootstrap method's class: a weak one (unloaded alone, but with its own metaspace chunk)
+ * or a strong one (sharing the metaspace of the host's class loader, but unloaded only with it).
+ * <p/>
+ * When only a MethodHandle is needed ({@link InvokeDynamic#prepare}, {@link InvokeDynamic#prepareAll}), the direct linking mode 
+ * (see: {@link InvokeDynamic#setDirectLinking}) skips the class generation completely: the bootstrap method is invoked directly 
+ * (on the first call, just like the InvokeDynamic instruction does) and the returned MethodHandle invokes the call site's target.
+ * In this mode neither any bytecode generator is used, nor any class is defined.
+ * Similarly, the lambda linking mode (see: {@link InvokeDynamic#setLambdaLinking}) prepares the objects implementing a functional interface 
+ * by wrapping the call site's target with the <code>LambdaMetafactory</code>, instead of generating a class.
+ * <p/>
+ * Optionally, the generated classes can be kept in a class store directory (see: {@link InvokeDynamic#setClassStore}), 
+ * so after a restart they are loaded instead of generated again. 
  * <p/>
  * The code below is for educational purposes (e.g. used during the <a href='http://confitura.pl'>Confitura 2012 conference</a>).
  * The code is based on the brilliant examples from various sources, including:<ul>
@@ -33,7 +94,31 @@ import org.objectweb.asm.Type;
 public class InvokeDynamic {
 	private static final String NAME_OF_CLASS_WITH_INVOKEDYNAMIC = "ClassWithIndy";
 	private static final String NAME_OF_METHOD_WITH_INVOKEDYNAMIC = "MethodWithInvokeDynamic";
-	private static int dynamicCallNumber = 0;
+	//resource (in the package of the bootstrap method's class) listing the classes generated at build time, written by the annotation processor
+	private static final String NAME_OF_PREGENERATED_CLASSES_INDEX = NAME_OF_CLASS_WITH_INVOKEDYNAMIC + ".index";
+	private static final int MAX_NUMBER_OF_METHODS_IN_CLASS = 4096;
+	private static final AtomicInteger dynamicCallNumber = new AtomicInteger();
+	//names (without the package) of the classes generated at build time, by the bootstrap method's class
+	private static final ClassValue<Set<String>> pregeneratedClassNames = new ClassValue<Set<String>>() {
+		@Override
+		protected Set<String> computeValue(Class<?> bsmClass) {
+			return readPregeneratedClassNames(bsmClass);
+		}
+	};
+
+	private static final ConcurrentMap<SiteDescriptor, FutureTask<Object>> preparedCallSites = new ConcurrentHashMap<SiteDescriptor, FutureTask<Object>>();
+	//prepared pipelines, keyed by the bulk interface (or null) followed by the descriptors of the stages
+	private static final ConcurrentMap<List<Object>, Object> preparedPipelines = new ConcurrentHashMap<List<Object>, Object>();
+	private static final AtomicLong cacheHits = new AtomicLong();
+	private static final AtomicLong cacheMisses = new AtomicLong();
+
+	private static volatile Backend backend = Backend.valueOf(System.getProperty("invokedynamic.backend", Backend.CLASS_LOADER.name()));
+	private static volatile boolean directLinking = Boolean.getBoolean("invokedynamic.directLinking");
+	private static volatile boolean lambdaLinking = Boolean.getBoolean("invokedynamic.lambdaLinking");
+	private static volatile Generator generator = Generator.valueOf(System.getProperty("invokedynamic.generator", Generator.ASM.name()));
+	//true - ASM computes frames and maxs of the generated methods (the former, slower way, kept for comparison) 
+	static volatile boolean computeFrames = Boolean.getBoolean("invokedynamic.computeFrames");
+	private static volatile File classStore = (System.getProperty("invokedynamic.classStore") != null) ? new File(System.getProperty("invokedynamic.classStore")) : null;
 
 	public static class DynamicLoader extends URLClassLoader {
 		public DynamicLoader(URL[] urls) {
@@ -47,6 +132,484 @@ public class InvokeDynamic {
 		}
 	}
 
+	/**
+	 * The ways of defining the generated classes in the JVM.
+	 */
+	public enum Backend {
+		/**
+		 * Each generated class is defined by its own {@link DynamicLoader} (a new class loader per call site).
+		 */
+		CLASS_LOADER {
+			@Override
+			public Class<?> defineClass(Class<?> hostClass, byte[] classFile) throws Throwable {
+				try(DynamicLoader dl = new DynamicLoader(new URL[0])) {
+					return dl.loadFromBytes(classFile);
+				}
+			}
+		},
+		/**
+		 * Each generated class is defined as a hidden class (Java 15+, <code>Lookup.defineHiddenClass</code>) 
+		 * in the package of the host class (i.e. the bootstrap method's class). 
+		 * No class loader object is created and the class can be unloaded as soon as it is no longer used (regardless of the host's class loader).
+		 * To be unloaded alone, such a (weak) hidden class gets the class loader data of its own in the JVM, with its own metaspace chunk,
+		 * so it commits several times more metaspace per call site than a strong hidden class (though less than a class of the {@link #CLASS_LOADER} backend, 
+		 * see <code>DefineBackendBenchmark</code>).
+		 */
+		HIDDEN_CLASS {
+			@Override
+			public Class<?> defineClass(Class<?> hostClass, byte[] classFile) throws Throwable {
+				return defineHiddenClass(DEFINE_HIDDEN_CLASS, hostClass, classFile);
+			}
+		},
+		/**
+		 * Each generated class is defined as a strong hidden class (Java 15+, <code>Lookup.defineHiddenClass</code> 
+		 * with <code>ClassOption.STRONG</code>) in the package of the host class (i.e. the bootstrap method's class). 
+		 * The class shares the class loader data (and the metaspace) of the host's class loader, so it takes much less metaspace per call site,
+		 * but it is unloaded only together with the host's class loader (i.e. never, for the application's classes).
+		 */
+		HIDDEN_CLASS_STRONG {
+			@Override
+			public Class<?> defineClass(Class<?> hostClass, byte[] classFile) throws Throwable {
+				return defineHiddenClass(DEFINE_STRONG_HIDDEN_CLASS, hostClass, classFile);
+			}
+		};
+
+		/**
+		 * Defines (and initializes) the generated class.
+		 *
+		 * @param	hostClass Class in whose package the generated class is placed (the bootstrap method's class)
+		 * @param	classFile Bytecode of the generated class
+		 * @return	The defined class
+		 */
+		public abstract Class<?> defineClass(Class<?> hostClass, byte[] classFile) throws Throwable;
+
+		//Lookup.defineHiddenClass and MethodHandles.privateLookupIn are bound at runtime, so the code still compiles (and runs) on Java 7  
+		private static final MethodHandle PRIVATE_LOOKUP_IN;
+		private static final MethodHandle DEFINE_HIDDEN_CLASS;
+		private static final MethodHandle DEFINE_STRONG_HIDDEN_CLASS;
+		static {
+			MethodHandle privateLookupIn = null;
+			MethodHandle defineHiddenClass = null;
+			MethodHandle defineStrongHiddenClass = null;
+			try {
+				Lookup lookup = MethodHandles.publicLookup();
+				Class<?> classOptionArray = Class.forName("[Ljava.lang.invoke.MethodHandles$Lookup$ClassOption;");
+
+				privateLookupIn = lookup.findStatic(MethodHandles.class, "privateLookupIn", 
+													MethodType.methodType(Lookup.class, Class.class, Lookup.class));
+				defineHiddenClass = lookup.findVirtual(Lookup.class, "defineHiddenClass", 
+													MethodType.methodType(Lookup.class, byte[].class, boolean.class, classOptionArray));
+				Object strongOption = java.lang.reflect.Array.newInstance(classOptionArray.getComponentType(), 1);
+				java.lang.reflect.Array.set(strongOption, 0, classOptionArray.getComponentType().getField("STRONG").get(null));
+				defineStrongHiddenClass = MethodHandles.insertArguments(defineHiddenClass, 3, strongOption);
+				defineHiddenClass = MethodHandles.insertArguments(defineHiddenClass, 3, java.lang.reflect.Array.newInstance(classOptionArray.getComponentType(), 0));
+			} catch (ReflectiveOperationException e) {
+				privateLookupIn = null;
+				defineHiddenClass = null;
+				defineStrongHiddenClass = null;
+			}
+			PRIVATE_LOOKUP_IN = privateLookupIn;
+			DEFINE_HIDDEN_CLASS = defineHiddenClass;
+			DEFINE_STRONG_HIDDEN_CLASS = defineStrongHiddenClass;
+		}
+
+		private static Class<?> defineHiddenClass(MethodHandle define, Class<?> hostClass, byte[] classFile) throws Throwable {
+			if (define == null)
+				throw new UnsupportedOperationException("Hidden classes are not supported by this JVM (Java 15+ is required)");
+
+			Lookup hostLookup = (Lookup) PRIVATE_LOOKUP_IN.invokeExact(hostClass, MethodHandles.lookup());
+			Lookup hiddenClassLookup = (Lookup) define.invokeExact(hostLookup, classFile, true);
+			return hiddenClassLookup.lookupClass();
+		}
+
+		/**
+		 * @return	true, if this JVM supports hidden classes
+		 */
+		public static boolean isHiddenClassSupported() {
+			return DEFINE_HIDDEN_CLASS != null;
+		}
+	}
+
+	/**
+	 * @return	The backend currently used for defining the generated classes
+	 */
+	public static Backend getBackend() {
+		return backend;
+	}
+
+	/**
+	 * Selects the backend used for defining the generated classes. 
+	 * The initial backend can also be selected with the <code>invokedynamic.backend</code> system property.
+	 *
+	 * @param	newBackend Backend used by the subsequent prepare/prepareAs calls
+	 */
+	public static void setBackend(Backend newBackend) {
+		if (newBackend == null)
+			throw new NullPointerException("backend");
+		backend = newBackend;
+	}
+
+	/**
+	 * The bytecode generators of the classes with the InvokeDynamic instruction.
+	 */
+	public enum Generator {
+		/**
+		 * The class file is generated with the <a href='http://asm.ow2.org'>ASM</a> bytecode generator 
+		 * (copying a pre-built class template, or computing the frames and maxs if <code>invokedynamic.computeFrames</code> is set).
+		 */
+		ASM {
+			@Override
+			BytecodeGenerator newBytecodeGenerator() {
+				return new AsmBytecodeGenerator();
+			}
+		},
+		/**
+		 * The class file is written directly by the hand-written writer of this project (<code>ClassFileBytecodeGenerator</code>), 
+		 * which uses only the JDK (so ASM is not needed at runtime at all). It is not the JDK's class file API (<code>java.lang.classfile</code>), 
+		 * but a minimal writer of just the parts of the class file format used by the generated classes. Opt-in: <code>-Dinvokedynamic.generator=CLASS_FILE</code>.
+		 */
+		CLASS_FILE {
+			@Override
+			BytecodeGenerator newBytecodeGenerator() {
+				return new ClassFileBytecodeGenerator();
+			}
+		};
+
+		/**
+		 * @return	A new generator of a single class
+		 */
+		abstract BytecodeGenerator newBytecodeGenerator();
+	}
+
+	/**
+	 * @return	The bytecode generator currently used for generating the classes
+	 */
+	public static Generator getGenerator() {
+		return generator;
+	}
+
+	/**
+	 * Selects the bytecode generator used for generating the classes (by default: {@link Generator#ASM}; {@link Generator#CLASS_FILE}, 
+	 * the custom, hand-written class file writer, is opt-in). 
+	 * The initial generator can also be selected with the <code>invokedynamic.generator</code> system property.
+	 *
+	 * @param	newGenerator Generator used by the subsequent prepare/prepareAs/prepareAll calls
+	 */
+	public static void setGenerator(Generator newGenerator) {
+		if (newGenerator == null)
+			throw new NullPointerException("generator");
+		generator = newGenerator;
+	}
+
+	/**
+	 * @return	true, if the MethodHandles returned by prepare/prepareAll link the bootstrap method directly (without generating any class)
+	 */
+	public static boolean isDirectLinking() {
+		return directLinking;
+	}
+
+	/**
+	 * Selects the way of preparing the call sites by prepare/prepareAll: generating a class with the InvokeDynamic instruction,
+	 * or linking the bootstrap method directly (see: {@link DirectLinker}). 
+	 * The initial mode can also be selected with the <code>invokedynamic.directLinking</code> system property.
+	 * Call sites already in the prepared call sites cache are returned as they are, regardless of the mode.
+	 *
+	 * @param	enabled true, to link the bootstrap methods directly
+	 */
+	public static void setDirectLinking(boolean enabled) {
+		directLinking = enabled;
+	}
+
+	/**
+	 * @return	true, if the objects returned by prepareAs (for a functional interface) are created by the <code>LambdaMetafactory</code>
+	 */
+	public static boolean isLambdaLinking() {
+		return lambdaLinking;
+	}
+
+	/**
+	 * Selects the way of preparing the objects implementing a functional interface by prepareAs: generating a class with the InvokeDynamic instruction,
+	 * or linking the bootstrap method at once and wrapping the call site's target into the interface with the <code>LambdaMetafactory</code> (Java 8+, see: {@link LambdaLinker}).
+	 * The initial mode can also be selected with the <code>invokedynamic.lambdaLinking</code> system property.
+	 * Call sites already in the prepared call sites cache are returned as they are, regardless of the mode.
+	 *
+	 * @param	enabled true, to wrap the call sites' targets with the LambdaMetafactory
+	 */
+	public static void setLambdaLinking(boolean enabled) {
+		lambdaLinking = enabled;
+	}
+
+	/**
+	 * @return	Directory in which the generated classes are stored (or null, if they are not stored)
+	 */
+	public static File getClassStore() {
+		return classStore;
+	}
+
+	/**
+	 * Selects the directory in which the generated classes are stored, to be loaded (instead of generated) after a restart.
+	 * The stored classes are named after the hash of the call site's signature (see: {@link SiteDescriptor#pregeneratedClassName}),
+	 * just like the classes generated at build time, and are laid out as a regular class path directory (one subdirectory per package). 
+	 * So the directory (or a jar made of it) can also be put on the class path: the stored classes are then loaded by the application class loader 
+	 * and can be archived with AppCDS (e.g. <code>-XX:ArchiveClassesAtExit=indy.jsa</code>, CDS requires the class path entry to be a jar), 
+	 * so on the next start they are mapped from the archive.
+	 * The initial directory can also be selected with the <code>invokedynamic.classStore</code> system property.
+	 *
+	 * @param	directory Directory of the class store, or null to stop storing the generated classes
+	 */
+	public static void setClassStore(File directory) {
+		classStore = directory;
+	}
+
+	/**
+	 * Links a call site the way the JVM links an InvokeDynamic instruction, but without any generated class. 
+	 * The call site's MethodHandle ({@link #dynamicInvoker}) initially points to the linker itself: on the first call
+	 * the bootstrap method is invoked (with a Lookup of the bootstrap method's class, the method name and type and the bootstrap arguments)
+	 * and the target of the returned CallSite is installed (so the bootstrap method runs only once, like for the InvokeDynamic instruction).
+	 */
+	private static final class DirectLinker {
+		private static final MethodHandle LINK;
+		static {
+			try {
+				LINK = MethodHandles.lookup().findVirtual(DirectLinker.class, "link", MethodType.methodType(MethodHandle.class));
+			} catch (ReflectiveOperationException e) {
+				throw (AssertionError) new AssertionError().initCause(e);
+			}
+		}
+
+		private final SiteDescriptor site;
+		private final MutableCallSite callSite;
+		private MethodHandle target;
+
+		DirectLinker(SiteDescriptor site) {
+			this.site = site;
+			this.callSite = new MutableCallSite(site.methodType);
+			callSite.setTarget(MethodHandles.foldArguments(MethodHandles.exactInvoker(site.methodType), LINK.bindTo(this)));
+		}
+
+		MethodHandle dynamicInvoker() {
+			return callSite.dynamicInvoker();
+		}
+
+		synchronized MethodHandle link() {
+			if (target != null)
+				return target;
+
+			CallSite linkedCallSite = bootstrap(site);
+			target = (linkedCallSite instanceof ConstantCallSite) ? linkedCallSite.getTarget() : linkedCallSite.dynamicInvoker();
+			callSite.setTarget(target);
+			return target;
+		}
+
+		/**
+		 * Invokes the bootstrap method of the call site (with a Lookup of the bootstrap method's class, the method name and type and the bootstrap arguments).
+		 *
+		 * @param	site Descriptor of the call site
+		 * @return	The call site returned by the bootstrap method
+		 */
+		static CallSite bootstrap(SiteDescriptor site) {
+			CallSite linkedCallSite;
+			try {
+				Lookup caller = (Backend.PRIVATE_LOOKUP_IN != null) ? (Lookup) Backend.PRIVATE_LOOKUP_IN.invokeExact(site.bsmClass, MethodHandles.lookup())
+																	: MethodHandles.lookup().in(site.bsmClass);
+				MethodHandle bsm = MethodHandles.lookup().findStatic(site.bsmClass, site.bsmName, site.bsmType);
+
+				List<Object> bsmArgs = new ArrayList<Object>(3 + site.bsmArgs.length);
+				bsmArgs.add(caller);
+				bsmArgs.add(site.methodName);
+				bsmArgs.add(site.methodType);
+				bsmArgs.addAll(Arrays.asList(site.bsmArgs));
+				linkedCallSite = (CallSite) bsm.invokeWithArguments(bsmArgs);
+			} catch (Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new BootstrapMethodError(t);
+			}
+			if (linkedCallSite == null || !linkedCallSite.type().equals(site.methodType))
+				throw new BootstrapMethodError("Bootstrap method " + site.bsmName + " returned a call site of the wrong type for: " + site.methodName);
+			return linkedCallSite;
+		}
+	}
+
+	/**
+	 * Prepares an object implementing a functional interface without generating any class: the bootstrap method is invoked at once 
+	 * (not on the first call, as for the InvokeDynamic instruction) and the target of the returned call site is wrapped into the interface 
+	 * by the <code>LambdaMetafactory</code>, i.e. the object is an instance of the JDK's lambda class, which calls the target directly.
+	 * <p/>
+	 * Only the constant call sites (e.g. <code>ConstantCallSite</code>) whose target is a direct MethodHandle (e.g. <code>Lookup.findStatic</code>
+	 * or <code>Lookup.unreflect</code> of a public method) can be wrapped. For the other call sites the class with the InvokeDynamic instruction is generated as usual
+	 * (so their bootstrap method is invoked again, by the InvokeDynamic instruction).
+	 */
+	private static final class LambdaLinker {
+		//LambdaMetafactory.metafactory is bound at runtime, so the code still compiles (and runs) on Java 7
+		private static final MethodHandle METAFACTORY;
+		static {
+			MethodHandle metafactory;
+			try {
+				metafactory = MethodHandles.publicLookup().findStatic(Class.forName("java.lang.invoke.LambdaMetafactory"), "metafactory", 
+													MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, MethodType.class, MethodHandle.class, MethodType.class));
+			} catch (ReflectiveOperationException e) {
+				metafactory = null;
+			}
+			METAFACTORY = metafactory;
+		}
+
+		/**
+		 * @param	site Descriptor of the call site (with a functional interface)
+		 * @return	Object implementing the site's interface, or null if the call site's target cannot be wrapped by the LambdaMetafactory
+		 */
+		static Object link(SiteDescriptor site) throws Throwable {
+			if (METAFACTORY == null)
+				return null;
+
+			Method interfaceMethod = singleAbstractMethodOf(site.interfaceClass);
+			if (isBulkMethod(interfaceMethod, site.methodType))
+				return null;
+
+			CallSite linkedCallSite = DirectLinker.bootstrap(site);
+			if (!(linkedCallSite instanceof ConstantCallSite))
+				return null;
+
+			MethodType interfaceMethodType = MethodType.methodType(interfaceMethod.getReturnType(), interfaceMethod.getParameterTypes());
+			CallSite lambdaFactory;
+			try {
+				lambdaFactory = (CallSite) METAFACTORY.invokeExact(MethodHandles.lookup(), interfaceMethod.getName(), MethodType.methodType(site.interfaceClass), 
+																	interfaceMethodType, linkedCallSite.getTarget(), interfaceMethodType);
+			} catch (Exception e) {
+				//LambdaConversionException, or IllegalArgumentException (the target is not a direct MethodHandle)
+				return null;
+			}
+			return lambdaFactory.getTarget().invoke();
+		}
+	}
+
+	/**
+	 * Signature of a call site (see: {@link InvokeDynamic#prepareAll}), also used as the key of the prepared call sites cache.
+	 * The bootstrap method arguments are copied, so changing the given array does not change the (cached) signature. 
+	 */
+	public static final class SiteDescriptor {
+		private final Class<?> interfaceClass;
+		private final String methodName;
+		private final MethodType methodType;
+		private final String bsmName;
+		private final Class<?> bsmClass;
+		private final MethodType bsmType;
+		private final Object[] bsmArgs;
+		private final int hash;
+
+		/**
+		 * Describes a call site, the same way as the parameters of {@link InvokeDynamic#prepare} do.
+		 *
+		 * @param	methodName Name of the method being invoked, as defined at the method's use (i.e. at the call site)
+		 * @param	methodType Types of the method's return value and parameters (if any) 
+		 * @param	bsmName Name of the call site's bootstrap method
+		 * @param	bsmClass Name of the class in which the bootstrap method is located 
+		 * @param	bsmType Types of the bootstrap method's return value and parameters
+		 * @param	bsmArgs Optional parameters passed from the call site to the bootstrap method
+		 */
+		public SiteDescriptor(String methodName, MethodType methodType, String bsmName, Class<?> bsmClass, MethodType bsmType, Object... bsmArgs) {
+			this(null, methodName, methodType, bsmName, bsmClass, bsmType, bsmArgs);
+		}
+
+		SiteDescriptor(Class<?> interfaceClass, String methodName, MethodType methodType, 
+					String bsmName, Class<?> bsmClass, MethodType bsmType, Object... bsmArgs) {
+			this.interfaceClass = interfaceClass;
+			this.methodName = methodName;
+			this.methodType = methodType;
+			this.bsmName = bsmName;
+			this.bsmClass = bsmClass;
+			this.bsmType = bsmType;
+			this.bsmArgs = (bsmArgs == null) ? new Object[0] : bsmArgs.clone();
+
+			int h = (interfaceClass == null) ? 0 : interfaceClass.hashCode();
+			h = 31 * h + ((methodName == null) ? 0 : methodName.hashCode());
+			h = 31 * h + ((methodType == null) ? 0 : methodType.hashCode());
+			h = 31 * h + bsmName.hashCode();
+			h = 31 * h + bsmClass.hashCode();
+			h = 31 * h + bsmType.hashCode();
+			h = 31 * h + Arrays.deepHashCode(this.bsmArgs);
+			this.hash = h;
+		}
+
+		/**
+		 * Name (without the package) of the class with this call site, as generated at build time by the <code>IndyCallSiteProcessor</code>. 
+		 * The name is made of a 64-bit FNV-1a hash of the call site's signature, written as: 
+		 * <code>interface;methodName;methodDescriptor;bsmClass;bsmName;bsmDescriptor[;bsmArg]*</code>, 
+		 * where each bootstrap argument is written as 'C' + descriptor (for a Class) or 'S' + value (for a String). 
+		 * The annotation processor computes the very same name.
+		 *
+		 * @return	Name of the class generated at build time, or null if the call site cannot be generated at build time
+		 */
+		String pregeneratedClassName() {
+			if (methodName == null)
+				return null;
+
+			StringBuilder signature = new StringBuilder();
+			signature.append((interfaceClass == null) ? "" : interfaceClass.getName()).append(';')
+				.append(methodName).append(';').append(methodType.toMethodDescriptorString()).append(';')
+				.append(bsmClass.getName()).append(';').append(bsmName).append(';').append(bsmType.toMethodDescriptorString());
+			for (Object bsmArg : bsmArgs) {
+				if (bsmArg instanceof Class<?>)
+					signature.append(";C").append(MethodType.methodType((Class<?>) bsmArg).toMethodDescriptorString().substring(2));
+				else if (bsmArg instanceof String)
+					signature.append(";S").append(bsmArg);
+				else
+					return null;
+			}
+
+			long hash = 0xcbf29ce484222325L;
+			for (int i = 0; i < signature.length(); i++) {
+				hash ^= signature.charAt(i);
+				hash *= 0x100000001b3L;
+			}
+			return NAME_OF_CLASS_WITH_INVOKEDYNAMIC + "_" + Long.toHexString(hash);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof SiteDescriptor))
+				return false;
+			SiteDescriptor other = (SiteDescriptor) obj;
+			return hash == other.hash && interfaceClass == other.interfaceClass && bsmClass == other.bsmClass
+					&& ((methodName == null) ? other.methodName == null : methodName.equals(other.methodName)) 
+					&& ((methodType == null) ? other.methodType == null : methodType.equals(other.methodType))
+					&& bsmName.equals(other.bsmName) && bsmType.equals(other.bsmType)
+					&& Arrays.deepEquals(bsmArgs, other.bsmArgs);
+		}
+	}
+
+	/**
+	 * @return	Number of prepare/prepareAs calls served from the prepared call sites cache
+	 */
+	public static long getCacheHits() {
+		return cacheHits.get();
+	}
+
+	/**
+	 * @return	Number of prepare/prepareAs calls which had to generate a new class
+	 */
+	public static long getCacheMisses() {
+		return cacheMisses.get();
+	}
+
+	/**
+	 * Forgets all the prepared call sites (and resets the cache counters). 
+	 * Subsequent prepare/prepareAs calls will generate new classes (and so, bootstrap the call sites again).
+	 */
+	public static void clearCache() {
+		preparedCallSites.clear();
+		preparedPipelines.clear();
+		cacheHits.set(0);
+		cacheMisses.set(0);
+	}
+
 	/**
 	 * Prepares a new InvokeDynamic bytecode instruction which when invoked will invoke the specified method in a dynamic way. 
 	 *
@@ -60,16 +623,8 @@ public class InvokeDynamic {
 	 */	
 	public static MethodHandle prepare(	String methodName, MethodType methodType, 
 										String bsmName,	Class<?> bsmClass, MethodType bsmType, Object... bsmParams) throws Throwable {
-		byte[] classFile = generateClassWithIndyAsStatic(methodName, methodType, bsmName, bsmClass, bsmType, bsmParams);
-				
-		Class<?> indyClass = null;
-		MethodHandle mh = null;
-		try(DynamicLoader dl = new DynamicLoader(new URL[0])) {
-			indyClass = dl.loadFromBytes(classFile);
-			mh = MethodHandles.lookup().findStatic(indyClass, NAME_OF_METHOD_WITH_INVOKEDYNAMIC, methodType);
-		}
-		
-		return mh;
+		SiteDescriptor key = new SiteDescriptor(null, methodName, methodType, bsmName, bsmClass, bsmType, bsmParams);
+		return (MethodHandle) getOrPrepareCallSite(key);
 	}
 
 	/**
@@ -87,24 +642,645 @@ public class InvokeDynamic {
 	public static <T> T prepareAs(	Class<T> interfaceClass,
 									String methodName, MethodType methodType, 
 									String bsmName,	Class<?> bsmClass, MethodType bsmType, Object... bsmParams) throws Throwable {
-		byte[] classFile = generateClassWithIndyAsInterface(interfaceClass, methodName, methodType, bsmName, bsmClass, bsmType, bsmParams);
+		SiteDescriptor key = new SiteDescriptor(interfaceClass, methodName, methodType, bsmName, bsmClass, bsmType, bsmParams);
+		return interfaceClass.cast(getOrPrepareCallSite(key));
+	}
+
+	/**
+	 * Prepares a typed, exact invoker of a new InvokeDynamic bytecode instruction (instead of the MethodHandle returned by {@link #prepare}).
+	 * The type of the call site is the type of the interface's method, so calling the invoker neither boxes the arguments and the result, 
+	 * nor needs the exact static types at the caller's side (as <code>MethodHandle.invokeExact</code> does).
+	 *
+	 * @param	invokerInterface Functional interface which the returned invoker will implement, its method's type is the type of the call site
+	 * @param	methodName Name of the method being invoked, as defined at the method's use (i.e. at the call site)
+	 * @param	bsmName Name of the call site's <a href='http://docs.oracle.com/javase/7/docs/api/java/lang/invoke/package-summary.html'>bootstrap method</a>
+	 * @param	bsmClass Name of the class in which the bootstrap method is located 
+	 * @param	bsmType Types of the bootstrap method's return value and parameters
+	 * @param	bsmParams Optional parameters passed from the call site to the bootstrap method
+	 * @return	Object implementing the given functional interface. The method's implementation contains the InvokeDynamic bytecode.  
+	 */	
+	public static <T> T prepareInvoker(	Class<T> invokerInterface, String methodName, 
+										String bsmName,	Class<?> bsmClass, MethodType bsmType, Object... bsmParams) throws Throwable {
+		Method invokerMethod = singleAbstractMethodOf(invokerInterface);
+		MethodType methodType = MethodType.methodType(invokerMethod.getReturnType(), invokerMethod.getParameterTypes());
+		return prepareAs(invokerInterface, methodName, methodType, bsmName, bsmClass, bsmType, bsmParams);
+	}
+
+	/**
+	 * Prepares a bulk invoker of a new InvokeDynamic bytecode instruction: the interface's method loops over the arrays and invokes the call site 
+	 * for each index, e.g. <code>long[] apply(long[] a, long[] b, int multiplier)</code> (returning a new array), 
+	 * or <code>void apply(long[] a, long[] b, int multiplier, long[] result)</code> (storing the results in the given array, so the batch does not allocate)
+	 * for the call site of the type <code>(long, long, int)long</code>. 
+	 * Each array parameter (where the call site's parameter is not an array) gives the call site's argument for each index, the other parameters are passed as they are.
+	 * The loop is generated in a single method (with the InvokeDynamic instruction in its body), so the JIT compiler can inline the call site's target 
+	 * into the loop, instead of crossing the interface and the call site for each element separately.
+	 * <p/>
+	 * The number of iterations is the length of the output array given as the argument, otherwise the length of the first array argument 
+	 * (the other arrays must not be shorter). The elements and the results are converted the way {@link #prepareAs} converts the arguments and the result.
+	 *
+	 * @param	bulkInterface Functional interface which the returned object will implement, its method is the bulk method of the call site
+	 * @param	methodName Name of the method being invoked, as defined at the method's use (i.e. at the call site)
+	 * @param	methodType Types of the method's return value and parameters (if any), for a single element
+	 * @param	bsmName Name of the call site's <a href='http://docs.oracle.com/javase/7/docs/api/java/lang/invoke/package-summary.html'>bootstrap method</a>
+	 * @param	bsmClass Name of the class in which the bootstrap method is located 
+	 * @param	bsmType Types of the bootstrap method's return value and parameters
+	 * @param	bsmParams Optional parameters passed from the call site to the bootstrap method
+	 * @return	Object implementing the given functional interface. The method's implementation contains the loop with the InvokeDynamic bytecode.  
+	 */	
+	public static <T> T prepareBulk(Class<T> bulkInterface,
+									String methodName, MethodType methodType, 
+									String bsmName,	Class<?> bsmClass, MethodType bsmType, Object... bsmParams) throws Throwable {
+		Method bulkMethod = singleAbstractMethodOf(bulkInterface);
+		if (!isBulkMethod(bulkMethod, methodType))
+			throw new IllegalArgumentException("Not a bulk method of the call site " + methodType + ": " + bulkMethod);
+		return prepareAs(bulkInterface, methodName, methodType, bsmName, bsmClass, bsmType, bsmParams);
+	}
+
+	/**
+	 * Prepares a pipeline of the call sites (stages): a single generated method runs the stages back to back, each stage being an InvokeDynamic instruction 
+	 * whose result is the argument of the next stage. So the pipeline is compiled (and inlined) as a single method, 
+	 * instead of a chain of the MethodHandle combinators (e.g. <code>MethodHandles.filterReturnValue</code>). 
+	 * <p/>
+	 * The type of the pipeline is the type of the first stage's parameters and the last stage's result. Each next stage must have a single parameter, 
+	 * to which the result of the previous stage is converted (the way {@link #prepareAs} converts the arguments).
+	 * The bootstrap methods must be accessible from the package of the first stage's bootstrap method class (where the pipeline's class is generated).
+	 * Pipelines are cached by their stages, so preparing the same stages again returns the already prepared pipeline.
+	 *
+	 * @param	stages Descriptors of the static call sites, in the order of running them
+	 * @return	Handle (reference) to the generated method running the stages  
+	 */	
+	public static MethodHandle preparePipeline(List<SiteDescriptor> stages) throws Throwable {
+		pipelineTypeOf(stages);
+		return (MethodHandle) getOrPreparePipeline(null, stages);
+	}
+
+	/**
+	 * Prepares a bulk pipeline of the call sites (stages): the interface's method loops over the arrays (see: {@link #prepareBulk}) 
+	 * and for each index runs the stages back to back (see: {@link #preparePipeline}), e.g. <code>void apply(long[] input, double[] output)</code>
+	 * for the stages of the types <code>(long)long</code> and <code>(long)double</code>.
+	 *
+	 * @param	bulkInterface Functional interface which the returned object will implement, its method is the bulk method of the pipeline
+	 * @param	stages Descriptors of the static call sites, in the order of running them
+	 * @return	Object implementing the given functional interface. The method's implementation contains the loop with the InvokeDynamic bytecodes.  
+	 */	
+	public static <T> T preparePipeline(Class<T> bulkInterface, List<SiteDescriptor> stages) throws Throwable {
+		MethodType pipelineType = pipelineTypeOf(stages);
+		Method bulkMethod = singleAbstractMethodOf(bulkInterface);
+		if (!isBulkMethod(bulkMethod, pipelineType))
+			throw new IllegalArgumentException("Not a bulk method of the pipeline " + pipelineType + ": " + bulkMethod);
+		return bulkInterface.cast(getOrPreparePipeline(bulkInterface, stages));
+	}
+
+	/**
+	 * Prepares an object implementing every abstract method of the given interface (e.g. instead of a <code>java.lang.reflect.Proxy</code>). 
+	 * Each method's implementation contains its own InvokeDynamic bytecode instruction, with the same bootstrap method: 
+	 * the bootstrap method is called (on the first call of each method) with the name and the type of the interface's method,
+	 * so it can link each method to a different target (i.e. the bootstrap method is keyed by the method name).
+	 * The methods of the interface which are also the public methods of the Object class (e.g. <code>toString</code>) are not implemented.
+	 *
+	 * @param	interfaceClass Interface which the returned object will implement
+	 * @param	bsmName Name of the call sites' <a href='http://docs.oracle.com/javase/7/docs/api/java/lang/invoke/package-summary.html'>bootstrap method</a>
+	 * @param	bsmClass Name of the class in which the bootstrap method is located 
+	 * @param	bsmType Types of the bootstrap method's return value and parameters
+	 * @param	bsmParams Optional parameters passed from the call sites to the bootstrap method
+	 * @return	Object implementing all the methods of the given interface. The implementation of each method contains the InvokeDynamic bytecode.  
+	 */	
+	public static <T> T prepareAs(	Class<T> interfaceClass,
+									String bsmName,	Class<?> bsmClass, MethodType bsmType, Object... bsmParams) throws Throwable {
+		if (!interfaceClass.isInterface())
+			throw new IllegalArgumentException("Not an interface: " + interfaceClass.getName());
+
+		SiteDescriptor key = new SiteDescriptor(interfaceClass, null, null, bsmName, bsmClass, bsmType, bsmParams);
+		return interfaceClass.cast(getOrPrepareCallSite(key));
+	}
+
+	/**
+	 * Prepares many InvokeDynamic bytecode instructions at once. Instead of a class per call site, a single class 
+	 * (per bootstrap method's class, and per {@value #MAX_NUMBER_OF_METHODS_IN_CLASS} call sites) is generated, 
+	 * with a separate static method (containing its own InvokeDynamic instruction) for each of the call sites.
+	 * Call sites which were already prepared are taken from the prepared call sites cache. 
+	 * Call sites whose classes have been generated at build time (as listed in the index written by the annotation processor), 
+	 * or all of them when the class store is set (see: {@link #setClassStore}), are prepared alone, just like by {@link #prepare} (see: {@link #isPreparedAlone}).
+	 * The stored classes put on the class path are used by this method only while the class store is set.
+	 *
+	 * @param	sites Descriptors of the call sites
+	 * @return	Handles (references) to the generated methods containing the invokedynamic instructions, in the order of the given descriptors  
+	 */	
+	public static List<MethodHandle> prepareAll(List<SiteDescriptor> sites) throws Throwable {
+		MethodHandle[] mhs = new MethodHandle[sites.size()];
+		if (directLinking) {
+			for (int i = 0; i < mhs.length; i++)
+				mhs[i] = prepare(sites.get(i).methodName, sites.get(i).methodType, sites.get(i).bsmName, sites.get(i).bsmClass, sites.get(i).bsmType, sites.get(i).bsmArgs);
+			return Arrays.asList(mhs);
+		}
+
+		Map<Class<?>, List<SiteDescriptor>> sitesToGenerate = uncachedSitesByHost(sites, mhs);
+
+		Map<SiteDescriptor, MethodHandle> generated = new HashMap<SiteDescriptor, MethodHandle>();
+		for (Map.Entry<Class<?>, List<SiteDescriptor>> sitesOfHost : sitesToGenerate.entrySet()) {
+			List<SiteDescriptor> hostSites = sitesOfHost.getValue();
+			for (int from = 0; from < hostSites.size(); from += MAX_NUMBER_OF_METHODS_IN_CLASS) {
+				List<SiteDescriptor> classSites = hostSites.subList(from, Math.min(from + MAX_NUMBER_OF_METHODS_IN_CLASS, hostSites.size()));
+				MethodHandle[] classMhs = prepareClassWithSites(sitesOfHost.getKey(), classSites);
+				for (int i = 0; i < classSites.size(); i++)
+					generated.put(classSites.get(i), classMhs[i]);
+			}
+		}
+
+		for (int i = 0; i < mhs.length; i++) {
+			if (mhs[i] == null)
+				mhs[i] = generated.get(sites.get(i));
+		}
+		return Arrays.asList(mhs);
+	}
+
+	/**
+	 * Warms up many call sites in parallel, on the InvokeDynamic's fork-join pool (with as many threads as there are processors). 
+	 * See: {@link #warmUp(Collection, ForkJoinPool)}.
+	 *
+	 * @param	sites Descriptors of the call sites
+	 * @return	Future of the handles to the prepared call sites, in the order of the given descriptors
+	 */	
+	public static Future<List<MethodHandle>> warmUp(Collection<SiteDescriptor> sites) {
+		return warmUp(sites, WarmUpPool.POOL);
+	}
+
+	/**
+	 * Warms up many call sites in parallel (e.g. at startup), instead of preparing them one by one on the calling thread. 
+	 * The call sites not yet in the prepared call sites cache are split into batches, which are prepared by the tasks of the given fork-join pool: <ul>
+	 * <li> a class with the InvokeDynamic instructions is generated and defined for each batch (just like {@link #prepareAll} does for all the call sites,
+	 * so the classes generated at build time and the class store are used the same way), or </li>
+	 * <li> in the direct linking mode (see: {@link #setDirectLinking}), the bootstrap method of each call site is invoked ahead of time 
+	 * (instead of on the first call), and the returned handle invokes the linked call site's target right away </li></ul>
+	 * The returned future completes when all the call sites are prepared (and put in the prepared call sites cache).
+	 *
+	 * @param	sites Descriptors of the call sites
+	 * @param	pool Fork-join pool which prepares the call sites
+	 * @return	Future of the handles to the prepared call sites, in the order of the given descriptors
+	 */	
+	public static Future<List<MethodHandle>> warmUp(Collection<SiteDescriptor> sites, ForkJoinPool pool) {
+		List<SiteDescriptor> sitesToWarmUp = new ArrayList<SiteDescriptor>(sites);
+		for (SiteDescriptor site : sitesToWarmUp) {
+			if (site.interfaceClass != null)
+				throw new IllegalArgumentException("Only the static call sites can be warmed up: " + site.methodName);
+		}
+		return pool.submit(new WarmUp(sitesToWarmUp, pool.getParallelism(), directLinking));
+	}
+
+	/**
+	 * Fork-join pool of {@link #warmUp(Collection)}, created on its first use.
+	 */
+	private static final class WarmUpPool {
+		static final ForkJoinPool POOL = new ForkJoinPool();
+	}
+
+	/**
+	 * Task of {@link #warmUp(Collection, ForkJoinPool)}: splits the call sites into batches (a few per thread of the pool, 
+	 * but with at least {@value #MIN_BATCH_SIZE} call sites per generated class) and prepares them in parallel. 
+	 */
+	private static final class WarmUp extends RecursiveTask<List<MethodHandle>> {
+		private static final long serialVersionUID = 1L;
+		private static final int MIN_BATCH_SIZE = 16;
+		private static final int BATCHES_PER_THREAD = 4;
+
+		private final List<SiteDescriptor> sites;
+		private final int parallelism;
+		private final boolean link;
+
+		WarmUp(List<SiteDescriptor> sites, int parallelism, boolean link) {
+			this.sites = sites;
+			this.parallelism = parallelism;
+			this.link = link;
+		}
+
+		@Override
+		protected List<MethodHandle> compute() {
+			try {
+				MethodHandle[] mhs = new MethodHandle[sites.size()];
+				Map<Class<?>, List<SiteDescriptor>> sitesToPrepare = uncachedSitesByHost(sites, mhs);
+
+				int numberOfSitesToPrepare = 0;
+				for (List<SiteDescriptor> hostSites : sitesToPrepare.values())
+					numberOfSitesToPrepare += hostSites.size();
+				int batchSize = (numberOfSitesToPrepare + parallelism * BATCHES_PER_THREAD - 1) / (parallelism * BATCHES_PER_THREAD);
+				batchSize = Math.min(Math.max(batchSize, MIN_BATCH_SIZE), MAX_NUMBER_OF_METHODS_IN_CLASS);
+
+				List<WarmUpBatch> batches = new ArrayList<WarmUpBatch>();
+				for (Map.Entry<Class<?>, List<SiteDescriptor>> sitesOfHost : sitesToPrepare.entrySet()) {
+					List<SiteDescriptor> hostSites = sitesOfHost.getValue();
+					for (int from = 0; from < hostSites.size(); from += batchSize)
+						batches.add(new WarmUpBatch(sitesOfHost.getKey(), hostSites.subList(from, Math.min(from + batchSize, hostSites.size())), link));
+				}
+				invokeAll(batches);
+
+				for (int i = 0; i < mhs.length; i++) {
+					if (mhs[i] == null) {
+						FutureTask<Object> preparation = preparedCallSites.get(sites.get(i));
+						mhs[i] = (MethodHandle) ((preparation != null) ? getPreparedCallSite(sites.get(i), preparation) : getOrPrepareCallSite(sites.get(i)));
+					}
+				}
+				return Arrays.asList(mhs);
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new IllegalStateException("Cannot warm up the call sites", t);
+			}
+		}
+	}
+
+	/**
+	 * Batch of the call sites (of a single bootstrap method's class) prepared by a single task of {@link WarmUp}.
+	 */
+	private static final class WarmUpBatch extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Class<?> hostClass;
+		private final List<SiteDescriptor> sites;
+		private final boolean link;
+
+		WarmUpBatch(Class<?> hostClass, List<SiteDescriptor> sites, boolean link) {
+			this.hostClass = hostClass;
+			this.sites = sites;
+			this.link = link;
+		}
+
+		@Override
+		protected void compute() {
+			try {
+				if (!link) {
+					prepareClassWithSites(hostClass, sites);
+					return;
+				}
+				for (SiteDescriptor site : sites)
+					cachePreparedCallSite(site, new DirectLinker(site).link());
+			} catch (RuntimeException | Error e) {
+				throw e;
+			} catch (Throwable t) {
+				throw new IllegalStateException("Cannot warm up the call sites of: " + hostClass.getName(), t);
+			}
+		}
+	}
+
+	/**
+	 * Groups the (distinct) static call sites not yet in the prepared call sites cache by their bootstrap method's class.
+	 * The call sites found in the cache are put in the given array.
+	 *
+	 * @param	sites Descriptors of the call sites
+	 * @param	mhs Handles to the call sites (in the order of the given descriptors), filled in for the call sites found in the cache
+	 * @return	Call sites to prepare, by their bootstrap method's class
+	 */	
+	private static Map<Class<?>, List<SiteDescriptor>> uncachedSitesByHost(List<SiteDescriptor> sites, MethodHandle[] mhs) throws Throwable {
+		Map<Class<?>, List<SiteDescriptor>> sitesToPrepare = new LinkedHashMap<Class<?>, List<SiteDescriptor>>();
+		Set<SiteDescriptor> uniqueSites = new HashSet<SiteDescriptor>();
+		for (int i = 0; i < mhs.length; i++) {
+			SiteDescriptor site = sites.get(i);
+			if (site.interfaceClass != null)
+				throw new IllegalArgumentException("Only the static call sites can be prepared together: " + site.methodName);
+
+			FutureTask<Object> preparation = preparedCallSites.get(site);
+			if (preparation != null) {
+				cacheHits.incrementAndGet();
+				mhs[i] = (MethodHandle) getPreparedCallSite(site, preparation);
+				continue;
+			}
+
+			List<SiteDescriptor> sitesOfHost = sitesToPrepare.get(site.bsmClass);
+			if (sitesOfHost == null) {
+				sitesOfHost = new ArrayList<SiteDescriptor>();
+				sitesToPrepare.put(site.bsmClass, sitesOfHost);
+			}
+			if (uniqueSites.add(site))
+				sitesOfHost.add(site);
+		}
+		return sitesToPrepare;
+	}
+
+	/**
+	 * Generates and defines a single class with the given call sites (each in its own static method) and puts the call sites 
+	 * in the prepared call sites cache (unless they have been prepared in the meantime).
+	 * The call sites prepared alone (see: {@link #isPreparedAlone}) are not put in the generated class, but prepared one by one, 
+	 * the same way as by {@link #prepare}: from the class generated at build time, or from the class store.
+	 *
+	 * @param	hostClass Class in whose package the generated class is put
+	 * @param	classSites Descriptors of the call sites (at most {@value #MAX_NUMBER_OF_METHODS_IN_CLASS})
+	 * @return	Handles to the call sites, in the order of the given descriptors
+	 */	
+	private static MethodHandle[] prepareClassWithSites(Class<?> hostClass, List<SiteDescriptor> classSites) throws Throwable {
+		MethodHandle[] mhs = new MethodHandle[classSites.size()];
+		List<SiteDescriptor> sitesToGenerate = new ArrayList<SiteDescriptor>(classSites.size());
+		for (int i = 0; i < classSites.size(); i++) {
+			if (isPreparedAlone(classSites.get(i)))
+				mhs[i] = (MethodHandle) getOrPrepareCallSite(classSites.get(i));
+			else
+				sitesToGenerate.add(classSites.get(i));
+		}
+		if (sitesToGenerate.isEmpty())
+			return mhs;
+
+		byte[] classFile = generateClassWithIndysAsStatic(hostClass, sitesToGenerate);
+
+		Class<?> indyClass = backend.defineClass(hostClass, classFile);
+		for (int i = 0, method = 0; i < classSites.size(); i++) {
+			if (mhs[i] != null)
+				continue;
+			SiteDescriptor site = classSites.get(i);
+			mhs[i] = cachePreparedCallSite(site, MethodHandles.lookup().findStatic(indyClass, NAME_OF_METHOD_WITH_INVOKEDYNAMIC + method++, site.methodType));
+		}
+		return mhs;
+	}
+
+	/**
+	 * Decides whether the call site is prepared alone (in a class of its own, see: {@link #prepareCallSite}) by {@link #prepareAll} and {@link #warmUp}, 
+	 * instead of being generated together with the other call sites: so each call site is looked up in the same order as by {@link #prepare} - 
+	 * the class generated at build time, then the class store, then a newly generated class. 
+	 * That is, when its class has been generated at build time, or when the generated classes are stored 
+	 * (the stored classes are named after the signature of a single call site, so only a class of a single call site can be stored and found).
+	 *
+	 * @param	site Descriptor of the call site
+	 * @return	true, if the call site is prepared alone
+	 */	
+	private static boolean isPreparedAlone(SiteDescriptor site) {
+		String className = site.pregeneratedClassName();
+		if (className == null)
+			return false;
+		//the index of the classes generated at build time is read instead of looking up each class (a missing class costs a ClassNotFoundException)
+		return (classStore != null) || pregeneratedClassNames.get(site.bsmClass).contains(className);
+	}
+
+	/**
+	 * Reads the index of the classes generated at build time, written by the <code>IndyCallSiteProcessor</code> annotation processor 
+	 * in the package of the bootstrap method's class.
+	 *
+	 * @param	bsmClass Class in which the bootstrap method is located
+	 * @return	Names (without the package) of the classes generated at build time, or an empty set if there is no index (or it cannot be read)
+	 */	
+	private static Set<String> readPregeneratedClassNames(Class<?> bsmClass) {
+		Set<String> classNames = new HashSet<String>();
+		try (InputStream in = bsmClass.getResourceAsStream(NAME_OF_PREGENERATED_CLASSES_INDEX)) {
+			if (in == null)
+				return Collections.emptySet();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if (!line.trim().isEmpty())
+					classNames.add(line.trim());
+			}
+		} catch (IOException e) {
+			return Collections.emptySet();
+		}
+		return classNames;
+	}
+
+	/**
+	 * Puts the prepared call site in the prepared call sites cache, unless the call site has been prepared in the meantime.
+	 *
+	 * @param	site Descriptor of the call site
+	 * @param	mh Handle to the prepared call site
+	 * @return	Handle to the call site, as found in the cache
+	 */	
+	private static MethodHandle cachePreparedCallSite(SiteDescriptor site, MethodHandle mh) throws Throwable {
+		FutureTask<Object> previous = preparedCallSites.putIfAbsent(site, completedPreparation(mh));
+		if (previous == null) {
+			cacheMisses.incrementAndGet();
+			return mh;
+		}
+		return (MethodHandle) getPreparedCallSite(site, previous);
+	}
+
+	/**
+	 * Returns the prepared pipeline, preparing it if needed (two threads preparing the same pipeline at the same time may both generate it, 
+	 * but the same pipeline is returned to both of them).
+	 *
+	 * @param	bulkInterface Bulk interface of the pipeline, or null
+	 * @param	stages Descriptors of the stages
+	 * @return	MethodHandle (when there is no bulk interface) or object implementing the bulk interface
+	 */	
+	private static Object getOrPreparePipeline(Class<?> bulkInterface, List<SiteDescriptor> stages) throws Throwable {
+		List<Object> key = new ArrayList<Object>(stages.size() + 1);
+		key.add(bulkInterface);
+		key.addAll(stages);
+		Object pipeline = preparedPipelines.get(key);
+		if (pipeline != null) {
+			cacheHits.incrementAndGet();
+			return pipeline;
+		}
+
+		Class<?> hostClass = stages.get(0).bsmClass;
+		byte[] classFile = generateClassWithPipeline(packageNameOf(hostClass).replace('.', '/') + "/" + NAME_OF_CLASS_WITH_INVOKEDYNAMIC + dynamicCallNumber.getAndIncrement(), 
+														bulkInterface, stages);
+		Class<?> pipelineClass = backend.defineClass(hostClass, classFile);
+		if (bulkInterface == null)
+			pipeline = MethodHandles.lookup().findStatic(pipelineClass, NAME_OF_METHOD_WITH_INVOKEDYNAMIC, pipelineTypeOf(stages));
+		else
+			pipeline = MethodHandles.lookup().findConstructor(pipelineClass, MethodType.methodType(void.class)).invoke();
 
-		Class<?> indyClass = null;
-		T obj = null;
-		try(DynamicLoader dl = new DynamicLoader(new URL[0])) {
-			indyClass = dl.loadFromBytes(classFile);
-			
-			MethodHandle mh = MethodHandles.lookup().findConstructor(indyClass, MethodType.methodType(void.class));
-			obj = (T) mh.invoke();
+		Object previous = preparedPipelines.putIfAbsent(key, pipeline);
+		if (previous != null) {
+			cacheHits.incrementAndGet();
+			return previous;
+		}
+		cacheMisses.incrementAndGet();
+		return pipeline;
+	}
+
+	/**
+	 * Returns the prepared call site (MethodHandle or object) of the given signature, preparing it if needed.
+	 * Only the first thread asking for a call site prepares it, the other threads asking for the same call site wait for the result. 
+	 *
+	 * @param	key Signature of the call site
+	 * @return	MethodHandle (when the key has no interface) or object implementing the key's interface
+	 */	
+	private static Object getOrPrepareCallSite(final SiteDescriptor key) throws Throwable {
+		FutureTask<Object> preparation = preparedCallSites.get(key);
+		if (preparation == null) {
+			FutureTask<Object> newPreparation = new FutureTask<Object>(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					try {
+						return prepareCallSite(key);
+					} catch (Exception | Error e) {
+						throw e;
+					} catch (Throwable t) {
+						throw new Exception(t);
+					}
+				}
+			});
+			preparation = preparedCallSites.putIfAbsent(key, newPreparation);
+			if (preparation == null) {
+				cacheMisses.incrementAndGet();
+				preparation = newPreparation;
+				preparation.run();
+			} else {
+				cacheHits.incrementAndGet();
+			}
+		} else {
+			cacheHits.incrementAndGet();
 		}
-		return obj;
+
+		return getPreparedCallSite(key, preparation);
+	}
+
+	/**
+	 * @param	callSite Already prepared call site (MethodHandle or object)
+	 * @return	Completed preparation of the call site, to be put in the prepared call sites cache 
+	 */	
+	private static FutureTask<Object> completedPreparation(final Object callSite) {
+		FutureTask<Object> preparation = new FutureTask<Object>(new Callable<Object>() {
+			@Override
+			public Object call() {
+				return callSite;
+			}
+		});
+		preparation.run();
+		return preparation;
 	}
 
 	/**
-	 * Generates a new class (using <a href='http://asm.ow2.org'>ASM</a> bytecode generator) with: <ul>
+	 * Waits for the preparation of the call site to complete. 
+	 * A failed preparation is removed from the cache (so the call site can be prepared again).
+	 *
+	 * @param	key Signature of the call site
+	 * @param	preparation Preparation of the call site (as found in the prepared call sites cache) 
+	 * @return	MethodHandle (when the key has no interface) or object implementing the key's interface
+	 */	
+	private static Object getPreparedCallSite(SiteDescriptor key, FutureTask<Object> preparation) throws Throwable {
+		try {
+			return preparation.get();
+		} catch (ExecutionException e) {
+			preparedCallSites.remove(key, preparation);
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Generates, defines and instantiates (if needed) the class with the call site of the given signature.
+	 *
+	 * @param	key Signature of the call site
+	 * @return	MethodHandle (when the key has no interface) or object implementing the key's interface
+	 */	
+	private static Object prepareCallSite(SiteDescriptor key) throws Throwable {
+		if (key.interfaceClass == null && directLinking)
+			return new DirectLinker(key).dynamicInvoker();
+		if (key.interfaceClass != null && key.methodName != null && lambdaLinking) {
+			Object lambda = LambdaLinker.link(key);
+			if (lambda != null)
+				return lambda;
+		}
+
+		Class<?> indyClass = findPregeneratedClass(key);
+		if (indyClass == null) {
+			File store = classStore;
+			String storedClassName = (store != null) ? key.pregeneratedClassName() : null;
+			File storedClassFile = (storedClassName != null) ? new File(new File(store, packageNameOf(key.bsmClass).replace('.', File.separatorChar)), storedClassName + ".class") : null;
+
+			byte[] classFile = (storedClassFile != null) ? readStoredClass(storedClassFile) : null;
+			if (classFile == null) {
+				classFile = generateClassFile(key, storedClassName);
+				if (storedClassFile != null)
+					storeClass(storedClassFile, classFile);
+			}
+			indyClass = backend.defineClass(key.bsmClass, classFile);
+		}
+
+		if (key.interfaceClass == null)
+			return MethodHandles.lookup().findStatic(indyClass, NAME_OF_METHOD_WITH_INVOKEDYNAMIC, key.methodType);
+
+		MethodHandle mh = MethodHandles.lookup().findConstructor(indyClass, MethodType.methodType(void.class));
+		return mh.invoke();
+	}
+
+	/**
+	 * Generates the class with the call site of the given signature.
+	 *
+	 * @param	key Signature of the call site
+	 * @param	simpleClassName Name (without the package) of the generated class, or null to give the class a new, unique name
+	 * @return	bytecode of the generated class  
+	 */	
+	static byte[] generateClassFile(SiteDescriptor key, String simpleClassName) throws Exception {
+		String className = packageNameOf(key.bsmClass).replace('.', '/') + "/" 
+							+ ((simpleClassName != null) ? simpleClassName : NAME_OF_CLASS_WITH_INVOKEDYNAMIC + dynamicCallNumber.getAndIncrement());
+		if (key.interfaceClass == null)
+			return generateClassWithIndyAsStatic(className, key.methodName, key.methodType, key.bsmName, key.bsmClass, key.bsmType, key.bsmArgs);
+		if (key.methodName == null)
+			return generateClassWithIndysAsInterface(className, key.interfaceClass, key.bsmName, key.bsmClass, key.bsmType, key.bsmArgs);
+		return generateClassWithIndyAsInterface(className, key.interfaceClass, key.methodName, key.methodType, key.bsmName, key.bsmClass, key.bsmType, key.bsmArgs);
+	}
+
+	/**
+	 * Looks for the class with the call site generated at build time (by the <code>IndyCallSiteProcessor</code> annotation processor).
+	 * Such a class is put in the package of the bootstrap method's class and is named after the call site's signature 
+	 * (see: {@link SiteDescriptor#pregeneratedClassName}).
+	 *
+	 * A class which cannot be loaded (e.g. fails the verification, as generated by an older processor for a call site not matching the interface's method)
+	 * is skipped, so the call site is generated at runtime, as if there was no such class.
+	 *
+	 * @param	key Signature of the call site
+	 * @return	The class generated at build time, or null if there is no such class (or it cannot be loaded)
+	 */	
+	private static Class<?> findPregeneratedClass(SiteDescriptor key) {
+		String className = key.pregeneratedClassName();
+		if (className == null)
+			return null;
+
+		try {
+			return Class.forName(packageNameOf(key.bsmClass) + "." + className, true, key.bsmClass.getClassLoader());
+		} catch (ClassNotFoundException | LinkageError e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the class stored (by a previous run) in the class store.
+	 *
+	 * @param	storedClassFile File of the stored class
+	 * @return	bytecode of the stored class, or null if the class has not been stored (or cannot be read)
+	 */	
+	private static byte[] readStoredClass(File storedClassFile) {
+		if (!storedClassFile.isFile())
+			return null;
+
+		try {
+			return Files.readAllBytes(storedClassFile.toPath());
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the generated class to the class store. The class is written to a temporary file first, and then renamed,
+	 * so concurrent runs never see a partially written class. Failing to store the class is not an error (it will just be generated again).
+	 *
+	 * @param	storedClassFile File of the stored class
+	 * @param	classFile bytecode of the generated class
+	 */	
+	private static void storeClass(File storedClassFile, byte[] classFile) {
+		File temporaryFile = null;
+		try {
+			storedClassFile.getParentFile().mkdirs();
+			temporaryFile = File.createTempFile(storedClassFile.getName(), ".tmp", storedClassFile.getParentFile());
+			try (OutputStream out = new FileOutputStream(temporaryFile)) {
+				out.write(classFile);
+			}
+			Files.move(temporaryFile.toPath(), storedClassFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			if (temporaryFile != null)
+				temporaryFile.delete();
+		}
+	}
+
+	/**
+	 * @return	Name of the given class's package
+	 */	
+	private static String packageNameOf(Class<?> clazz) {
+		String className = clazz.getName();
+		return className.substring(0, Math.max(className.lastIndexOf('.'), 0));
+	}
+
+	/**
+	 * Generates a new class (using the selected {@link Generator}) with: <ul>
 	 * <li> a default, public constructor </li>
 	 * <li> a single, public static method, containing the InvokeDynamic bytecode instruction</li> 
 	 *
+	 * @param	className Internal name of the generated class (e.g. 'pl/confitura2012/ClassWithIndy0') 
 	 * @param	methodName Name of the public, static method 
 	 * @param	methodType Types of the method's return value and parameters (if any) 
 	 * @param	bsmName Name of the bootstrap method (for the INVOKEDYNAMIC bytecode instruction)
@@ -113,26 +1289,44 @@ public class InvokeDynamic {
 	 * @param	bsmParams Optional parameters to the bootstrap method
 	 * @return	bytecode of the generated class  
 	 */		
-	private static byte[] generateClassWithIndyAsStatic(String methodName, MethodType methodType, 
+	private static byte[] generateClassWithIndyAsStatic(String className, String methodName, MethodType methodType, 
 														String bsmName, Class<?> bsmClass,	MethodType bsmType, Object... bsmArgs) throws Exception {
-		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS + ClassWriter.COMPUTE_FRAMES);
+		BytecodeGenerator bg = generateClassWithParameterlessConstructor(className, null);
 
-		generateClass(cw, bsmClass.getPackage().getName());
+		generateMethodWithInDy(bg, NAME_OF_METHOD_WITH_INVOKEDYNAMIC, methodName, methodType, bsmName, bsmClass, bsmType, bsmArgs);
 
-		generateParameterlessConstructor(cw);
+		return bg.toByteArray();
+	}
 
-		generateMethodWithInDy(cw, methodName, methodType, bsmName, bsmClass, bsmType, bsmArgs);
+	/**
+	 * Generates a new class (using the selected {@link Generator}) with: <ul>
+	 * <li> a default, public constructor </li>
+	 * <li> a public static method for each of the given call sites, containing the call site's InvokeDynamic bytecode instruction</li></ul> 
+	 * The methods are named {@value #NAME_OF_METHOD_WITH_INVOKEDYNAMIC}0, {@value #NAME_OF_METHOD_WITH_INVOKEDYNAMIC}1, etc.
+	 *
+	 * @param	hostClass Class in whose package the generated class is put
+	 * @param	sites Descriptors of the call sites
+	 * @return	bytecode of the generated class  
+	 */		
+	private static byte[] generateClassWithIndysAsStatic(Class<?> hostClass, List<SiteDescriptor> sites) throws Exception {
+		BytecodeGenerator bg = generateClassWithParameterlessConstructor(packageNameOf(hostClass).replace('.', '/') + "/" + NAME_OF_CLASS_WITH_INVOKEDYNAMIC + dynamicCallNumber.getAndIncrement(), null);
+
+		for (int i = 0; i < sites.size(); i++) {
+			SiteDescriptor site = sites.get(i);
+			generateMethodWithInDy(bg, NAME_OF_METHOD_WITH_INVOKEDYNAMIC + i, 
+									site.methodName, site.methodType, site.bsmName, site.bsmClass, site.bsmType, site.bsmArgs);
+		}
 
-		cw.visitEnd();		
-		return cw.toByteArray();
+		return bg.toByteArray();
 	}
 
 	/**
-	 * Generates a new class (using <a href='http://asm.ow2.org'>ASM</a> bytecode generator) implementing the given single method interface.
+	 * Generates a new class (using the selected {@link Generator}) implementing the given single method interface.
 	 * The class will have: <ul>
 	 * <li> a default, public constructor </li>
 	 * <li> a single, public method (implementation of the interface), containing the InvokeDynamic bytecode instruction</li></ul>
 	 * 
+	 * @param	className Internal name of the generated class (e.g. 'pl/confitura2012/ClassWithIndy0') 
 	 * @param	executableInterface Functional interface which the class will implement 
 	 * @param	methodName Name of the public, static method 
 	 * @param	methodType Types of the method's return value and parameters (if any) 
@@ -142,111 +1336,151 @@ public class InvokeDynamic {
 	 * @param	bsmParams Optional parameters to the bootstrap method
 	 * @return	bytecode of the generated class  
 	 */		
-	private static byte[] generateClassWithIndyAsInterface( Class<?> executableInterface, 
+	private static byte[] generateClassWithIndyAsInterface( String className, Class<?> executableInterface, 
 															String methodName, MethodType methodType, 
 															String bsmName,	Class<?> bsmClass, MethodType bsmType, Object... bsmArgs) throws Exception {
-		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS + ClassWriter.COMPUTE_FRAMES);
+		BytecodeGenerator bg = generateClassWithParameterlessConstructor(className, executableInterface);
 
-		generateClassWithInterface(cw, bsmClass.getPackage().getName(), executableInterface);
+		generateMethodWithIndyAsInterfaceImplementation(bg, singleAbstractMethodOf(executableInterface), methodName, methodType, bsmName, bsmClass, bsmType, bsmArgs);
 
-		generateParameterlessConstructor(cw);
+		return bg.toByteArray();
+	}
 
-		generateMethodWithIndyAsInterfaceImplementation(cw, executableInterface, methodName, methodType, bsmName, bsmClass, bsmType, bsmArgs);
+	/**
+	 * Generates a new class (using the selected {@link Generator}) with: <ul>
+	 * <li> a default, public constructor </li>
+	 * <li> a public static method running the stages of the pipeline (named {@value #NAME_OF_METHOD_WITH_INVOKEDYNAMIC}), 
+	 * or the implementation of the bulk interface's method looping over the arrays and running the stages for each index </li></ul> 
+	 *
+	 * @param	className Internal name of the generated class (including its package)
+	 * @param	bulkInterface Bulk interface which the generated class will implement (or null)
+	 * @param	stages Descriptors of the stages
+	 * @return	bytecode of the generated class  
+	 */		
+	private static byte[] generateClassWithPipeline(String className, Class<?> bulkInterface, List<SiteDescriptor> stages) throws Exception {
+		BytecodeGenerator bg = generateClassWithParameterlessConstructor(className, bulkInterface);
 
-		cw.visitEnd();
+		if (bulkInterface != null) {
+			generateBulkMethodWithIndys(bg, singleAbstractMethodOf(bulkInterface), stages);
+		} else {
+			MethodType pipelineType = pipelineTypeOf(stages);
+			bg.beginMethod(Modifier.PUBLIC | Modifier.STATIC, NAME_OF_METHOD_WITH_INVOKEDYNAMIC, pipelineType);
+			int maxLocals = manageMethodArgumentsStatic(bg, pipelineType.parameterArray());
+			int maxStack = Math.max(maxLocals, generateStages(bg, stages));
+			bg.manageMethodResult(pipelineType.returnType());
+			bg.endMethod(maxStack, maxLocals);
+		}
 
-		return cw.toByteArray();
+		return bg.toByteArray();
 	}
 
 	/**
-	 * Generates the basic section of the class structure (class name, modifiers, etc.)
-	 * The class will be 'put' in the give package.
-	 *
-	 * @param	cw ASM's ClassWriter object 
-	 * @param	packageName Java package of the generated class  
+	 * Generates a new class (using the selected {@link Generator}) implementing all the abstract methods of the given interface.
+	 * The class will have: <ul>
+	 * <li> a default, public constructor </li>
+	 * <li> a public method for each abstract method of the interface, containing its own InvokeDynamic bytecode instruction 
+	 * (named and typed as the interface's method)</li></ul>
+	 * 
+	 * @param	className Internal name of the generated class (e.g. 'pl/confitura2012/ClassWithIndy0') 
+	 * @param	executableInterface Interface which the class will implement 
+	 * @param	bsmName Name of the bootstrap method (for the INVOKEDYNAMIC bytecode instructions)
+	 * @param	bsmClass Name of the class in which the bootstrap method is located 
+	 * @param	bsmType Types of the bootstrap method's return value and parameters
+	 * @param	bsmParams Optional parameters to the bootstrap method
+	 * @return	bytecode of the generated class  
 	 */		
-	private static void generateClass(ClassWriter cw, String packageName) {
-		String className = packageName.replace('.', '/') + "/" + 
-				NAME_OF_CLASS_WITH_INVOKEDYNAMIC + dynamicCallNumber;
-		cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC + Opcodes.ACC_SUPER, className, null, "java/lang/Object", null);
+	private static byte[] generateClassWithIndysAsInterface(String className, Class<?> executableInterface, 
+															String bsmName,	Class<?> bsmClass, MethodType bsmType, Object... bsmArgs) throws Exception {
+		BytecodeGenerator bg = generateClassWithParameterlessConstructor(className, executableInterface);
+
+		for (Method interfaceMethod : abstractMethodsOf(executableInterface)) {
+			MethodType methodType = MethodType.methodType(interfaceMethod.getReturnType(), interfaceMethod.getParameterTypes());
+			generateMethodWithIndyAsInterfaceImplementation(bg, interfaceMethod, interfaceMethod.getName(), methodType, bsmName, bsmClass, bsmType, bsmArgs);
+		}
 
-		dynamicCallNumber++;
+		return bg.toByteArray();
 	}
-	
+
 	/**
-	 * Generates the basic section of the class structure (class name, its package, modifiers, etc.). 
-	 * The class will implement the given interface.
-	 * The class will also be 'put' in the give package.
-	 *
-	 * @param	cw ASM's ClassWriter object used to generate a class structure
-	 * @param	packageName Java package of the generated class  
-	 * @param	executableInterface Interface which the generated class will implement  
+	 * @return	The abstract methods of the given interface (including the inherited ones, but not the public methods of the Object class), 
+	 * 			each signature only once, sorted by the name and the signature
 	 */		
-	private static void generateClassWithInterface(ClassWriter cw, String packageName, Class<?> executableInterface) {
-		String className = packageName.replace('.', '/') + "/" + 
-				NAME_OF_CLASS_WITH_INVOKEDYNAMIC + dynamicCallNumber;
-		String[] namesOfInterfaces = new String[] { executableInterface.getName().replace('.', '/') };
-
-		cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC + Opcodes.ACC_SUPER, className, null, "java/lang/Object", namesOfInterfaces);
+	private static List<Method> abstractMethodsOf(Class<?> executableInterface) {
+		Map<String, Method> methods = new TreeMap<String, Method>();
+		for (Method method : executableInterface.getMethods()) {
+			if (!Modifier.isAbstract(method.getModifiers()))
+				continue;
+			try {
+				Object.class.getMethod(method.getName(), method.getParameterTypes());
+				continue;
+			} catch (NoSuchMethodException e) {
+				//not a method of the Object class
+			}
+			String signature = method.getName() + MethodType.methodType(method.getReturnType(), method.getParameterTypes()).toMethodDescriptorString();
+			if (!methods.containsKey(signature))
+				methods.put(signature, method);
+		}
+		return new ArrayList<Method>(methods.values());
+	}
 
-		dynamicCallNumber++;
+	/**
+	 * @return	The only abstract method of the given functional interface
+	 */		
+	private static Method singleAbstractMethodOf(Class<?> functionalInterface) {
+		List<Method> methods = abstractMethodsOf(functionalInterface);
+		if (methods.size() != 1)
+			throw new IllegalArgumentException("Not a functional interface (with a single abstract method): " + functionalInterface.getName());
+		return methods.get(0);
 	}
-	
+
 	/**
-	 * Generates the default, public constructor. 
+	 * Starts generating a class: generates the basic section of the class structure and the default, public constructor.
+	 * The methods (added to the returned generator by the caller) must give their max stack and locals sizes, as no frames nor maxs are computed
+	 * (the generated methods are straight-line code, so they need no stack map frames).
 	 *
-	 * @param	cw ASM's ClassWriter object used to generate a class structure
+	 * @param	className Internal name of the generated class (including its package)  
+	 * @param	executableInterface Interface which the generated class will implement (or null)  
+	 * @return	The generator used to generate the rest of the class structure
 	 */		
-	private static void generateParameterlessConstructor(ClassWriter cw) {
-		MethodVisitor mv;
-
-		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
-		mv.visitCode();
-		mv.visitVarInsn(Opcodes.ALOAD, 0);
-		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
-		mv.visitInsn(Opcodes.RETURN);		
-		mv.visitMaxs(-1, -1);		
-		mv.visitEnd();
+	private static BytecodeGenerator generateClassWithParameterlessConstructor(String className, Class<?> executableInterface) {
+		BytecodeGenerator bg = generator.newBytecodeGenerator();
+		bg.generateClass(className, executableInterface);
+		bg.generateParameterlessConstructor();
+		return bg;
 	}
 
 	/**
 	 * Generates a method (public, static) and in its implementation inserts INVOKEDYNAMIC bytecode instruction.  
 	 *
-	 * @param	cw ASM's ClassWriter object used to generate a class structure
-	 * @param	methodName Name of the generated method
+	 * @param	bg Generator of the class
+	 * @param	generatedMethodName Name of the generated method
+	 * @param	methodName Name of the callsite
 	 * @param	methodType Signature of the generated method
 	 * @param	bsmName Name of the bootstrap method for the INVOKEDYNAMIC bytecode
 	 * @param	bsmClass Class in which the bootstrap method is located
 	 * @param	bsmType Signature of the bootstrap method
 	 * @param	bsmArgs Optional parameters to the bootstrap method
 	 */		
-	private static void generateMethodWithInDy(ClassWriter cw, 
+	private static void generateMethodWithInDy(BytecodeGenerator bg, String generatedMethodName, 
 											String methodName, MethodType methodType, 
 											String bsmName, Class<?> bsmClass,	MethodType bsmType, Object... bsmArgs) {
-		MethodVisitor mv;
-
-		mv = cw.visitMethod(Opcodes.ACC_PUBLIC + Opcodes.ACC_STATIC, 
-							NAME_OF_METHOD_WITH_INVOKEDYNAMIC, methodType.toMethodDescriptorString(), 
-							null, null);
-		manageMethodArgumentsStatic(mv, methodType.toMethodDescriptorString(), bsmArgs);
-
-		manageBSMArguments(bsmArgs);
+		bg.beginMethod(Modifier.PUBLIC | Modifier.STATIC, generatedMethodName, methodType);
+		int maxLocals = manageMethodArgumentsStatic(bg, methodType.parameterArray());
 
-		mv.visitCode();
+		bg.generateInvokeDynamicInstruction(methodName, methodType, bsmName, bsmClass, bsmType, bsmArgs);
 
-		generateInvokeDynamicInstruction(mv, methodName, methodType, bsmName, bsmClass, bsmType, bsmArgs);
+		bg.manageMethodResult(methodType.returnType());
 
-		manageMethodResult(mv, methodType.returnType());
-
-		mv.visitMaxs(-1, -1);		
-		mv.visitEnd();
+		bg.endMethod(Math.max(maxLocals, slotsOf(methodType.returnType())), maxLocals);
 	}	
 	
 	/**
-	 * Generates a method (implementation of the given functional interface's method) and in its implementation inserts INVOKEDYNAMIC bytecode instruction.  
+	 * Generates a method (implementation of the given interface's method) and in its implementation inserts INVOKEDYNAMIC bytecode instruction.  
+	 * When the signatures of the interface's method and of the call site differ, the arguments and the result are converted explicitly
+	 * (see: {@link #manageConversion}), so neither the linking fails, nor the boxing adapters are needed.
 	 *
-	 * @param	cw ASM's ClassWriter object used to generate a class structure
-	 * @param	executableInterface Interface with a single method 
+	 * @param	bg Generator of the class
+	 * @param	theInterfaceMethod The implemented method of the interface 
 	 * @param	methodName Name of the generated method
 	 * @param	methodType Signature of the generated method
 	 * @param	bsmName Name of the bootstrap method for the INVOKEDYNAMIC bytecode
@@ -254,122 +1488,327 @@ public class InvokeDynamic {
 	 * @param	bsmType Signature of the bootstrap method
 	 * @param	bsmArgs Optional parameters to the bootstrap method
 	 */		
-	private static void generateMethodWithIndyAsInterfaceImplementation(ClassWriter cw, Class<?> executableInterface, 
+	private static void generateMethodWithIndyAsInterfaceImplementation(BytecodeGenerator bg, Method theInterfaceMethod, 
 																		String methodName, MethodType methodType, 
 																		String bsmName, Class<?> bsmClass, MethodType bsmType, Object... bsmArgs) {
-		MethodVisitor mv;
-
-		String theInterfaceMethodName = executableInterface.getDeclaredMethods()[0].getName();
-		String theInterfaceMethodType = Type.getMethodDescriptor(executableInterface.getDeclaredMethods()[0]);
-
-		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, theInterfaceMethodName, theInterfaceMethodType, null, null);
-		manageMethodArgumentsInterface(mv, theInterfaceMethodType, bsmArgs);
+		if (isBulkMethod(theInterfaceMethod, methodType)) {
+			generateBulkMethodWithIndys(bg, theInterfaceMethod, Collections.singletonList(new SiteDescriptor(methodName, methodType, bsmName, bsmClass, bsmType, bsmArgs)));
+			return;
+		}
 
-		manageBSMArguments(bsmArgs);
+		MethodType theInterfaceMethodType = MethodType.methodType(theInterfaceMethod.getReturnType(), theInterfaceMethod.getParameterTypes());
+		if (theInterfaceMethodType.parameterCount() != methodType.parameterCount())
+			throw new IllegalArgumentException("The call site " + methodType + " does not match the interface's method: " + theInterfaceMethod);
 
-		mv.visitCode();
+		bg.beginMethod(Modifier.PUBLIC, theInterfaceMethod.getName(), theInterfaceMethodType);
+		int maxLocals = manageMethodArgumentsInterface(bg, theInterfaceMethodType.parameterArray(), methodType.parameterArray());
+		int maxStack = 0;
+		for (int i = 0; i < methodType.parameterCount(); i++)
+			maxStack += Math.max(slotsOf(theInterfaceMethodType.parameterType(i)), slotsOf(methodType.parameterType(i)));
 
-		generateInvokeDynamicInstruction(mv, methodName, methodType, bsmName, bsmClass, bsmType, bsmArgs);
+		bg.generateInvokeDynamicInstruction(methodName, methodType, bsmName, bsmClass, bsmType, bsmArgs);
 
-		manageMethodResult(mv, methodType.returnType());
+		manageConversion(bg, methodType.returnType(), theInterfaceMethodType.returnType());
+		bg.manageMethodResult(theInterfaceMethodType.returnType());
 
-		mv.visitMaxs(-1, -1);
-		mv.visitEnd();
+		bg.endMethod(Math.max(maxStack, Math.max(slotsOf(methodType.returnType()), slotsOf(theInterfaceMethodType.returnType()))), maxLocals);
 	}
 	
 	/**
 	 * Manages space in the local variables part of the method's frame for the static method arguments  
 	 *
-	 * @param	mv ASM's MethodVisitor object used to generate a method structure
-	 * @param	methodName Name of the generated method
-	 * @param	bsmArgs Optional parameters to the bootstrap method
+	 * @param	bg Generator of the class
+	 * @param	parameterTypes Types of the method's parameters
+	 * @return	Number of the local variable slots taken by the arguments
 	 */		
-	private static void manageMethodArgumentsStatic(MethodVisitor mv, String methodDescriptorString, Object... bsmArgs) {
+	private static int manageMethodArgumentsStatic(BytecodeGenerator bg, Class<?>... parameterTypes) {
 		int slot = 0;
-		for (Type parameterType : Type.getArgumentTypes(methodDescriptorString)) {
-			mv.visitVarInsn(parameterType.getOpcode(Opcodes.ILOAD), slot);
-			slot += parameterType.getSize();
+		for (Class<?> parameterType : parameterTypes) {
+			bg.loadArgument(parameterType, slot);
+			slot += slotsOf(parameterType);
 		}
+		return slot;
 	}
 
 	/**
-	 * Manages space in the local variables part of the method's frame for the interface method arguments  
+	 * @return	true, if the interface's method is a bulk method of the call site (see: {@link #prepareBulk}), 
+	 * 			i.e. it has an additional (output array) parameter, or an array parameter where the call site has a non-array one
+	 */		
+	private static boolean isBulkMethod(Method theInterfaceMethod, MethodType methodType) {
+		Class<?>[] parameterTypes = theInterfaceMethod.getParameterTypes();
+		if (parameterTypes.length == methodType.parameterCount() + 1)
+			return true;
+		if (parameterTypes.length != methodType.parameterCount())
+			return false;
+		for (int i = 0; i < parameterTypes.length; i++) {
+			if (parameterTypes[i].isArray() && !methodType.parameterType(i).isArray())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Generates a bulk method (implementation of the given interface's method): a loop over the arrays, with the INVOKEDYNAMIC bytecode instruction(s) in its body.
+	 * For each index of the arrays, the call site (or the pipeline of the call sites, see: {@link #generateStages}) is invoked with the elements of the array arguments 
+	 * (and the other arguments as they are) and its result is stored in the output array (the last argument, or a new array returned by the method).
+	 * The number of iterations is the length of the output array given as the argument, otherwise the length of the first array argument.
 	 *
-	 * @param	mv ASM's MethodVisitor object used to generate a method structure
-	 * @param	methodName Name of the generated method
-	 * @param	bsmArgs Optional parameters to the bootstrap method
+	 * @param	bg Generator of the class
+	 * @param	theInterfaceMethod The bulk method of the interface
+	 * @param	stages Descriptors of the call site, or of the stages of the pipeline
 	 */		
-	private static void manageMethodArgumentsInterface(MethodVisitor mv, String theInterfaceMethodType, Object... bsmArgs) {
+	private static void generateBulkMethodWithIndys(BytecodeGenerator bg, Method theInterfaceMethod, List<SiteDescriptor> stages) {
+		MethodType methodType = pipelineTypeOf(stages);
+		Class<?>[] parameterTypes = theInterfaceMethod.getParameterTypes();
+		Class<?> returnType = theInterfaceMethod.getReturnType();
+		int numberOfSiteParameters = methodType.parameterCount();
+		boolean outputArrayGiven = (parameterTypes.length == numberOfSiteParameters + 1);
+		Class<?> outputArray = outputArrayGiven ? parameterTypes[numberOfSiteParameters] : (void.class.equals(returnType) ? null : returnType);
+		if (outputArray != null && (!outputArray.isArray() || void.class.equals(methodType.returnType())))
+			throw new IllegalArgumentException("No output array for the result of the call site " + methodType + " in: " + theInterfaceMethod);
+		if (outputArrayGiven && !void.class.equals(returnType) && !returnType.equals(outputArray))
+			throw new IllegalArgumentException("The bulk method must return nothing, or its output array: " + theInterfaceMethod);
+
+		int[] slots = new int[parameterTypes.length];
 		int slot = 1;
-		for (Type parameterType : Type.getArgumentTypes(theInterfaceMethodType)) {
-			mv.visitVarInsn(parameterType.getOpcode(Opcodes.ILOAD), slot);
-			slot += parameterType.getSize();
+		int lengthParameter = outputArrayGiven ? numberOfSiteParameters : -1;
+		for (int i = 0; i < parameterTypes.length; i++) {
+			slots[i] = slot;
+			slot += slotsOf(parameterTypes[i]);
+			if (lengthParameter < 0 && i < numberOfSiteParameters && isElementwise(parameterTypes[i], methodType.parameterType(i)))
+				lengthParameter = i;
+		}
+		if (lengthParameter < 0)
+			throw new IllegalArgumentException("No array to loop over in: " + theInterfaceMethod);
+
+		List<Class<?>> frameLocals = new ArrayList<Class<?>>(Arrays.asList(parameterTypes));
+		int outputSlot = outputArrayGiven ? slots[numberOfSiteParameters] : -1;
+		if (!outputArrayGiven && outputArray != null) {
+			outputSlot = slot++;
+			frameLocals.add(outputArray);
+		}
+		int indexSlot = slot++;
+		int lengthSlot = slot++;
+		frameLocals.add(int.class);
+		frameLocals.add(int.class);
+		Class<?>[] loopFrame = frameLocals.toArray(new Class<?>[frameLocals.size()]);
+
+		bg.beginMethod(Modifier.PUBLIC, theInterfaceMethod.getName(), MethodType.methodType(returnType, parameterTypes));
+		bg.loadArgument(parameterTypes[lengthParameter], slots[lengthParameter]);
+		bg.arrayLength();
+		bg.storeLocal(int.class, lengthSlot);
+		if (!outputArrayGiven && outputArray != null) {
+			bg.loadArgument(int.class, lengthSlot);
+			bg.newArray(outputArray.getComponentType());
+			bg.storeLocal(outputArray, outputSlot);
+		}
+		bg.pushInt(0);
+		bg.storeLocal(int.class, indexSlot);
+
+		int loop = bg.newLabel();
+		int end = bg.newLabel();
+		bg.placeLabel(loop, loopFrame);
+		bg.loadArgument(int.class, indexSlot);
+		bg.loadArgument(int.class, lengthSlot);
+		bg.jumpIfGreaterOrEqual(end);
+
+		int stack = 0;
+		if (outputArray != null) {
+			bg.loadArgument(outputArray, outputSlot);
+			bg.loadArgument(int.class, indexSlot);
+			stack = 2;
+		}
+		int maxStack = Math.max(stack, 2);
+		for (int i = 0; i < numberOfSiteParameters; i++) {
+			Class<?> siteParameterType = methodType.parameterType(i);
+			bg.loadArgument(parameterTypes[i], slots[i]);
+			if (isElementwise(parameterTypes[i], siteParameterType)) {
+				Class<?> componentType = parameterTypes[i].getComponentType();
+				bg.loadArgument(int.class, indexSlot);
+				bg.loadArrayElement(componentType);
+				manageConversion(bg, componentType, siteParameterType);
+				maxStack = Math.max(maxStack, stack + Math.max(2, Math.max(slotsOf(componentType), slotsOf(siteParameterType))));
+			} else {
+				manageConversion(bg, parameterTypes[i], siteParameterType);
+				maxStack = Math.max(maxStack, stack + Math.max(slotsOf(parameterTypes[i]), slotsOf(siteParameterType)));
+			}
+			stack += slotsOf(siteParameterType);
+		}
+
+		maxStack = Math.max(maxStack, ((outputArray != null) ? 2 : 0) + generateStages(bg, stages));
+
+		if (outputArray != null) {
+			manageConversion(bg, methodType.returnType(), outputArray.getComponentType());
+			bg.storeArrayElement(outputArray.getComponentType());
+			maxStack = Math.max(maxStack, 2 + Math.max(slotsOf(methodType.returnType()), slotsOf(outputArray.getComponentType())));
+		} else {
+			manageConversion(bg, methodType.returnType(), void.class);
+			maxStack = Math.max(maxStack, slotsOf(methodType.returnType()));
 		}
+		bg.incrementLocal(indexSlot, 1);
+		bg.jump(loop);
+
+		bg.placeLabel(end, loopFrame);
+		if (!void.class.equals(returnType))
+			bg.loadArgument(outputArray, outputSlot);
+		bg.manageMethodResult(returnType);
+
+		bg.endMethod(maxStack, slot);
 	}
-	
+
 	/**
-	 * Manages types of the bootstrap methods arguments (the BSM can have many legal declarations).   
+	 * Generates the INVOKEDYNAMIC bytecode instructions of the stages of a pipeline, back to back: the arguments of the first stage 
+	 * must be on the operand stack, the result of each stage is converted to the (single) parameter of the next stage 
+	 * and the result of the last stage is left on the operand stack.
 	 *
-	 * @param	bsmArgs Optional parameters to the bootstrap method
+	 * @param	bg Generator of the class
+	 * @param	stages Descriptors of the stages
+	 * @return	Max number of the operand stack slots taken by the results of the stages (and their conversions)
 	 */		
-	private static void manageBSMArguments(Object... bsmArgs) {
-		if (bsmArgs == null)
-			return;
-
-		for (int i = 0; i < bsmArgs.length; i++) {
-			Object bsmArg = bsmArgs[i];
-			if (bsmArg instanceof Class<?>) {
-				bsmArgs[i] = Type.getType((Class<?>) bsmArg);
-				continue;
+	private static int generateStages(BytecodeGenerator bg, List<SiteDescriptor> stages) {
+		int maxStack = 0;
+		Class<?> previousReturnType = null;
+		for (SiteDescriptor stage : stages) {
+			if (previousReturnType != null) {
+				manageConversion(bg, previousReturnType, stage.methodType.parameterType(0));
+				maxStack = Math.max(maxStack, Math.max(slotsOf(previousReturnType), slotsOf(stage.methodType.parameterType(0))));
 			}
-	        if (bsmArg instanceof MethodType) {
-	        	bsmArgs[i] = Type.getType(((MethodType) bsmArg).toMethodDescriptorString());
-	            continue;
-	        }
-	        if (bsmArg instanceof MethodHandle) {
-	        	continue;
-	        }			
+			bg.generateInvokeDynamicInstruction(stage.methodName, stage.methodType, stage.bsmName, stage.bsmClass, stage.bsmType, stage.bsmArgs);
+			previousReturnType = stage.methodType.returnType();
+		}
+		return Math.max(maxStack, slotsOf(previousReturnType));
+	}
+
+	/**
+	 * @param	stages Descriptors of the stages of a pipeline
+	 * @return	Type of the pipeline: the parameters of the first stage and the result of the last stage
+	 */		
+	private static MethodType pipelineTypeOf(List<SiteDescriptor> stages) {
+		if (stages.isEmpty())
+			throw new IllegalArgumentException("No stages in the pipeline");
+
+		Class<?> previousReturnType = null;
+		for (SiteDescriptor stage : stages) {
+			if (stage.interfaceClass != null)
+				throw new IllegalArgumentException("Only the static call sites can be the stages of a pipeline: " + stage.methodName);
+			if (previousReturnType != null && (void.class.equals(previousReturnType) || stage.methodType.parameterCount() != 1))
+				throw new IllegalArgumentException("The stage " + stage.methodName + " " + stage.methodType + " cannot take the result of the previous stage: " + previousReturnType.getName());
+			previousReturnType = stage.methodType.returnType();
 		}
+		return stages.get(0).methodType.changeReturnType(previousReturnType);
 	}
 
 	/**
-	 * Generates INVOKEDYNAMIC bytecode instruction.  
+	 * @return	true, if the argument of the bulk method is an array of the call site's arguments (and not the argument itself)
+	 */		
+	private static boolean isElementwise(Class<?> parameterType, Class<?> siteParameterType) {
+		return parameterType.isArray() && !siteParameterType.isArray();
+	}
+
+	/**
+	 * Manages space in the local variables part of the method's frame for the interface method arguments 
+	 * (each argument is converted to the type of the call site's parameter)
 	 *
-	 * @param	mv ASM's MethodVisitor object used to generate a method structure
-	 * @param	methodName Name of the callsite
-	 * @param	methodType Signature of the callsite
-	 * @param	bsmName Name of the bootstrap method 
-	 * @param	bsmClass Class in which the bootstrap method is located
-	 * @param	bsmType Signature of the bootstrap method
-	 * @param	bsmArgs Optional parameters to the bootstrap method
+	 * @param	bg Generator of the class
+	 * @param	parameterTypes Types of the method's parameters
+	 * @param	callSiteParameterTypes Types of the call site's parameters
+	 * @return	Number of the local variable slots taken by 'this' and the arguments
 	 */		
-	private static void generateInvokeDynamicInstruction(	MethodVisitor mv, 
-															String methodName, MethodType methodType, 
-															String bsmName,	Class<?> bsmClass, MethodType bsmType, Object... bsmArgs) {
-		Handle bootstrap = new Handle(Opcodes.H_INVOKESTATIC, bsmClass.getName().replace('.', '/'), bsmName, bsmType.toMethodDescriptorString());
-		mv.visitInvokeDynamicInsn(methodName, methodType.toMethodDescriptorString(), bootstrap, bsmArgs);
+	private static int manageMethodArgumentsInterface(BytecodeGenerator bg, Class<?>[] parameterTypes, Class<?>[] callSiteParameterTypes) {
+		int slot = 1;
+		for (int i = 0; i < parameterTypes.length; i++) {
+			bg.loadArgument(parameterTypes[i], slot);
+			manageConversion(bg, parameterTypes[i], callSiteParameterTypes[i]);
+			slot += slotsOf(parameterTypes[i]);
+		}
+		return slot;
 	}
-	
+
 	/**
-	 * Manages space for the method's result (returned value, if any).  
+	 * Converts the value on top of the operand stack, the way <code>MethodHandle.asType</code> does, but with the explicit bytecode instructions: <ul>
+	 * <li> reference to reference - cast (if needed) </li>
+	 * <li> primitive to primitive - widening primitive conversion </li>
+	 * <li> primitive to reference - boxing (the wrapper must be assignable to the reference type) </li>
+	 * <li> reference to primitive - unboxing (after a cast to the wrapper, unless the reference already is a wrapper), and a widening primitive conversion </li>
+	 * <li> any value to void - the value is dropped </li></ul>
 	 *
-	 * @param	mv ASM's MethodVisitor object used to generate a method structure
-	 * @param	returnType Type of the method's result
+	 * @param	bg Generator of the class
+	 * @param	from Type of the value
+	 * @param	to Type of the converted value
 	 */		
-	private static void manageMethodResult(MethodVisitor mv, Class<?> returnType) {
-		if (void.class.equals(returnType)) {
-			mv.visitInsn(Opcodes.RETURN);
-		} else if (double.class.equals(returnType)) {
-			mv.visitInsn(Opcodes.DRETURN);
-		} else if (float.class.equals(returnType)) {
-			mv.visitInsn(Opcodes.FRETURN);
-		} else if ((int.class.equals(returnType) || (boolean.class.equals(returnType)) || (char.class.equals(returnType))
-				|| (short.class.equals(returnType)) || (byte.class.equals(returnType)))) {
-			mv.visitInsn(Opcodes.IRETURN);
-		} else if (long.class.equals(returnType)) {
-			mv.visitInsn(Opcodes.LRETURN);
-		} else {
-			mv.visitInsn(Opcodes.ARETURN);
+	private static void manageConversion(BytecodeGenerator bg, Class<?> from, Class<?> to) {
+		if (from.equals(to))
+			return;
+
+		if (void.class.equals(to)) {
+			bg.pop(from);
+		} else if (void.class.equals(from)) {
+			throw new IllegalArgumentException("Cannot convert void to " + to.getName());
+		} else if (from.isPrimitive() && to.isPrimitive()) {
+			if (!isWideningPrimitiveConversion(from, to))
+				throw new IllegalArgumentException("Cannot convert " + from.getName() + " to " + to.getName());
+			bg.convertPrimitive(from, to);
+		} else if (from.isPrimitive()) {
+			Class<?> wrapper = wrapperOf(from);
+			if (!to.isAssignableFrom(wrapper))
+				throw new IllegalArgumentException("Cannot convert " + from.getName() + " to " + to.getName());
+			bg.invokeMethod(true, wrapper, "valueOf", MethodType.methodType(wrapper, from));
+		} else if (to.isPrimitive()) {
+			Class<?> primitive = primitiveOf(from);
+			if (primitive == null) {
+				primitive = to;
+				bg.checkCast(wrapperOf(to));
+			} else if (!primitive.equals(to) && !isWideningPrimitiveConversion(primitive, to)) {
+				throw new IllegalArgumentException("Cannot convert " + from.getName() + " to " + to.getName());
+			}
+			bg.invokeMethod(false, wrapperOf(primitive), primitive.getName() + "Value", MethodType.methodType(primitive));
+			bg.convertPrimitive(primitive, to);
+		} else if (!to.isAssignableFrom(from)) {
+			bg.checkCast(to);
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * @return	true, if the first primitive type can be widened to the second one (see: JLS 5.1.2)
+	 */		
+	private static boolean isWideningPrimitiveConversion(Class<?> from, Class<?> to) {
+		String widerTypes;
+		if (byte.class.equals(from))
+			widerTypes = "short int long float double";
+		else if (short.class.equals(from) || char.class.equals(from))
+			widerTypes = "int long float double";
+		else if (int.class.equals(from))
+			widerTypes = "long float double";
+		else if (long.class.equals(from))
+			widerTypes = "float double";
+		else if (float.class.equals(from))
+			widerTypes = "double";
+		else
+			return false;
+		return Arrays.asList(widerTypes.split(" ")).contains(to.getName());
+	}
+
+	/**
+	 * @return	The wrapper class of the given primitive type
+	 */		
+	private static Class<?> wrapperOf(Class<?> primitive) {
+		return MethodType.methodType(primitive).wrap().returnType();
+	}
+
+	/**
+	 * @return	The primitive type of the given wrapper class, or null if the class is not a wrapper
+	 */		
+	private static Class<?> primitiveOf(Class<?> wrapper) {
+		Class<?> primitive = MethodType.methodType(wrapper).unwrap().returnType();
+		return primitive.isPrimitive() ? primitive : null;
+	}
+
+	/**
+	 * @return	Number of the local variable (or operand stack) slots taken by a value of the given type
+	 */		
+	private static int slotsOf(Class<?> type) {
+		if (void.class.equals(type))
+			return 0;
+		return (long.class.equals(type) || double.class.equals(type)) ? 2 : 1;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+
+import pl.confitura2012.invokedynamic.IndyVsStaticVsReflectionBenchmark.IExecutable;
+
+/**
+ * Benchmark of the two ways of preparing an object implementing a functional interface with {@link InvokeDynamic#prepareAs}: <ul>
+ * <li> GENERATED CLASS - a class with the InvokeDynamic instruction is generated, defined and instantiated </li>
+ * <li> LAMBDA METAFACTORY - the bootstrap method is invoked at once and the call site's target is wrapped into the interface
+ * by the <code>LambdaMetafactory</code> (see: {@link InvokeDynamic#setLambdaLinking}) </li></ul>
+ * For each way the creation latency (of distinct call sites, i.e. not taken from the prepared call sites cache, including the first call)
+ * and the steady-state throughput of <code>execute</code> are measured.
+ * <p/>
+ * Usage: <code>LambdaLinkingBenchmark [number of call sites]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class LambdaLinkingBenchmark {
+	private static final int DEFAULT_NUMBER_OF_CALL_SITES = 2_000;
+	private static final long NUMBER_OF_LOOPS = 10_000;
+	private static final int NUMBER_OF_REPEATS = 7;
+	private static final int MULTIPLIER = 2;
+
+	private static final MethodType SITE_TYPE = MethodType.methodType(long.class, long.class, long.class, int.class);
+	private static final MethodType BSM_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Object[].class);
+
+	public static void main(String args[]) throws Throwable {
+		int numberOfCallSites = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUMBER_OF_CALL_SITES;
+
+		BenchmarkCreation("GENERATED CLASS", false, numberOfCallSites);
+		BenchmarkCreation("LAMBDA METAFACTORY", true, numberOfCallSites);
+
+		BenchmarkExecute("GENERATED CLASS", false);
+		BenchmarkExecute("LAMBDA METAFACTORY", true);
+	}
+
+	/**
+	 * Prepares a distinct call site (the bootstrap argument makes its signature unique) and calls it once.
+	 */
+	private static IExecutable createExecutable(int number) throws Throwable {
+		IExecutable exec = InvokeDynamic.prepareAs(IExecutable.class, "run me", SITE_TYPE, "myBSM", IndyVsStaticVsReflectionBenchmark.class, BSM_TYPE, number);
+		exec.execute(number, number, MULTIPLIER);
+		return exec;
+	}
+
+	public static void BenchmarkCreation(String name, boolean lambdaLinking, int numberOfCallSites) throws Throwable {
+		System.out.println("\nBenchmark CREATION, " + name);
+		InvokeDynamic.setLambdaLinking(lambdaLinking);
+
+		int number = 0;
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			InvokeDynamic.clearCache();
+			long start = System.nanoTime();
+			for (int j = 0; j < numberOfCallSites; j++)
+				createExecutable(number++);
+			long time = System.nanoTime() - start;
+			System.out.println(numberOfCallSites + " call sites, TIME: " + (time / 1_000_000) + " ms (" + (time / numberOfCallSites / 1_000) + " us/site), "
+								+ "CLASS: " + createExecutable(number++).getClass().getName());
+		}
+		InvokeDynamic.clearCache();
+	}
+
+	public static void BenchmarkExecute(String name, boolean lambdaLinking) throws Throwable {
+		System.out.println("\nBenchmark EXECUTE, " + name);
+		InvokeDynamic.setLambdaLinking(lambdaLinking);
+		IExecutable exec = createExecutable(-1);
+		InvokeDynamic.clearCache();
+
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long x = 0; x < NUMBER_OF_LOOPS; x++) {
+				for (long y = 0; y < NUMBER_OF_LOOPS; y++) {
+					sum += exec.execute(x, y, MULTIPLIER);
+				}
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.management.ClassLoadingMXBean;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Startup benchmark of the two ways of preparing a call site as a MethodHandle (see: {@link InvokeDynamic#prepare}):
+ * generating a class with the InvokeDynamic instruction vs linking the bootstrap method directly (see: {@link InvokeDynamic#setDirectLinking}).
+ * Measures the time (and the number of classes loaded) until the first call of the first call site returns,
+ * and then the time of preparing (and calling) the given number of other call sites.
+ * <p/>
+ * Usage: <code>LinkStartupBenchmark [GENERATED|DIRECT] [number of call sites]</code>
+ * <p/>
+ * Startup can be measured only once per JVM, so each mode should be run in a separate JVM
+ * (e.g. with <code>-verbose:class</code> to check that the DIRECT mode does not load any of the ASM classes).
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class LinkStartupBenchmark {
+	private static final int DEFAULT_NUMBER_OF_CALL_SITES = 1_000;
+
+	public static String myConfituraMethod(String s) {
+		return s + " 2012";
+	}
+
+	/**
+	 * BSM - bootstrap method
+	 */
+	public static CallSite myBSM(MethodHandles.Lookup caller, String methodName, MethodType methodType) throws ReflectiveOperationException {
+		return new ConstantCallSite(caller.findStatic(LinkStartupBenchmark.class, "myConfituraMethod", methodType));
+	}
+
+	public static void main(String args[]) throws Throwable {
+		long start = System.nanoTime();
+		boolean direct = (args.length > 0) && "DIRECT".equals(args[0]);
+		int numberOfCallSites = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_NUMBER_OF_CALL_SITES;
+		InvokeDynamic.setDirectLinking(direct);
+
+		MethodType methodType = MethodType.methodType(String.class, String.class);
+		MethodType bsmType = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class);
+		MethodHandle mh = InvokeDynamic.prepare("run me", methodType, "myBSM", LinkStartupBenchmark.class, bsmType);
+		String result = (String) mh.invokeExact("Confitura");
+		long firstCallTime = System.nanoTime() - start;
+
+		ClassLoadingMXBean classLoading = ManagementFactory.getClassLoadingMXBean();
+		System.out.println("\nBenchmark LINK STARTUP " + (direct ? "DIRECT" : "GENERATED"));
+		System.out.println(result + ", TIME TO FIRST CALL: " + (firstCallTime / 1_000) + " us, "
+							+ "CLASSES LOADED (INCLUDING JMX): " + classLoading.getTotalLoadedClassCount());
+
+		start = System.nanoTime();
+		for (int i = 0; i < numberOfCallSites; i++) {
+			mh = InvokeDynamic.prepare("run me" + i, methodType, "myBSM", LinkStartupBenchmark.class, bsmType);
+			result = (String) mh.invokeExact("Confitura");
+		}
+		long time = System.nanoTime() - start;
+		System.out.println(result + ", " + numberOfCallSites + " MORE CALL SITES: " + (time / 1_000_000) + " ms ("
+							+ (time / numberOfCallSites) + " ns/site), CLASSES LOADED: " + classLoading.getTotalLoadedClassCount());
+	}
+}
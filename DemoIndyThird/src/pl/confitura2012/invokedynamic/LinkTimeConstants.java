@@ -0,0 +1,107 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reusable bootstrap method binding some parameters of the call site as the link-time constants: the arguments which never change
+ * (e.g. a multiplier read from the configuration) are given once, as the bootstrap arguments, instead of on every call.
+ * The call site's type is the type of the target without the constant parameters (so the generated method does not have them),
+ * the bootstrap method of the target is called with the full type and the constants are bound to its target with <code>MethodHandles.insertArguments</code>.
+ * The bound constants are constants for the JIT compiler, which can fold them into the inlined target (e.g. replace a multiplication with a shift).
+ * <p/>
+ * Usage (e.g. with <code>InvokeDynamic.prepare</code> or <code>InvokeDynamic.prepareAs</code>, for the call site's type without the constant parameters):
+ * bootstrap method <code>bootstrap</code> in this class, bootstrap arguments: <ol>
+ * <li> the class, the name and the type of the target's bootstrap method </li>
+ * <li> the full type of the call site (with the constant parameters), for the target's bootstrap method </li>
+ * <li> for each constant parameter (as many as the full type has more parameters than the call site's type, in the ascending order of the positions):
+ * its position in the full type (Integer) and its value </li>
+ * <li> the (optional) bootstrap arguments of the target's bootstrap method </li></ol>
+ * E.g. <code>IndyVsStaticVsReflectionBenchmark.class, "myBSM", bsmType, methodType(long.class, long.class, long.class, int.class), 2, 2</code>
+ * binds the multiplier (the parameter at the position 2) to 2, for the call site of the type <code>(long, long)long</code>.
+ * The values are converted to the types of the parameters (so an Integer can be given also for a boolean, char, byte or short parameter).
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public final class LinkTimeConstants {
+	public static final MethodType BOOTSTRAP_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Object[].class);
+
+	private LinkTimeConstants() {
+	}
+
+	/**
+	 * BSM - bootstrap method, returns the call site of the target (of the given bootstrap method) with the constants bound.
+	 *
+	 * @param	caller Lookup of the caller
+	 * @param	methodName Name of the call site
+	 * @param	methodType Type of the call site (the full type without the constant parameters)
+	 * @param	bsmArgs The target's bootstrap method (class, name, type), the full type, the positions and the values of the constants, and the target's bootstrap arguments
+	 * @return	The call site
+	 */
+	public static CallSite bootstrap(Lookup caller, String methodName, MethodType methodType, Object... bsmArgs) throws Throwable {
+		if (bsmArgs.length < 4 || !(bsmArgs[0] instanceof Class<?>) || !(bsmArgs[1] instanceof String)
+				|| !(bsmArgs[2] instanceof MethodType) || !(bsmArgs[3] instanceof MethodType))
+			throw new IllegalArgumentException("No target's bootstrap method and full type in the bootstrap arguments of: " + methodName);
+		Class<?> bsmClass = (Class<?>) bsmArgs[0];
+		String bsmName = (String) bsmArgs[1];
+		MethodType bsmType = (MethodType) bsmArgs[2];
+		MethodType fullType = (MethodType) bsmArgs[3];
+
+		int numberOfConstants = fullType.parameterCount() - methodType.parameterCount();
+		if (numberOfConstants < 0 || bsmArgs.length < 4 + 2 * numberOfConstants)
+			throw new IllegalArgumentException("No constants for the full type " + fullType + " in the bootstrap arguments of: " + methodName);
+		int[] positions = new int[numberOfConstants];
+		Object[] values = new Object[numberOfConstants];
+		MethodType reducedType = fullType;
+		for (int i = 0; i < numberOfConstants; i++) {
+			positions[i] = ((Number) bsmArgs[4 + 2 * i]).intValue();
+			if (positions[i] >= fullType.parameterCount() || (i > 0 && positions[i] <= positions[i - 1]))
+				throw new IllegalArgumentException("Wrong position of the constant " + positions[i] + " in the full type " + fullType + " of: " + methodName);
+			values[i] = valueOf(bsmArgs[5 + 2 * i], fullType.parameterType(positions[i]));
+		}
+		for (int i = numberOfConstants - 1; i >= 0; i--)
+			reducedType = reducedType.dropParameterTypes(positions[i], positions[i] + 1);
+		if (!reducedType.equals(methodType))
+			throw new IllegalArgumentException("The type of the call site " + methodType + " is not the full type " + fullType + " without the constants, for: " + methodName);
+
+		MethodHandle bsm = MethodHandles.lookup().findStatic(bsmClass, bsmName, bsmType);
+		List<Object> targetBsmArgs = new ArrayList<Object>(bsmArgs.length);
+		targetBsmArgs.add(caller);
+		targetBsmArgs.add(methodName);
+		targetBsmArgs.add(fullType);
+		targetBsmArgs.addAll(Arrays.asList(bsmArgs).subList(4 + 2 * numberOfConstants, bsmArgs.length));
+		CallSite callSite = (CallSite) bsm.invokeWithArguments(targetBsmArgs);
+
+		//a constant call site's target is bound directly, the other call sites (which can be relinked) through their dynamic invoker
+		MethodHandle target = (callSite instanceof ConstantCallSite) ? callSite.getTarget() : callSite.dynamicInvoker();
+		for (int i = numberOfConstants - 1; i >= 0; i--)
+			target = MethodHandles.insertArguments(target, positions[i], values[i]);
+		return new ConstantCallSite(target.asType(methodType));
+	}
+
+	/**
+	 * Converts the constant (given as the bootstrap argument) to the type of its parameter, where <code>MethodHandles.insertArguments</code> would not.
+	 */
+	private static Object valueOf(Object value, Class<?> parameterType) {
+		if (!(value instanceof Integer))
+			return value;
+		int intValue = (Integer) value;
+		if (parameterType == boolean.class)
+			return intValue != 0;
+		else if (parameterType == char.class)
+			return (char) intValue;
+		else if (parameterType == byte.class)
+			return (byte) intValue;
+		else if (parameterType == short.class)
+			return (short) intValue;
+		return value;
+	}
+}
@@ -0,0 +1,88 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+
+/**
+ * Benchmark of the call site with the multiplier bound as the link-time constant (see: {@link LinkTimeConstants}) against the generic call site
+ * (the multiplier passed on each call), for the benchmark method of the {@link IndyVsStaticVsReflectionBenchmark}: <ul>
+ * <li> GENERIC - <code>execute(a, b, multiplier)</code>, the call site of the type <code>(long, long, int)long</code> </li>
+ * <li> SPECIALIZED - <code>execute(a, b)</code>, the call site of the type <code>(long, long)long</code>, with the multiplier bound at link time </li>
+ * <li> NORMAL (STATIC) - the benchmark method called directly with the multiplier, for reference </li></ul>
+ * The multiplier is read at runtime (like a value from the configuration), so it is not a constant at the caller's side:
+ * only the specialized call site lets the JIT compiler fold it into the benchmark method.
+ * <p/>
+ * Usage: <code>LinkTimeConstantsBenchmark [multiplier]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class LinkTimeConstantsBenchmark {
+	public interface ISpecializedExecutable {
+		public long execute(long a, long b);
+	}
+
+	private static final int DEFAULT_MULTIPLIER = 2;
+	private static final long NUMBER_OF_LOOPS = 10_000;
+	private static final int NUMBER_OF_REPEATS = 7;
+
+	private static final MethodType METHOD_TYPE = MethodType.methodType(long.class, long.class, long.class, int.class);
+	private static final MethodType BSM_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Object[].class);
+
+	public static void main(String args[]) throws Throwable {
+		int multiplier = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_MULTIPLIER;
+
+		IndyVsStaticVsReflectionBenchmark.IExecutable generic = InvokeDynamic.prepareAs(IndyVsStaticVsReflectionBenchmark.IExecutable.class,
+										"run me", METHOD_TYPE, "myBSM", IndyVsStaticVsReflectionBenchmark.class, BSM_TYPE);
+		ISpecializedExecutable specialized = InvokeDynamic.prepareAs(ISpecializedExecutable.class,
+										"run me", METHOD_TYPE.dropParameterTypes(2, 3), "bootstrap", LinkTimeConstants.class, LinkTimeConstants.BOOTSTRAP_TYPE,
+										IndyVsStaticVsReflectionBenchmark.class, "myBSM", BSM_TYPE, METHOD_TYPE, 2, multiplier);
+
+		BenchmarkGeneric(generic, multiplier);
+		BenchmarkSpecialized(specialized);
+		BenchmarkInvokeStatic(multiplier);
+	}
+
+	public static void BenchmarkGeneric(IndyVsStaticVsReflectionBenchmark.IExecutable exec, int multiplier) {
+		System.out.println("\nBenchmark GENERIC (MULTIPLIER: " + multiplier + ", PASSED ON EACH CALL)");
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long x = 0; x < NUMBER_OF_LOOPS; x++) {
+				for (long y = 0; y < NUMBER_OF_LOOPS; y++) {
+					sum += exec.execute(x, y, multiplier);
+				}
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	public static void BenchmarkSpecialized(ISpecializedExecutable exec) {
+		System.out.println("\nBenchmark SPECIALIZED (MULTIPLIER BOUND AT LINK TIME)");
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long x = 0; x < NUMBER_OF_LOOPS; x++) {
+				for (long y = 0; y < NUMBER_OF_LOOPS; y++) {
+					sum += exec.execute(x, y);
+				}
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	public static void BenchmarkInvokeStatic(int multiplier) {
+		System.out.println("\nBenchmark NORMAL (STATIC)");
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long x = 0; x < NUMBER_OF_LOOPS; x++) {
+				for (long y = 0; y < NUMBER_OF_LOOPS; y++) {
+					sum += IndyVsStaticVsReflectionBenchmark.sumAndMultiply(x, y, multiplier);
+				}
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+}
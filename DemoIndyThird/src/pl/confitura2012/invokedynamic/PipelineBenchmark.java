@@ -0,0 +1,122 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark of the pipelines of the call sites (see: {@link InvokeDynamic#preparePipeline}) against the composition of the MethodHandles.
+ * The pipeline has three stages (per record): <code>parse</code> (long to long), <code>transform</code> (long to double) and <code>aggregate</code> (double to long): <ul>
+ * <li> METHOD HANDLE COMPOSITION - the stages prepared separately (with {@link InvokeDynamic#prepare}) and composed with <code>MethodHandles.filterReturnValue</code> </li>
+ * <li> FUSED PIPELINE - the stages in a single generated method (MethodHandle) </li>
+ * <li> FUSED BULK PIPELINE - the stages in a loop over the array, in a single generated method </li>
+ * <li> STATIC - the stages called directly, for reference </li></ul>
+ * The MethodHandles are held in the local variables (i.e. not constants for the JIT compiler), as in the code building the pipelines at runtime.
+ * <p/>
+ * Usage: <code>PipelineBenchmark [length of the array]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class PipelineBenchmark {
+	public interface IBulkPipeline {
+		public void apply(long[] records, long[] results);
+	}
+
+	public static long parse(long record) {
+		return (record ^ (record >>> 7)) & 0xffff;
+	}
+
+	public static double transform(long value) {
+		return value * 1.5 + 0.25;
+	}
+
+	public static long aggregate(double value) {
+		return (long) value;
+	}
+
+	/**
+	 * BSM - bootstrap method, links the call site to the stage of the call site's name
+	 */
+	public static CallSite stageBSM(MethodHandles.Lookup caller, String methodName, MethodType methodType) throws ReflectiveOperationException {
+		return new ConstantCallSite(caller.findStatic(PipelineBenchmark.class, methodName, methodType));
+	}
+
+	private static final int DEFAULT_LENGTH = 10_000;
+	private static final long NUMBER_OF_RECORDS = 100_000_000;
+	private static final int NUMBER_OF_REPEATS = 7;
+
+	private static final MethodType BSM_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class);
+
+	public static void main(String args[]) throws Throwable {
+		int length = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_LENGTH;
+		long[] records = new long[length];
+		for (int i = 0; i < length; i++)
+			records[i] = i * 31L;
+
+		String[] stageNames = { "parse", "transform", "aggregate" };
+		MethodType[] stageTypes = { MethodType.methodType(long.class, long.class), MethodType.methodType(double.class, long.class), MethodType.methodType(long.class, double.class) };
+
+		List<InvokeDynamic.SiteDescriptor> stages = new ArrayList<InvokeDynamic.SiteDescriptor>();
+		MethodHandle composed = null;
+		for (int i = 0; i < stageNames.length; i++) {
+			stages.add(new InvokeDynamic.SiteDescriptor(stageNames[i], stageTypes[i], "stageBSM", PipelineBenchmark.class, BSM_TYPE));
+			MethodHandle mh = InvokeDynamic.prepare(stageNames[i], stageTypes[i], "stageBSM", PipelineBenchmark.class, BSM_TYPE);
+			composed = (composed == null) ? mh : MethodHandles.filterReturnValue(composed, mh);
+		}
+
+		BenchmarkMethodHandle("METHOD HANDLE COMPOSITION", composed, records);
+		BenchmarkMethodHandle("FUSED PIPELINE", InvokeDynamic.preparePipeline(stages), records);
+		BenchmarkBulkPipeline(InvokeDynamic.preparePipeline(IBulkPipeline.class, stages), records);
+		BenchmarkStatic(records);
+	}
+
+	public static void BenchmarkMethodHandle(String name, MethodHandle pipeline, long[] records) throws Throwable {
+		System.out.println("\nBenchmark " + name);
+		long[] results = new long[records.length];
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long n = 0; n < NUMBER_OF_RECORDS; n += records.length) {
+				for (int j = 0; j < records.length; j++)
+					results[j] = (long) pipeline.invokeExact(records[j]);
+				sum += results[(int) ((n / records.length) % records.length)];
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	public static void BenchmarkBulkPipeline(IBulkPipeline pipeline, long[] records) {
+		System.out.println("\nBenchmark FUSED BULK PIPELINE");
+		long[] results = new long[records.length];
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long n = 0; n < NUMBER_OF_RECORDS; n += records.length) {
+				pipeline.apply(records, results);
+				sum += results[(int) ((n / records.length) % records.length)];
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	public static void BenchmarkStatic(long[] records) {
+		System.out.println("\nBenchmark STATIC");
+		long[] results = new long[records.length];
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long n = 0; n < NUMBER_OF_RECORDS; n += records.length) {
+				for (int j = 0; j < records.length; j++)
+					results[j] = aggregate(transform(parse(records[j])));
+				sum += results[(int) ((n / records.length) % records.length)];
+			}
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+}
@@ -0,0 +1,235 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable bootstrap method dispatching the call on the receiver's class (the class of the first argument),
+ * the way the dynamic languages' runtimes do: the call site's name is the name of the public method invoked on the receiver.
+ * <p/>
+ * The call site is a <code>MutableCallSite</code> with a polymorphic inline cache: a chain of <code>MethodHandles.guardWithTest</code>
+ * checking the receiver's class, each with the target for that class. The chain starts empty (each call goes to the fallback,
+ * which looks up the target and adds it to the chain), grows with each new receiver's class (monomorphic, then polymorphic),
+ * up to the given depth. After that the call site becomes megamorphic: the chain is kept in front (so its classes are still dispatched by the guards),
+ * and only for the receivers of the other classes the target is looked up for each call in a <code>ClassValue</code>.
+ * The chain is changed under the call site's lock, and a class already in the chain (added by a racing miss) is not added again.
+ * <p/>
+ * The misses of the inline cache (calls going to the fallback) are always counted. The hits (calls dispatched by the chain)
+ * and the megamorphic calls are counted only when the statistics are enabled (<code>-Dinvokedynamic.inlineCache.statistics=true</code>,
+ * or {@link #setStatistics}) at the time of linking the call site's targets, as counting them slows down each call.
+ * <p/>
+ * Usage (e.g. with <code>InvokeDynamic.prepare</code>): bootstrap method <code>bootstrap</code> in this class,
+ * optional bootstrap argument: the max depth of the chain (default: {@value #DEFAULT_MAX_DEPTH}).
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public final class PolymorphicInlineCache {
+	public static final int DEFAULT_MAX_DEPTH = 8;
+	public static final MethodType BOOTSTRAP_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Object[].class);
+
+	private static volatile boolean statistics = Boolean.getBoolean("invokedynamic.inlineCache.statistics");
+	private static final AtomicLong hits = new AtomicLong();
+	private static final AtomicLong misses = new AtomicLong();
+	private static final AtomicLong megamorphicCalls = new AtomicLong();
+
+	private static final MethodHandle CHECK_CLASS;
+	private static final MethodHandle FALLBACK;
+	private static final MethodHandle MEGAMORPHIC_TARGET;
+	private static final MethodHandle COUNT_HIT;
+	static {
+		try {
+			Lookup lookup = MethodHandles.lookup();
+			CHECK_CLASS = lookup.findStatic(PolymorphicInlineCache.class, "checkClass", MethodType.methodType(boolean.class, Class.class, Object.class));
+			FALLBACK = lookup.findVirtual(InlineCachingCallSite.class, "fallback", MethodType.methodType(Object.class, Object[].class));
+			MEGAMORPHIC_TARGET = lookup.findVirtual(InlineCachingCallSite.class, "megamorphicTarget", MethodType.methodType(MethodHandle.class, Object.class));
+			COUNT_HIT = lookup.findStatic(PolymorphicInlineCache.class, "countHit", MethodType.methodType(void.class));
+		} catch (ReflectiveOperationException e) {
+			throw (AssertionError) new AssertionError().initCause(e);
+		}
+	}
+
+	private PolymorphicInlineCache() {
+	}
+
+	/**
+	 * BSM - bootstrap method, returns the call site with the polymorphic inline cache.
+	 *
+	 * @param	caller Lookup of the caller
+	 * @param	methodName Name of the public method invoked on the receiver
+	 * @param	methodType Type of the call site, its first parameter is the receiver
+	 * @param	bsmArgs Optional max depth of the chain (Integer)
+	 * @return	The call site
+	 */
+	public static CallSite bootstrap(Lookup caller, String methodName, MethodType methodType, Object... bsmArgs) {
+		if (methodType.parameterCount() == 0 || methodType.parameterType(0).isPrimitive())
+			throw new IllegalArgumentException("No receiver in the call site's type: " + methodType);
+		int maxDepth = (bsmArgs.length > 0) ? ((Number) bsmArgs[0]).intValue() : DEFAULT_MAX_DEPTH;
+		return new InlineCachingCallSite(caller, methodName, methodType, maxDepth);
+	}
+
+	/**
+	 * Call site with the polymorphic inline cache.
+	 */
+	public static final class InlineCachingCallSite extends MutableCallSite {
+		private final Lookup caller;
+		private final String methodName;
+		private final int maxDepth;
+		private final MethodHandle fallback;
+		//receivers' classes in the chain, in the order of adding them (the last one is checked first)
+		private final List<Class<?>> chainClasses = new ArrayList<Class<?>>();
+		private boolean megamorphic;
+
+		//targets (adapted to the call site's type) by the receiver's class, used by the fallback and by the megamorphic call site
+		private final ClassValue<MethodHandle> targets = new ClassValue<MethodHandle>() {
+			@Override
+			protected MethodHandle computeValue(Class<?> receiverClass) {
+				return findTarget(receiverClass);
+			}
+		};
+
+		InlineCachingCallSite(Lookup caller, String methodName, MethodType methodType, int maxDepth) {
+			super(methodType);
+			this.caller = caller;
+			this.methodName = methodName;
+			this.maxDepth = maxDepth;
+			this.fallback = FALLBACK.bindTo(this).asCollector(Object[].class, methodType.parameterCount()).asType(methodType);
+			setTarget(fallback);
+		}
+
+		/**
+		 * @return	Number of the receivers' classes in the chain
+		 */
+		public synchronized int getDepth() {
+			return chainClasses.size();
+		}
+
+		/**
+		 * @return	true, if the call site looks up the target for each call (the chain has grown to its max depth)
+		 */
+		public synchronized boolean isMegamorphic() {
+			return megamorphic;
+		}
+
+		/**
+		 * Handles the miss of the inline cache: adds the receiver's class to the chain (or puts the megamorphic lookup behind the chain) and invokes the target.
+		 * The receiver's class is checked again under the lock, as the racing misses of the same class may have already added it.
+		 */
+		@SuppressWarnings("unused")
+		private Object fallback(Object[] args) throws Throwable {
+			misses.incrementAndGet();
+			Class<?> receiverClass = args[0].getClass();
+			MethodHandle target = targets.get(receiverClass);
+
+			synchronized (this) {
+				if (!megamorphic && !chainClasses.contains(receiverClass)) {
+					if (chainClasses.size() < maxDepth) {
+						chainClasses.add(receiverClass);
+						setTarget(guard(receiverClass, getTarget()));
+					} else {
+						MethodHandle lookupTarget = MEGAMORPHIC_TARGET.bindTo(this).asType(MethodType.methodType(MethodHandle.class, type().parameterType(0)));
+						MethodHandle megamorphicTarget = MethodHandles.foldArguments(MethodHandles.exactInvoker(type()), lookupTarget);
+						for (Class<?> chainClass : chainClasses)
+							megamorphicTarget = guard(chainClass, megamorphicTarget);
+						setTarget(megamorphicTarget);
+						megamorphic = true;
+					}
+				}
+			}
+			return target.invokeWithArguments(args);
+		}
+
+		/**
+		 * @return	The guard dispatching the receivers of the given class to their target, and the other receivers to the given MethodHandle
+		 */
+		private MethodHandle guard(Class<?> receiverClass, MethodHandle otherwise) {
+			MethodHandle test = MethodHandles.insertArguments(CHECK_CLASS, 0, receiverClass).asType(MethodType.methodType(boolean.class, type().parameterType(0)));
+			test = MethodHandles.dropArguments(test, 1, type().dropParameterTypes(0, 1).parameterList());
+			MethodHandle target = targets.get(receiverClass);
+			return MethodHandles.guardWithTest(test, statistics ? MethodHandles.foldArguments(target, COUNT_HIT) : target, otherwise);
+		}
+
+		@SuppressWarnings("unused")
+		private MethodHandle megamorphicTarget(Object receiver) {
+			if (statistics)
+				megamorphicCalls.incrementAndGet();
+			return targets.get(receiver.getClass());
+		}
+
+		/**
+		 * Finds the public method of the call site's name and type (without the receiver) in the receiver's class.
+		 */
+		private MethodHandle findTarget(Class<?> receiverClass) {
+			try {
+				Method method = receiverClass.getMethod(methodName, type().dropParameterTypes(0, 1).parameterArray());
+				return caller.unreflect(method).asType(type());
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalArgumentException("No method " + methodName + type().dropParameterTypes(0, 1) + " in: " + receiverClass.getName(), e);
+			}
+		}
+	}
+
+	@SuppressWarnings("unused")
+	private static boolean checkClass(Class<?> expectedClass, Object receiver) {
+		return receiver != null && receiver.getClass() == expectedClass;
+	}
+
+	@SuppressWarnings("unused")
+	private static void countHit() {
+		hits.incrementAndGet();
+	}
+
+	/**
+	 * @return	true, if the hits and the megamorphic calls are counted (by the call sites' targets linked from now on)
+	 */
+	public static boolean isStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Enables counting the hits and the megamorphic calls, for the call sites' targets linked from now on.
+	 *
+	 * @param	enabled true, to count the hits and the megamorphic calls
+	 */
+	public static void setStatistics(boolean enabled) {
+		statistics = enabled;
+	}
+
+	/**
+	 * @return	Number of the calls dispatched by the chains (counted only when the statistics are enabled)
+	 */
+	public static long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return	Number of the calls which went to the fallback (looking up the target and growing the chain)
+	 */
+	public static long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return	Number of the calls of the megamorphic call sites (counted only when the statistics are enabled)
+	 */
+	public static long getMegamorphicCalls() {
+		return megamorphicCalls.get();
+	}
+
+	/**
+	 * Resets the counters.
+	 */
+	public static void resetCounters() {
+		hits.set(0);
+		misses.set(0);
+		megamorphicCalls.set(0);
+	}
+}
@@ -0,0 +1,103 @@
+package pl.confitura2012.invokedynamic;
+
+/**
+ * Benchmark of the polymorphic inline cache (see: {@link PolymorphicInlineCache}) for the 1-, 4- and 16-way polymorphic streams of calls
+ * (the receivers of the calls are the instances of 1, 4 or 16 classes, interleaved): <ul>
+ * <li> INLINE CACHE - the call site with the chain of the class checks (the 16-way stream makes it megamorphic, with the default max depth of the chain) </li>
+ * <li> INTERFACE CALL - the regular Java interface call (INVOKEINTERFACE), for reference </li></ul>
+ * After the timed runs, the stream is run once more with the statistics enabled, to show the hit rate of the inline cache.
+ * <p/>
+ * Usage: <code>PolymorphicInlineCacheBenchmark [max depth of the chain]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class PolymorphicInlineCacheBenchmark {
+	public interface IShape {
+		public long area();
+	}
+
+	public interface IAreaCall {
+		public long area(Object shape);
+	}
+
+	public static class Shape0 implements IShape { public long area() { return 0; } }
+	public static class Shape1 implements IShape { public long area() { return 1; } }
+	public static class Shape2 implements IShape { public long area() { return 2; } }
+	public static class Shape3 implements IShape { public long area() { return 3; } }
+	public static class Shape4 implements IShape { public long area() { return 4; } }
+	public static class Shape5 implements IShape { public long area() { return 5; } }
+	public static class Shape6 implements IShape { public long area() { return 6; } }
+	public static class Shape7 implements IShape { public long area() { return 7; } }
+	public static class Shape8 implements IShape { public long area() { return 8; } }
+	public static class Shape9 implements IShape { public long area() { return 9; } }
+	public static class Shape10 implements IShape { public long area() { return 10; } }
+	public static class Shape11 implements IShape { public long area() { return 11; } }
+	public static class Shape12 implements IShape { public long area() { return 12; } }
+	public static class Shape13 implements IShape { public long area() { return 13; } }
+	public static class Shape14 implements IShape { public long area() { return 14; } }
+	public static class Shape15 implements IShape { public long area() { return 15; } }
+
+	private static final IShape[] SHAPES = { new Shape0(), new Shape1(), new Shape2(), new Shape3(), new Shape4(), new Shape5(), new Shape6(), new Shape7(),
+											new Shape8(), new Shape9(), new Shape10(), new Shape11(), new Shape12(), new Shape13(), new Shape14(), new Shape15() };
+
+	private static final int NUMBER_OF_RECEIVERS = 1024;
+	private static final long NUMBER_OF_CALLS = 100_000_000;
+	private static final int NUMBER_OF_REPEATS = 7;
+
+	public static void main(String args[]) throws Throwable {
+		int maxDepth = (args.length > 0) ? Integer.parseInt(args[0]) : PolymorphicInlineCache.DEFAULT_MAX_DEPTH;
+
+		for (int ways : new int[] { 1, 4, 16 }) {
+			IShape[] receivers = new IShape[NUMBER_OF_RECEIVERS];
+			for (int i = 0; i < receivers.length; i++)
+				receivers[i] = SHAPES[i % ways];
+
+			BenchmarkInlineCache(ways, maxDepth, receivers);
+			BenchmarkInterfaceCall(ways, receivers);
+			ReportHitRate(ways, maxDepth, receivers);
+		}
+	}
+
+	private static IAreaCall prepareAreaCall(int maxDepth) throws Throwable {
+		InvokeDynamic.clearCache();
+		return InvokeDynamic.prepareInvoker(IAreaCall.class, "area", "bootstrap", PolymorphicInlineCache.class, PolymorphicInlineCache.BOOTSTRAP_TYPE, maxDepth);
+	}
+
+	public static void BenchmarkInlineCache(int ways, int maxDepth, IShape[] receivers) throws Throwable {
+		System.out.println("\nBenchmark " + ways + "-WAY, INLINE CACHE (MAX DEPTH: " + maxDepth + ")");
+		IAreaCall call = prepareAreaCall(maxDepth);
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long n = 0; n < NUMBER_OF_CALLS; n++)
+				sum += call.area(receivers[(int) n & (NUMBER_OF_RECEIVERS - 1)]);
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	public static void BenchmarkInterfaceCall(int ways, IShape[] receivers) {
+		System.out.println("\nBenchmark " + ways + "-WAY, INTERFACE CALL");
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			long start = System.currentTimeMillis();
+			long sum = 0;
+			for (long n = 0; n < NUMBER_OF_CALLS; n++)
+				sum += receivers[(int) n & (NUMBER_OF_RECEIVERS - 1)].area();
+			System.out.println(sum + ", TIME: " + (System.currentTimeMillis() - start) + " ms");
+		}
+	}
+
+	public static void ReportHitRate(int ways, int maxDepth, IShape[] receivers) throws Throwable {
+		PolymorphicInlineCache.setStatistics(true);
+		IAreaCall call = prepareAreaCall(maxDepth);
+		PolymorphicInlineCache.resetCounters();
+		long sum = 0;
+		for (long n = 0; n < NUMBER_OF_CALLS; n++)
+			sum += call.area(receivers[(int) n & (NUMBER_OF_RECEIVERS - 1)]);
+		PolymorphicInlineCache.setStatistics(false);
+
+		long hits = PolymorphicInlineCache.getHits();
+		System.out.println(ways + "-WAY, " + sum + ", HITS: " + hits + ", MISSES: " + PolymorphicInlineCache.getMisses()
+							+ ", MEGAMORPHIC CALLS: " + PolymorphicInlineCache.getMegamorphicCalls() + ", HIT RATE: " + (100.0 * hits / NUMBER_OF_CALLS) + " %");
+	}
+}
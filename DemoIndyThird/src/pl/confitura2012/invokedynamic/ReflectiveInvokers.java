@@ -0,0 +1,206 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Turns the reflective <code>java.lang.reflect.Method</code> (e.g. found by a framework at runtime) into a typed invoker of the InvokeDynamic call site
+ * linked to the method, instead of calling <code>Method.invoke</code> (which packs the arguments into an <code>Object[]</code> and boxes them and the result).
+ * The invoker is either: <ul>
+ * <li> a MethodHandle of the generated method, of the exact type of the method (see: {@link #invokerOf(Method)}), or </li>
+ * <li> an object implementing the given functional interface (see: {@link #invokerOf(Method, Class)}), whose method's type may differ
+ * from the method's type (the arguments and the result are converted the way <code>InvokeDynamic.prepareAs</code> converts them) </li></ul>
+ * For an instance method, the first parameter of the invoker is the receiver. The invokers are cached per method (and interface).
+ * <p/>
+ * The access to the method is checked on each call of <code>invokerOf</code>, also when the invoker is already cached, the way <code>Method.invoke</code> checks it
+ * for a caller without any special access: a method which is not public (or not in a public class of an exported package) must be made accessible first.
+ * The <code>MethodHandle</code> of the method is registered under a generated, random id, so it cannot be guessed and linked by another bootstrap.
+ * The id (a String) is the only bootstrap argument of the call site,
+ * so the generated class (in another package and class loader) never refers to the method's class: the call site's bootstrap method
+ * (<code>bootstrap</code> in this class) links the call site to the registered <code>MethodHandle</code>. For the same reason, the non-public types
+ * of the method (e.g. of the receiver) are erased to <code>Object</code> in the type of the call site of {@link #invokerOf(Method)}
+ * (the returned MethodHandle still has the exact type of the method).
+ * <p/>
+ * The invokers and the registered <code>MethodHandle</code>s are kept in a <code>ClassValue</code> of the method's declaring class
+ * (only the ids are mapped globally, with the weak references to the classes), so they do not prevent the class from being unloaded.
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public final class ReflectiveInvokers {
+	public static final MethodType BOOTSTRAP_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Object[].class);
+
+	private static final ClassValue<Invokers> invokers = new ClassValue<Invokers>() {
+		@Override
+		protected Invokers computeValue(Class<?> declaringClass) {
+			return new Invokers();
+		}
+	};
+	//the declaring classes of the registered methods by their ids, for the bootstrap method
+	private static final ConcurrentMap<String, Registration> registrations = new ConcurrentHashMap<String, Registration>();
+	private static final ReferenceQueue<Class<?>> unloadedClasses = new ReferenceQueue<Class<?>>();
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * The invokers of the methods of a class and the MethodHandles of the methods (by their ids)
+	 */
+	private static final class Invokers {
+		final ConcurrentMap<Method, String> ids = new ConcurrentHashMap<Method, String>();
+		final ConcurrentMap<String, MethodHandle> targets = new ConcurrentHashMap<String, MethodHandle>();
+		final ConcurrentMap<Method, MethodHandle> handleInvokers = new ConcurrentHashMap<Method, MethodHandle>();
+		final ConcurrentMap<List<Object>, Object> interfaceInvokers = new ConcurrentHashMap<List<Object>, Object>();
+	}
+
+	/**
+	 * Weak reference to the declaring class of the method registered under the id
+	 */
+	private static final class Registration extends WeakReference<Class<?>> {
+		final String id;
+
+		Registration(String id, Class<?> declaringClass) {
+			super(declaringClass, unloadedClasses);
+			this.id = id;
+		}
+	}
+
+	private ReflectiveInvokers() {
+	}
+
+	/**
+	 * Returns the MethodHandle of the generated method invoking the given method from the InvokeDynamic call site.
+	 * Its type is the type of the method (for an instance method, with the receiver as the first parameter), so it can be called
+	 * with <code>invokeExact</code> without boxing.
+	 *
+	 * @param	method The method
+	 * @return	Handle (reference) to the generated method containing the invokedynamic instruction
+	 */
+	public static MethodHandle invokerOf(Method method) throws Throwable {
+		MethodHandle target = checkedTargetOf(method);
+		Invokers invokersOfClass = invokers.get(method.getDeclaringClass());
+		MethodHandle invoker = invokersOfClass.handleInvokers.get(method);
+		if (invoker == null) {
+			String id = idOf(method, target, invokersOfClass);
+			invoker = InvokeDynamic.prepare(method.getName(), accessibleTypeOf(target.type()), "bootstrap", ReflectiveInvokers.class, BOOTSTRAP_TYPE, id);
+			invoker = invoker.asType(target.type());
+			MethodHandle existing = invokersOfClass.handleInvokers.putIfAbsent(method, invoker);
+			if (existing != null)
+				invoker = existing;
+		}
+		return invoker;
+	}
+
+	/**
+	 * Returns the object implementing the given functional interface, whose method invokes the given method from the InvokeDynamic call site.
+	 * The type of the interface's method is the type of the call site: e.g. <code>long execute(long a, long b, int multiplier)</code>
+	 * for a static method, or <code>Object get(Object bean)</code> for a getter of any bean (the receiver and the result are cast and boxed).
+	 *
+	 * @param	method The method
+	 * @param	invokerInterface Functional interface which the returned invoker will implement
+	 * @return	Object implementing the given functional interface. The method's implementation contains the InvokeDynamic bytecode.
+	 */
+	public static <T> T invokerOf(Method method, Class<T> invokerInterface) throws Throwable {
+		MethodHandle target = checkedTargetOf(method);
+		Invokers invokersOfClass = invokers.get(method.getDeclaringClass());
+		List<Object> key = Arrays.<Object>asList(method, invokerInterface);
+		Object invoker = invokersOfClass.interfaceInvokers.get(key);
+		if (invoker == null) {
+			String id = idOf(method, target, invokersOfClass);
+			invoker = InvokeDynamic.prepareInvoker(invokerInterface, method.getName(), "bootstrap", ReflectiveInvokers.class, BOOTSTRAP_TYPE, id);
+			Object existing = invokersOfClass.interfaceInvokers.putIfAbsent(key, invoker);
+			if (existing != null)
+				invoker = existing;
+		}
+		return invokerInterface.cast(invoker);
+	}
+
+	/**
+	 * BSM - bootstrap method, links the call site to the method.
+	 *
+	 * @param	caller Lookup of the caller
+	 * @param	methodName Name of the method
+	 * @param	methodType Type of the call site
+	 * @param	bsmArgs The id of the method (registered when the invoker was prepared)
+	 * @return	The call site
+	 */
+	public static CallSite bootstrap(Lookup caller, String methodName, MethodType methodType, Object... bsmArgs) {
+		if (bsmArgs.length != 1 || !(bsmArgs[0] instanceof String))
+			throw new IllegalArgumentException("No id of the method in the bootstrap arguments of: " + methodName);
+		Registration registration = registrations.get(bsmArgs[0]);
+		Class<?> declaringClass = (registration != null) ? registration.get() : null;
+		MethodHandle target = (declaringClass != null) ? invokers.get(declaringClass).targets.get(bsmArgs[0]) : null;
+		if (target == null)
+			throw new IllegalArgumentException("No method registered with the id: " + bsmArgs[0]);
+		return new ConstantCallSite(target.asType(methodType));
+	}
+
+	/**
+	 * Checks the access to the method (on behalf of any caller, i.e. it must be public, or made accessible), the way <code>Method.invoke</code> checks it.
+	 * Done on each call, as <code>Method.equals</code> (the key of the cached invokers) ignores whether the method has been made accessible.
+	 *
+	 * @return	MethodHandle of the method
+	 */
+	private static MethodHandle checkedTargetOf(Method method) throws IllegalAccessException {
+		return MethodHandles.publicLookup().unreflect(method);
+	}
+
+	/**
+	 * @return	The id of the method, whose MethodHandle is registered for the bootstrap method
+	 */
+	private static String idOf(Method method, MethodHandle target, Invokers invokersOfClass) {
+		String id = invokersOfClass.ids.get(method);
+		if (id == null) {
+			for (Reference<? extends Class<?>> unloaded; (unloaded = unloadedClasses.poll()) != null; )
+				registrations.remove(((Registration) unloaded).id);
+
+			String newId = method.getDeclaringClass().getName() + "." + method.getName() + "#" + Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong());
+			invokersOfClass.targets.put(newId, target);
+			registrations.put(newId, new Registration(newId, method.getDeclaringClass()));
+			id = invokersOfClass.ids.putIfAbsent(method, newId);
+			if (id == null) {
+				id = newId;
+			} else {
+				registrations.remove(newId);
+				invokersOfClass.targets.remove(newId);
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * @return	The type with the types not accessible from the generated class (the non-public classes) erased to Object
+	 */
+	private static MethodType accessibleTypeOf(MethodType type) {
+		MethodType accessibleType = type;
+		if (!isPublic(type.returnType()))
+			accessibleType = accessibleType.changeReturnType(Object.class);
+		for (int i = 0; i < type.parameterCount(); i++) {
+			if (!isPublic(type.parameterType(i)))
+				accessibleType = accessibleType.changeParameterType(i, Object.class);
+		}
+		return accessibleType;
+	}
+
+	private static boolean isPublic(Class<?> type) {
+		while (type.isArray())
+			type = type.getComponentType();
+		for (Class<?> c = type; c != null; c = c.getDeclaringClass()) {
+			if (!c.isPrimitive() && !Modifier.isPublic(c.getModifiers()))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,114 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+
+/**
+ * Warm-up benchmark of the tiered call sites (see: {@link TieredCallSites}). The call site computes <code>power(base, exponent)</code>:
+ * the generic target loops over the exponent, the specialized one (for the observed exponent, guarded) multiplies the base a fixed number of times.
+ * The time of each batch of calls on a new call site is printed (the warm-up curve), for: <ul>
+ * <li> GENERIC - the threshold is never reached, the call site stays on the generic target </li>
+ * <li> TIERED - the call site is relinked after the threshold of calls </li>
+ * <li> EAGER - the call site is relinked on the first call (threshold: 0) </li></ul>
+ * Each relink is reported by the relink listener.
+ * <p/>
+ * Usage: <code>TieredCallSiteBenchmark [threshold]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class TieredCallSiteBenchmark {
+	public interface IPower {
+		public long power(long base, int exponent);
+	}
+
+	/**
+	 * Generic target: the exponent is looped over.
+	 */
+	public static long power(long base, int exponent) {
+		long result = 1;
+		for (int i = 0; i < exponent; i++)
+			result *= base;
+		return result;
+	}
+
+	public static long square(long base) {
+		return base * base;
+	}
+
+	public static long cube(long base) {
+		return base * base * base;
+	}
+
+	public static boolean isExponent(int expectedExponent, int exponent) {
+		return exponent == expectedExponent;
+	}
+
+	/**
+	 * Specializes the call site for the observed exponent (2 or 3), the specialized target falls back to the generic one for the other exponents.
+	 */
+	public static class PowerSpecializer implements TieredCallSites.Specializer {
+		@Override
+		public MethodHandle generic(Lookup caller, String methodName, MethodType methodType) throws Throwable {
+			return caller.findStatic(TieredCallSiteBenchmark.class, "power", methodType);
+		}
+
+		@Override
+		public MethodHandle specialize(Lookup caller, String methodName, MethodType methodType, MethodHandle generic, Object[] observedArguments) throws Throwable {
+			int exponent = (Integer) observedArguments[1];
+			if (exponent != 2 && exponent != 3)
+				return null;
+
+			MethodHandle fast = caller.findStatic(TieredCallSiteBenchmark.class, (exponent == 2) ? "square" : "cube", MethodType.methodType(long.class, long.class));
+			fast = MethodHandles.dropArguments(fast, 1, int.class);
+			MethodHandle test = caller.findStatic(TieredCallSiteBenchmark.class, "isExponent", MethodType.methodType(boolean.class, int.class, int.class));
+			test = MethodHandles.dropArguments(MethodHandles.insertArguments(test, 0, exponent), 0, long.class);
+			return MethodHandles.guardWithTest(test, fast, generic);
+		}
+	}
+
+	private static final int DEFAULT_THRESHOLD = TieredCallSites.DEFAULT_THRESHOLD;
+	private static final int NUMBER_OF_BATCHES = 20;
+	private static final int CALLS_IN_BATCH = 20_000;
+	private static final int NUMBER_OF_REPEATS = 3;
+
+	public static void main(String args[]) throws Throwable {
+		int threshold = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_THRESHOLD;
+		TieredCallSites.setRelinkListener(new TieredCallSites.RelinkListener() {
+			@Override
+			public void relinked(TieredCallSites.TieredCallSite callSite, Object[] observedArguments) {
+				System.out.println("\tRELINKED: " + callSite.getMethodName() + callSite.type() + ", EXPONENT: " + observedArguments[1]);
+			}
+		});
+
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			BenchmarkWarmUp("GENERIC", Integer.MAX_VALUE);
+			BenchmarkWarmUp("TIERED (THRESHOLD: " + threshold + ")", threshold);
+			BenchmarkWarmUp("EAGER", 0);
+		}
+	}
+
+	public static void BenchmarkWarmUp(String name, int threshold) throws Throwable {
+		System.out.println("\nBenchmark WARM-UP, " + name);
+		InvokeDynamic.clearCache();
+		TieredCallSites.resetRelinks();
+		IPower power = InvokeDynamic.prepareInvoker(IPower.class, "power", "bootstrap", TieredCallSites.class, TieredCallSites.BOOTSTRAP_TYPE,
+													PowerSpecializer.class, threshold);
+
+		StringBuilder curve = new StringBuilder();
+		long total = 0;
+		long sum = 0;
+		for (int batch = 0; batch < NUMBER_OF_BATCHES; batch++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < CALLS_IN_BATCH; i++)
+				sum += power.power(i, 3);
+			long time = System.nanoTime() - start;
+			total += time;
+			curve.append(time / CALLS_IN_BATCH).append(' ');
+		}
+		System.out.println(sum + ", ns/call per batch of " + CALLS_IN_BATCH + " calls: " + curve);
+		System.out.println("TOTAL TIME: " + (total / 1_000) + " us, RELINKS: " + TieredCallSites.getRelinks());
+	}
+}
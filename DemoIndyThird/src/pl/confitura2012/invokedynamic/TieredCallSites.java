@@ -0,0 +1,218 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable bootstrap method of the tiered call sites: the call site starts on a cheap, generic target and counts the calls.
+ * After the given number of calls (the hotness threshold) the call site asks the {@link Specializer} for a specialized target,
+ * built from the arguments of the call (e.g. their types or values), and relinks to it (<code>MutableCallSite.setTarget</code>).
+ * So the cold call sites never pay for the (expensive) specialization, while the hot ones get the fast path.
+ * <p/>
+ * The specializer may return null (nothing to specialize for the observed arguments): the call site stays on the generic target
+ * and asks again after the next threshold of calls. A specialized target may guard its assumptions (e.g. with <code>MethodHandles.guardWithTest</code>)
+ * and fall back to the generic target, or the call site can be sent back to the generic target with {@link TieredCallSite#reset}.
+ * <p/>
+ * Usage (e.g. with <code>InvokeDynamic.prepare</code>): bootstrap method <code>bootstrap</code> in this class, bootstrap arguments:
+ * the class of the specializer (public, with a public, parameterless constructor) and (optional) the threshold (default: {@value #DEFAULT_THRESHOLD}).
+ * The relinks are counted (see: {@link #getRelinks}) and can be observed with a {@link RelinkListener}.
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public final class TieredCallSites {
+	public static final int DEFAULT_THRESHOLD = 10_000;
+	public static final MethodType BOOTSTRAP_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, Object[].class);
+
+	private static final AtomicLong relinks = new AtomicLong();
+	private static volatile RelinkListener relinkListener;
+
+	private static final MethodHandle IS_COLD;
+	private static final MethodHandle RELINK;
+	static {
+		try {
+			Lookup lookup = MethodHandles.lookup();
+			IS_COLD = lookup.findVirtual(TieredCallSite.class, "isCold", MethodType.methodType(boolean.class));
+			RELINK = lookup.findVirtual(TieredCallSite.class, "relink", MethodType.methodType(Object.class, Object[].class));
+		} catch (ReflectiveOperationException e) {
+			throw (AssertionError) new AssertionError().initCause(e);
+		}
+	}
+
+	private TieredCallSites() {
+	}
+
+	/**
+	 * Builds the targets of the tiered call site.
+	 */
+	public interface Specializer {
+		/**
+		 * @param	caller Lookup of the caller
+		 * @param	methodName Name of the call site
+		 * @param	methodType Type of the call site
+		 * @return	The generic target of the call site (used until the call site is hot)
+		 */
+		MethodHandle generic(Lookup caller, String methodName, MethodType methodType) throws Throwable;
+
+		/**
+		 * @param	caller Lookup of the caller
+		 * @param	methodName Name of the call site
+		 * @param	methodType Type of the call site
+		 * @param	generic The generic target of the call site (e.g. to fall back to, when the specialized target's guard fails)
+		 * @param	observedArguments Arguments of the call which has reached the threshold
+		 * @return	The specialized target of the call site, or null to stay on the generic target (for the next threshold of calls)
+		 */
+		MethodHandle specialize(Lookup caller, String methodName, MethodType methodType, MethodHandle generic, Object[] observedArguments) throws Throwable;
+	}
+
+	/**
+	 * Observer of the relinks of the tiered call sites (called by the thread which has relinked the call site).
+	 */
+	public interface RelinkListener {
+		/**
+		 * @param	callSite The relinked call site
+		 * @param	observedArguments Arguments of the call which has reached the threshold
+		 */
+		void relinked(TieredCallSite callSite, Object[] observedArguments);
+	}
+
+	/**
+	 * BSM - bootstrap method, returns the tiered call site.
+	 *
+	 * @param	caller Lookup of the caller
+	 * @param	methodName Name of the call site
+	 * @param	methodType Type of the call site
+	 * @param	bsmArgs The class of the specializer, and (optional) the threshold (Integer)
+	 * @return	The call site
+	 */
+	public static CallSite bootstrap(Lookup caller, String methodName, MethodType methodType, Object... bsmArgs) throws Throwable {
+		if (bsmArgs.length == 0 || !(bsmArgs[0] instanceof Class<?>))
+			throw new IllegalArgumentException("No specializer class in the bootstrap arguments of: " + methodName);
+		Specializer specializer;
+		try {
+			specializer = ((Class<?>) bsmArgs[0]).asSubclass(Specializer.class).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException("Cannot create the specializer " + bsmArgs[0] + " (it needs an accessible constructor without parameters) of: " + methodName, e);
+		}
+		int threshold = (bsmArgs.length > 1) ? ((Number) bsmArgs[1]).intValue() : DEFAULT_THRESHOLD;
+		return new TieredCallSite(caller, methodName, methodType, specializer, threshold);
+	}
+
+	/**
+	 * The tiered call site. The calls are counted without synchronization, so under contention the call site
+	 * can be relinked a bit later than after exactly the threshold of calls.
+	 */
+	public static final class TieredCallSite extends MutableCallSite {
+		private final Lookup caller;
+		private final String methodName;
+		private final Specializer specializer;
+		private final int threshold;
+		private final MethodHandle generic;
+		private final MethodHandle countingGeneric;
+		private int remainingCalls;
+		private MethodHandle specialized;
+		private int relinkCount;
+
+		TieredCallSite(Lookup caller, String methodName, MethodType methodType, Specializer specializer, int threshold) throws Throwable {
+			super(methodType);
+			this.caller = caller;
+			this.methodName = methodName;
+			this.specializer = specializer;
+			this.threshold = threshold;
+			this.generic = specializer.generic(caller, methodName, methodType).asType(methodType);
+
+			MethodHandle isCold = MethodHandles.dropArguments(IS_COLD.bindTo(this), 0, methodType.parameterList());
+			MethodHandle relink = RELINK.bindTo(this).asCollector(Object[].class, methodType.parameterCount()).asType(methodType);
+			this.countingGeneric = MethodHandles.guardWithTest(isCold, generic, relink);
+			this.remainingCalls = threshold;
+			setTarget(countingGeneric);
+		}
+
+		/**
+		 * @return	Name of the call site
+		 */
+		public String getMethodName() {
+			return methodName;
+		}
+
+		/**
+		 * @return	true, if the call site has been relinked to the specialized target
+		 */
+		public synchronized boolean isSpecialized() {
+			return specialized != null;
+		}
+
+		/**
+		 * @return	Number of the relinks of this call site
+		 */
+		public synchronized int getRelinkCount() {
+			return relinkCount;
+		}
+
+		/**
+		 * Sends the call site back to the generic target (e.g. when the specialized target's assumptions no longer hold),
+		 * so it is specialized again after the next threshold of calls.
+		 */
+		public synchronized void reset() {
+			specialized = null;
+			remainingCalls = threshold;
+			setTarget(countingGeneric);
+		}
+
+		@SuppressWarnings("unused")
+		private boolean isCold() {
+			return --remainingCalls >= 0;
+		}
+
+		@SuppressWarnings("unused")
+		private Object relink(Object[] args) throws Throwable {
+			MethodHandle target;
+			synchronized (this) {
+				if (specialized == null) {
+					MethodHandle newTarget = specializer.specialize(caller, methodName, type(), generic, args);
+					if (newTarget == null) {
+						remainingCalls = threshold;
+						return generic.invokeWithArguments(args);
+					}
+					specialized = newTarget.asType(type());
+					setTarget(specialized);
+					relinkCount++;
+					relinks.incrementAndGet();
+					RelinkListener listener = relinkListener;
+					if (listener != null)
+						listener.relinked(this, args);
+				}
+				target = specialized;
+			}
+			return target.invokeWithArguments(args);
+		}
+	}
+
+	/**
+	 * @return	Number of the relinks of all the tiered call sites
+	 */
+	public static long getRelinks() {
+		return relinks.get();
+	}
+
+	/**
+	 * Resets the number of the relinks of all the tiered call sites.
+	 */
+	public static void resetRelinks() {
+		relinks.set(0);
+	}
+
+	/**
+	 * Selects the observer of the relinks.
+	 *
+	 * @param	listener The observer, or null
+	 */
+	public static void setRelinkListener(RelinkListener listener) {
+		relinkListener = listener;
+	}
+}
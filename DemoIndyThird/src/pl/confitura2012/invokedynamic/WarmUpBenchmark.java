@@ -0,0 +1,81 @@
+package pl.confitura2012.invokedynamic;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles.Lookup;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Benchmark of warming up many call sites in parallel (see: {@link InvokeDynamic#warmUp}).
+ * Measures the time until all the call sites are prepared (and, in the direct linking mode, linked), 
+ * for a growing number of threads of the fork-join pool, in both modes: generating the classes and linking the bootstrap methods directly.
+ * The serial preparation (see: {@link InvokeDynamic#prepare}) on the calling thread is measured as the baseline.
+ * <p/>
+ * Usage: <code>WarmUpBenchmark [number of call sites] [max number of threads]</code>
+ *
+ * @author      Waldek Kot
+ * @version     %I%, %G%
+ */
+public class WarmUpBenchmark {
+	private static final int DEFAULT_NUMBER_OF_CALL_SITES = 10_000;
+	private static final int NUMBER_OF_REPEATS = 3;
+	private static final MethodType METHOD_TYPE = MethodType.methodType(long.class, long.class, long.class, int.class);
+	private static final MethodType BSM_TYPE = MethodType.methodType(CallSite.class, Lookup.class, String.class, MethodType.class, int.class);
+
+	public static void main(String args[]) throws Throwable {
+		int numberOfCallSites = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUMBER_OF_CALL_SITES;
+		int maxNumberOfThreads = (args.length > 1) ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+		List<InvokeDynamic.SiteDescriptor> sites = new ArrayList<InvokeDynamic.SiteDescriptor>();
+		for (int i = 0; i < numberOfCallSites; i++)
+			sites.add(new InvokeDynamic.SiteDescriptor("warm me" + i, METHOD_TYPE, "myBSM", ConcurrentPrepareBenchmark.class, BSM_TYPE, i));
+
+		for (boolean direct : new boolean[] { false, true }) {
+			InvokeDynamic.setDirectLinking(direct);
+			BenchmarkSerialPrepare(direct, sites);
+			for (int threads = 1; threads <= maxNumberOfThreads; threads *= 2)
+				BenchmarkWarmUp(direct, threads, sites);
+			if (Integer.bitCount(maxNumberOfThreads) != 1)
+				BenchmarkWarmUp(direct, maxNumberOfThreads, sites);
+		}
+	}
+
+	public static void BenchmarkSerialPrepare(boolean direct, List<InvokeDynamic.SiteDescriptor> sites) throws Throwable {
+		System.out.println("\nBenchmark SERIAL PREPARE " + (direct ? "DIRECT" : "GENERATED") + ", CALL SITES: " + sites.size());
+		for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+			InvokeDynamic.clearCache();
+			long start = System.nanoTime();
+			for (int j = 0; j < sites.size(); j++) {
+				MethodHandle mh = InvokeDynamic.prepare("warm me" + j, METHOD_TYPE, "myBSM", ConcurrentPrepareBenchmark.class, BSM_TYPE, j);
+				if ((long) mh.invokeExact(1L, 2L, 0) != 3L * j)
+					throw new AssertionError("Wrong result of call site " + j);
+			}
+			System.out.println("TIME TO ALL LINKED: " + ((System.nanoTime() - start) / 1_000_000) + " ms");
+		}
+	}
+
+	public static void BenchmarkWarmUp(boolean direct, int numberOfThreads, List<InvokeDynamic.SiteDescriptor> sites) throws Throwable {
+		System.out.println("\nBenchmark WARM UP " + (direct ? "DIRECT" : "GENERATED") + ", THREADS: " + numberOfThreads + ", CALL SITES: " + sites.size());
+		ForkJoinPool pool = new ForkJoinPool(numberOfThreads);
+		try {
+			for (int i = 0; i < NUMBER_OF_REPEATS; i++) {
+				InvokeDynamic.clearCache();
+				long start = System.nanoTime();
+				List<MethodHandle> mhs = InvokeDynamic.warmUp(sites, pool).get();
+				long time = System.nanoTime() - start;
+
+				for (int j = 0; j < mhs.size(); j++) {
+					if ((long) mhs.get(j).invokeExact(1L, 2L, 0) != 3L * j)
+						throw new AssertionError("Wrong result of call site " + j);
+				}
+				System.out.println("TIME TO ALL " + (direct ? "LINKED" : "PREPARED") + ": " + (time / 1_000_000) + " ms, TIME TO ALL CALLED: " 
+									+ ((System.nanoTime() - start) / 1_000_000) + " ms");
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}